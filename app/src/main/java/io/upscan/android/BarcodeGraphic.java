@@ -18,6 +18,8 @@ package io.upscan.android;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.RectF;
 
 import com.google.android.gms.vision.barcode.Barcode;
@@ -81,6 +83,30 @@ public class BarcodeGraphic extends GraphicOverlay.Graphic {
         postInvalidate();
     }
 
+    /**
+     * Gets the bounding box of the barcode, from its corner points.
+     */
+    @Override
+    public boolean getBounds(Rect out) {
+        Barcode barcode = mBarcode;
+        if ((barcode == null) || (barcode.cornerPoints == null) ||
+                (barcode.cornerPoints.length == 0)) {
+            return false;
+        }
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        for (Point point : barcode.cornerPoints) {
+            left = Math.min(left, point.x);
+            top = Math.min(top, point.y);
+            right = Math.max(right, point.x);
+            bottom = Math.max(bottom, point.y);
+        }
+        out.set(left, top, right, bottom);
+        return true;
+    }
+
     /**
      * Draws the barcode annotations for position, size, and raw value on the supplied canvas.
      */
@@ -17,10 +17,14 @@
 package io.upscan.android;
 
 
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
+
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Tracker;
 import com.google.android.gms.vision.barcode.Barcode;
 
+import io.upscan.android.ui.AutoZoom;
 import io.upscan.android.ui.GraphicOverlay;
 
 /**
@@ -36,20 +40,34 @@ class BarcodeGraphicTracker extends Tracker<Barcode> {
     private GraphicOverlay<BarcodeGraphic> mOverlay;
     private BarcodeGraphic mGraphic;
     private BarcodeDetectionListener mListener;
+    private AutoZoom mAutoZoom;
+    private ConsensusVoter mConsensusVoter;
+    private int mId;
+
+    // The last item voted on, and whether it was let through.  Results which are delivered again
+    // for a still scene hold the same items, which don't count as new reads.
+    private Barcode mVotedItem;
+    private boolean mVotedItemAccepted;
 
     BarcodeGraphicTracker(GraphicOverlay<BarcodeGraphic> overlay, BarcodeDetectionListener listener,
-                          BarcodeGraphic graphic) {
+                          BarcodeGraphic graphic, @Nullable AutoZoom autoZoom,
+                          @Nullable ConsensusVoter consensusVoter) {
         mOverlay = overlay;
         mGraphic = graphic;
         mListener = listener;
+        mAutoZoom = autoZoom;
+        mConsensusVoter = consensusVoter;
     }
 
     /**
-     * Start tracking the detected item instance within the item overlay.
+     * Start tracking the detected item instance within the item overlay.  A tracker may be reused
+     * for another item once it is done, see {@link IouTracker}.
      */
     @Override
     public void onNewItem(int id, Barcode item) {
+        mId = id;
         mGraphic.setId(id);
+        mVotedItem = null;
     }
 
     /**
@@ -58,12 +76,35 @@ class BarcodeGraphicTracker extends Tracker<Barcode> {
     @Override
     public void onUpdate(Detector.Detections<Barcode> detectionResults, Barcode item) {
         if (mOverlay.isInsideViewFinder(item.cornerPoints, mGraphic)) {
-            mOverlay.add(mGraphic);
+            if (mAutoZoom != null) {
+                Rect box = item.getBoundingBox();
+                mAutoZoom.onItemTracked(box.width(), box.height());
+            }
             mGraphic.updateItem(item);
-            mListener.onBarcodeDetected(detectionResults, item);
+            mOverlay.add(mGraphic);
+            if (isAgreedOn(detectionResults, item)) {
+                mListener.onBarcodeDetected(detectionResults, item);
+            }
         }
     }
 
+    /**
+     * Votes on the item, if a consensus is required.
+     *
+     * @return true if the item should be reported to the listener
+     */
+    private boolean isAgreedOn(Detector.Detections<Barcode> detectionResults, Barcode item) {
+        if (mConsensusVoter == null) {
+            return true;
+        }
+        if (item != mVotedItem) {
+            mVotedItem = item;
+            mVotedItemAccepted = mConsensusVoter.vote(mId, item.format, item.rawValue,
+                    detectionResults.getFrameMetadata().getTimestampMillis());
+        }
+        return mVotedItemAccepted;
+    }
+
     /**
      * Hide the graphic when the corresponding object was not detected.  This can happen for
      * intermediate frames temporarily, for example if the object was momentarily blocked from
@@ -81,5 +122,9 @@ class BarcodeGraphicTracker extends Tracker<Barcode> {
     @Override
     public void onDone() {
         mOverlay.remove(mGraphic);
+        if (mConsensusVoter != null) {
+            mConsensusVoter.forget(mId);
+        }
+        mVotedItem = null;
     }
 }
\ No newline at end of file
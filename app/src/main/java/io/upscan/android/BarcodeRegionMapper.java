@@ -0,0 +1,25 @@
+package io.upscan.android;
+
+import android.graphics.Point;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+import io.upscan.android.ui.RegionMapper;
+
+/**
+ * Maps barcodes detected in part of a preview frame back into full frame coordinates.  The
+ * bounding box of a barcode is derived from its corner points, so only those need to be mapped.
+ */
+class BarcodeRegionMapper implements RegionMapper<Barcode> {
+
+    @Override
+    public void mapToFrame(Barcode item, float scale, int offsetX, int offsetY) {
+        if (item.cornerPoints == null) {
+            return;
+        }
+        for (Point point : item.cornerPoints) {
+            point.x = Math.round(point.x * scale) + offsetX;
+            point.y = Math.round(point.y * scale) + offsetY;
+        }
+    }
+}
@@ -17,31 +17,46 @@
  */
 package io.upscan.android;
 
+import android.support.annotation.Nullable;
+
 import com.google.android.gms.vision.MultiProcessor;
 import com.google.android.gms.vision.Tracker;
 import com.google.android.gms.vision.barcode.Barcode;
 
+import io.upscan.android.ui.AutoZoom;
 import io.upscan.android.ui.GraphicOverlay;
 
 /**
  * Factory for creating a tracker and associated graphic to be associated with a new barcode.  The
- * multi-processor uses this factory to create barcode trackers as needed -- one for each barcode.
+ * multi-processor, or the {@link IouTracker}, uses this factory to create barcode trackers as
+ * needed -- one for each barcode.
  */
 class BarcodeTrackerFactory implements MultiProcessor.Factory<Barcode> {
 
     private GraphicOverlay<BarcodeGraphic> mGraphicOverlay;
     private BarcodeDetectionListener mListener;
-
+    private AutoZoom mAutoZoom;
+    private ConsensusVoter mConsensusVoter;
+
+    /**
+     * @param autoZoom       the auto zoom to report the tracked barcodes to, or null
+     * @param consensusVoter the voter which the reads of each tracker have to agree in before
+     *                       they are reported to the listener, or null to report every read
+     */
     BarcodeTrackerFactory(GraphicOverlay<BarcodeGraphic> barcodeGraphicOverlay,
-                          BarcodeDetectionListener listener) {
+                          BarcodeDetectionListener listener, @Nullable AutoZoom autoZoom,
+                          @Nullable ConsensusVoter consensusVoter) {
         mGraphicOverlay = barcodeGraphicOverlay;
         mListener = listener;
+        mAutoZoom = autoZoom;
+        mConsensusVoter = consensusVoter;
     }
 
     @Override
     public Tracker<Barcode> create(Barcode barcode) {
         BarcodeGraphic graphic = new BarcodeGraphic(mGraphicOverlay);
-        return new BarcodeGraphicTracker(mGraphicOverlay, mListener, graphic);
+        return new BarcodeGraphicTracker(mGraphicOverlay, mListener, graphic, mAutoZoom,
+                mConsensusVoter);
     }
 
 }
@@ -0,0 +1,139 @@
+package io.upscan.android;
+
+import java.util.Locale;
+
+/**
+ * Holds back the reads of a tracker until enough of them agree, since a single read of a damaged
+ * barcode is occasionally wrong.  A read is let through once the tracker has read the same value
+ * at least the required number of times within the window, counting the read itself.
+ * <p/>
+ * The votes of each tracker are kept in a small ring of primitive slots, holding a hash of the
+ * format and raw value along with the time of the read.  Up to {@link #MAX_TRACKERS} trackers
+ * vote at the same time; beyond that, the tracker which voted least recently loses its votes.
+ */
+class ConsensusVoter {
+
+    static final int DEFAULT_REQUIRED_VOTES = 3;
+    static final long DEFAULT_WINDOW_MILLIS = 1000;
+
+    static final int MAX_TRACKERS = 16;
+
+    // Votes of a tracker beyond this many are forgotten, oldest first.
+    static final int MAX_VOTES = 8;
+
+    private final int mRequiredVotes;
+    private final long mWindowMillis;
+
+    // Guarded by this.  Slot i holds the votes of tracker mTrackerIds[i] if mInUse[i], and vote j
+    // of slot i is at index i * MAX_VOTES + j.
+    private final int[] mTrackerIds = new int[MAX_TRACKERS];
+    private final boolean[] mInUse = new boolean[MAX_TRACKERS];
+    private final long[] mLastVoteMillis = new long[MAX_TRACKERS];
+    private final int[] mVoteCounts = new int[MAX_TRACKERS];
+    private final int[] mNextVotes = new int[MAX_TRACKERS];
+    private final int[] mVoteValues = new int[MAX_TRACKERS * MAX_VOTES];
+    private final long[] mVoteMillis = new long[MAX_TRACKERS * MAX_VOTES];
+    private long mAccepted;
+    private long mHeldBack;
+
+    ConsensusVoter() {
+        this(DEFAULT_REQUIRED_VOTES, DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param requiredVotes how many reads of the same value it takes, from 1 to {@link #MAX_VOTES}
+     * @param windowMillis  how far back reads count
+     */
+    ConsensusVoter(int requiredVotes, long windowMillis) {
+        if ((requiredVotes < 1) || (requiredVotes > MAX_VOTES) || (windowMillis < 0)) {
+            throw new IllegalArgumentException("Invalid consensus of " + requiredVotes +
+                    " votes within " + windowMillis + "ms");
+        }
+        mRequiredVotes = requiredVotes;
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Records a read of a tracker.
+     *
+     * @return true if enough reads of the tracker agree with this one to let it through
+     */
+    synchronized boolean vote(int trackerId, int format, String rawValue, long nowMillis) {
+        int slot = getSlot(trackerId);
+        int value = 31 * format + ((rawValue != null) ? rawValue.hashCode() : 0);
+        int base = slot * MAX_VOTES;
+        mVoteValues[base + mNextVotes[slot]] = value;
+        mVoteMillis[base + mNextVotes[slot]] = nowMillis;
+        mNextVotes[slot] = (mNextVotes[slot] + 1) % MAX_VOTES;
+        mVoteCounts[slot] = Math.min(mVoteCounts[slot] + 1, MAX_VOTES);
+        mLastVoteMillis[slot] = nowMillis;
+
+        int agreeing = 0;
+        for (int i = base; i < base + mVoteCounts[slot]; ++i) {
+            if ((mVoteValues[i] == value) && (nowMillis - mVoteMillis[i] <= mWindowMillis)) {
+                agreeing++;
+            }
+        }
+        if (agreeing >= mRequiredVotes) {
+            mAccepted++;
+            return true;
+        }
+        mHeldBack++;
+        return false;
+    }
+
+    /**
+     * Drops the votes of a tracker, once its item is gone.
+     */
+    synchronized void forget(int trackerId) {
+        for (int i = 0; i < MAX_TRACKERS; ++i) {
+            if (mInUse[i] && (mTrackerIds[i] == trackerId)) {
+                mInUse[i] = false;
+                return;
+            }
+        }
+    }
+
+    synchronized long getAccepted() {
+        return mAccepted;
+    }
+
+    /**
+     * Returns how many reads were held back for lack of agreement.
+     */
+    synchronized long getHeldBack() {
+        return mHeldBack;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "ConsensusVoter: %d accepted, %d held back",
+                mAccepted, mHeldBack);
+    }
+
+    /**
+     * Returns the slot of the tracker, taking a free slot, or the one of the tracker which voted
+     * least recently, if it has none yet.
+     */
+    private int getSlot(int trackerId) {
+        int free = -1;
+        int oldest = 0;
+        for (int i = 0; i < MAX_TRACKERS; ++i) {
+            if (!mInUse[i]) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (mTrackerIds[i] == trackerId) {
+                return i;
+            } else if (mLastVoteMillis[i] < mLastVoteMillis[oldest]) {
+                oldest = i;
+            }
+        }
+        int slot = (free >= 0) ? free : oldest;
+        mInUse[slot] = true;
+        mTrackerIds[slot] = trackerId;
+        mVoteCounts[slot] = 0;
+        mNextVotes[slot] = 0;
+        return slot;
+    }
+}
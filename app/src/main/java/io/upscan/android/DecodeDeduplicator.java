@@ -0,0 +1,187 @@
+package io.upscan.android;
+
+import android.os.SystemClock;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.Locale;
+
+/**
+ * Turns the reads of the trackers, which report a barcode on every frame in which it is seen,
+ * into events for when a code is new, and for when it is seen again after having been away for a
+ * while.  All other reads are suppressed.
+ * <p/>
+ * Codes are told apart by their format and raw value.  The last few are remembered in a small
+ * table, with the time each was last read.  A code which was away for at least the reseen time
+ * is reported as seen again, and one which was away for longer than its time to live is
+ * forgotten, and reported as new.  When the table is full, the code read least recently makes
+ * room.
+ * <p/>
+ * Reads come either straight from the trackers, or in batches from a {@link DetectionBatcher}.
+ */
+class DecodeDeduplicator implements BarcodeDetectionListener, DetectionBatcher.Listener {
+
+    /**
+     * Receives the reads which weren't suppressed, on the thread that delivers the results.
+     */
+    interface Listener {
+        /**
+         * Called when a code is read for the first time, or after it was forgotten.
+         */
+        void onNewCode(Barcode item);
+
+        /**
+         * Called when a code is read again after it was away for a while.
+         *
+         * @param absentMillis how long the code wasn't read for
+         */
+        void onCodeReseen(Barcode item, long absentMillis);
+    }
+
+    static final int DEFAULT_CAPACITY = 32;
+    static final long DEFAULT_RESEEN_MILLIS = 2000;
+    static final long DEFAULT_TIME_TO_LIVE_MILLIS = 30000;
+
+    // Outcomes of a read.
+    static final int SUPPRESSED = 0;
+    static final int NEW = 1;
+    static final int RESEEN = 2;
+
+    private final Listener mListener;
+    private final long mReseenMillis;
+    private final long mTimeToLiveMillis;
+
+    // Guarded by this.  Entries 0 to mSize - 1 are in use.
+    private final int[] mFormats;
+    private final String[] mValues;
+    private final long[] mLastReadMillis;
+    private int mSize;
+    private long mAbsentMillis;
+    private long mNewCodes;
+    private long mReseenCodes;
+    private long mSuppressed;
+
+    DecodeDeduplicator(Listener listener) {
+        this(listener, DEFAULT_CAPACITY, DEFAULT_RESEEN_MILLIS, DEFAULT_TIME_TO_LIVE_MILLIS);
+    }
+
+    /**
+     * @param capacity         how many codes are remembered at most
+     * @param reseenMillis     how long a code has to be away to be reported as seen again
+     * @param timeToLiveMillis how long a code is remembered after it was last read
+     */
+    DecodeDeduplicator(Listener listener, int capacity, long reseenMillis, long timeToLiveMillis) {
+        if ((capacity < 1) || (reseenMillis < 0) || (timeToLiveMillis < reseenMillis)) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity + ", reseen after " +
+                    reseenMillis + "ms, or time to live " + timeToLiveMillis + "ms");
+        }
+        mListener = listener;
+        mReseenMillis = reseenMillis;
+        mTimeToLiveMillis = timeToLiveMillis;
+        mFormats = new int[capacity];
+        mValues = new String[capacity];
+        mLastReadMillis = new long[capacity];
+    }
+
+    @Override
+    public void onBarcodeDetected(Detector.Detections<Barcode> detectionResults, Barcode item) {
+        int outcome;
+        long absentMillis;
+        synchronized (this) {
+            outcome = onRead(item.format, item.rawValue, SystemClock.elapsedRealtime());
+            absentMillis = mAbsentMillis;
+        }
+        if (outcome == NEW) {
+            mListener.onNewCode(item);
+        } else if (outcome == RESEEN) {
+            mListener.onCodeReseen(item, absentMillis);
+        }
+    }
+
+    @Override
+    public void onDetectionBatch(DetectionBatch batch) {
+        for (int i = 0; i < batch.size(); ++i) {
+            onBarcodeDetected(null, batch.get(i));
+        }
+    }
+
+    /**
+     * Records a read of a code.
+     *
+     * @return {@link #NEW}, {@link #RESEEN} along with how long the code was away in
+     * {@link #getAbsentMillis()}, or {@link #SUPPRESSED}
+     */
+    synchronized int onRead(int format, String rawValue, long nowMillis) {
+        String value = (rawValue != null) ? rawValue : "";
+        int oldest = 0;
+        for (int i = 0; i < mSize; ++i) {
+            if ((mFormats[i] == format) && mValues[i].equals(value)) {
+                long absentMillis = nowMillis - mLastReadMillis[i];
+                mLastReadMillis[i] = nowMillis;
+                if (absentMillis > mTimeToLiveMillis) {
+                    mNewCodes++;
+                    return NEW;
+                }
+                if (absentMillis >= mReseenMillis) {
+                    mAbsentMillis = absentMillis;
+                    mReseenCodes++;
+                    return RESEEN;
+                }
+                mSuppressed++;
+                return SUPPRESSED;
+            }
+            if (mLastReadMillis[i] < mLastReadMillis[oldest]) {
+                oldest = i;
+            }
+        }
+
+        int index = (mSize < mFormats.length) ? mSize++ : oldest;
+        mFormats[index] = format;
+        mValues[index] = value;
+        mLastReadMillis[index] = nowMillis;
+        mNewCodes++;
+        return NEW;
+    }
+
+    /**
+     * Returns how long the code of the last {@link #RESEEN} read was away.
+     */
+    synchronized long getAbsentMillis() {
+        return mAbsentMillis;
+    }
+
+    /**
+     * Forgets all codes and clears the counters.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < mSize; ++i) {
+            mValues[i] = null;
+        }
+        mSize = 0;
+        mNewCodes = 0;
+        mReseenCodes = 0;
+        mSuppressed = 0;
+    }
+
+    synchronized long getNewCodes() {
+        return mNewCodes;
+    }
+
+    synchronized long getReseenCodes() {
+        return mReseenCodes;
+    }
+
+    /**
+     * Returns how many reads were suppressed, i.e., how many callbacks were saved.
+     */
+    synchronized long getSuppressedCount() {
+        return mSuppressed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "DecodeDeduplicator: %d new, %d reseen, %d suppressed",
+                mNewCodes, mReseenCodes, mSuppressed);
+    }
+}
@@ -0,0 +1,74 @@
+package io.upscan.android;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+/**
+ * The barcodes read inside the view finder in one processed frame, see {@link DetectionBatcher}.
+ * <p/>
+ * Batches are pooled: a batch is only valid during the
+ * {@link DetectionBatcher.Listener#onDetectionBatch(DetectionBatch)} call it is passed to, and
+ * must not be kept beyond it.
+ */
+final class DetectionBatch {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int mFrameId;
+    private long mTimestampMillis;
+    private Barcode[] mItems = new Barcode[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Returns the id of the frame in which the barcodes were read.
+     */
+    int getFrameId() {
+        return mFrameId;
+    }
+
+    long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    /**
+     * Returns the number of barcodes, which may be 0 if none was read in the frame.
+     */
+    int size() {
+        return mSize;
+    }
+
+    Barcode get(int index) {
+        if ((index < 0) || (index >= mSize)) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + mSize + " barcodes");
+        }
+        return mItems[index];
+    }
+
+    /**
+     * Starts filling the batch for a frame.
+     */
+    void reset(int frameId, long timestampMillis) {
+        clear();
+        mFrameId = frameId;
+        mTimestampMillis = timestampMillis;
+    }
+
+    void add(Barcode item) {
+        if (mSize == mItems.length) {
+            Barcode[] items = new Barcode[2 * mItems.length];
+            System.arraycopy(mItems, 0, items, 0, mSize);
+            mItems = items;
+        }
+        mItems[mSize++] = item;
+    }
+
+    /**
+     * Drops the references to the barcodes, so that they can be collected while the batch is
+     * pooled.
+     */
+    void clear() {
+        for (int i = 0; i < mSize; ++i) {
+            mItems[i] = null;
+        }
+        mSize = 0;
+    }
+}
@@ -0,0 +1,240 @@
+package io.upscan.android;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collects the barcodes which the trackers read in a frame into a single {@link DetectionBatch},
+ * and hands the batches to the UI thread, instead of every tracker posting to the UI thread on
+ * its own.
+ * <p/>
+ * The batcher is the listener of the trackers, and wraps the processor which drives them, see
+ * {@link #wrap(Detector.Processor)}, so that it knows when a frame starts and ends.  Each
+ * finished batch replaces the one waiting for the UI thread, if any, and is delivered on the next
+ * display frame (on the next turn of the main loop before Jelly Bean).  So the listener is called
+ * at most once per display frame, and batches which the UI thread didn't get to in time are
+ * dropped rather than queued.
+ */
+class DetectionBatcher implements BarcodeDetectionListener {
+
+    /**
+     * Receives the batches on the UI thread.
+     */
+    interface Listener {
+        /**
+         * Called with the latest batch.  The batch is recycled once this returns.
+         */
+        void onDetectionBatch(DetectionBatch batch);
+    }
+
+    /**
+     * Runs the delivery of the batches on the UI thread.
+     */
+    interface Scheduler {
+        /**
+         * Runs the delivery once, soon.
+         */
+        void schedule(Runnable delivery);
+    }
+
+    // Batches kept for reuse: one being filled, one waiting, one being delivered, and a spare.
+    private static final int POOL_SIZE = 4;
+
+    private final Listener mListener;
+    private final Scheduler mScheduler;
+
+    private final ArrayDeque<DetectionBatch> mPool = new ArrayDeque<>(POOL_SIZE);
+    private final AtomicReference<DetectionBatch> mPending = new AtomicReference<>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Runnable mDelivery = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    // Only accessed on the thread that delivers the results to the processor.
+    private DetectionBatch mBatch;
+
+    // Guarded by mPool.
+    private long mDeliveredBatches;
+    private long mDroppedBatches;
+
+    /**
+     * Must be created on the UI thread.
+     */
+    DetectionBatcher(Listener listener) {
+        this(listener, createDisplayFrameScheduler());
+    }
+
+    DetectionBatcher(Listener listener, Scheduler scheduler) {
+        mListener = listener;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Wraps the processor which drives the trackers, so that the barcodes they read in a frame
+     * go into the batch of that frame.
+     */
+    Detector.Processor<Barcode> wrap(final Detector.Processor<Barcode> processor) {
+        return new Detector.Processor<Barcode>() {
+            @Override
+            public void receiveDetections(Detector.Detections<Barcode> detections) {
+                beginBatch(detections.getFrameMetadata().getId(),
+                        detections.getFrameMetadata().getTimestampMillis());
+                try {
+                    processor.receiveDetections(detections);
+                } finally {
+                    endBatch();
+                }
+            }
+
+            @Override
+            public void release() {
+                processor.release();
+                DetectionBatch batch = mPending.getAndSet(null);
+                if (batch != null) {
+                    recycle(batch);
+                }
+            }
+        };
+    }
+
+    /**
+     * Adds a barcode read by a tracker to the batch of the current frame.
+     */
+    @Override
+    public void onBarcodeDetected(Detector.Detections<Barcode> detectionResults, Barcode item) {
+        if (mBatch != null) {
+            mBatch.add(item);
+        }
+    }
+
+    void beginBatch(int frameId, long timestampMillis) {
+        mBatch = obtain();
+        mBatch.reset(frameId, timestampMillis);
+    }
+
+    /**
+     * Hands the batch of the current frame to the UI thread, replacing the one that is waiting,
+     * if any.
+     */
+    void endBatch() {
+        DetectionBatch batch = mBatch;
+        mBatch = null;
+        DetectionBatch stale = mPending.getAndSet(batch);
+        if (stale != null) {
+            synchronized (mPool) {
+                mDroppedBatches++;
+            }
+            recycle(stale);
+        }
+        if (mScheduled.compareAndSet(false, true)) {
+            mScheduler.schedule(mDelivery);
+        }
+    }
+
+    /**
+     * Delivers the waiting batch, if any, on the UI thread.
+     */
+    void deliver() {
+        // Cleared first, so that a batch which ends from here on schedules another delivery.
+        mScheduled.set(false);
+        DetectionBatch batch = mPending.getAndSet(null);
+        if (batch == null) {
+            return;
+        }
+        try {
+            mListener.onDetectionBatch(batch);
+        } finally {
+            synchronized (mPool) {
+                mDeliveredBatches++;
+            }
+            recycle(batch);
+        }
+    }
+
+    long getDeliveredBatches() {
+        synchronized (mPool) {
+            return mDeliveredBatches;
+        }
+    }
+
+    /**
+     * Returns how many batches were dropped because the UI thread hadn't delivered the previous
+     * one yet.
+     */
+    long getDroppedBatches() {
+        synchronized (mPool) {
+            return mDroppedBatches;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mPool) {
+            return String.format(Locale.US, "DetectionBatcher: %d delivered, %d dropped",
+                    mDeliveredBatches, mDroppedBatches);
+        }
+    }
+
+    private DetectionBatch obtain() {
+        synchronized (mPool) {
+            DetectionBatch batch = mPool.poll();
+            return (batch != null) ? batch : new DetectionBatch();
+        }
+    }
+
+    private void recycle(DetectionBatch batch) {
+        batch.clear();
+        synchronized (mPool) {
+            if (mPool.size() < POOL_SIZE) {
+                mPool.push(batch);
+            }
+        }
+    }
+
+    private static Scheduler createDisplayFrameScheduler() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return new ChoreographerScheduler();
+        }
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Scheduler() {
+            @Override
+            public void schedule(Runnable delivery) {
+                handler.post(delivery);
+            }
+        };
+    }
+
+    /**
+     * Runs the delivery on the next display frame.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerScheduler implements Scheduler, Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+        private volatile Runnable mDelivery;
+
+        @Override
+        public void schedule(Runnable delivery) {
+            mDelivery = delivery;
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mDelivery.run();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package io.upscan.android;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.MultiProcessor;
+import com.google.android.gms.vision.Tracker;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Follows barcodes from frame to frame by the overlap of their bounding boxes and by their value,
+ * and drives a tracker per barcode, like a {@link MultiProcessor}.  Unlike a multi-processor, the
+ * trackers (and with them their graphics) are pooled: a tracker whose barcode is gone is kept for
+ * the next barcode that shows up, rather than a new one being created, so barcodes flickering in
+ * and out of view don't churn through trackers.
+ * <p/>
+ * The barcodes of a frame are matched greedily to the tracks of the previous frame, best match
+ * first.  A match scores the intersection over union of the boxes, plus one if the format and
+ * value are the same.  Barcodes with the same value always match, so that fast moving barcodes
+ * aren't lost; others only if their boxes overlap by at least the minimum intersection over
+ * union, so that a misread of a tracked barcode stays with its track.  A track which isn't
+ * matched for more than the given number of frames is done.
+ * <p/>
+ * The velocity of each track is estimated from the movement of its box, so that where the barcode
+ * will be in a later frame can be predicted, see {@link #predictBounds(int, long, Rect)} and
+ * {@link PredictedSearchWindow}.
+ * <p/>
+ * At most {@link #MAX_TRACKS} barcodes are followed at a time.  Must be driven from a single
+ * thread, like any processor.
+ */
+class IouTracker implements Detector.Processor<Barcode> {
+
+    static final int MAX_TRACKS = 16;
+
+    static final float DEFAULT_MIN_IOU = 0.3f;
+    static final int DEFAULT_MAX_GAP_FRAMES = 3;
+
+    // Weight of the newest movement in the velocity of a track.
+    static final float VELOCITY_SMOOTHING = 0.5f;
+
+    private final MultiProcessor.Factory<Barcode> mFactory;
+    private final float mMinIou;
+    private final int mMaxGapFrames;
+
+    private final ArrayDeque<Tracker<Barcode>> mPool = new ArrayDeque<>();
+
+    // Tracks 0 to mTrackCount - 1 are active.
+    @SuppressWarnings("unchecked")
+    private final Tracker<Barcode>[] mTrackers = new Tracker[MAX_TRACKS];
+    private final int[] mIds = new int[MAX_TRACKS];
+    private final Rect[] mBoxes = newRects(MAX_TRACKS);
+    private final int[] mFormats = new int[MAX_TRACKS];
+    private final String[] mValues = new String[MAX_TRACKS];
+    private final int[] mMisses = new int[MAX_TRACKS];
+    private final int[] mMatches = new int[MAX_TRACKS];
+    private final int[] mHits = new int[MAX_TRACKS];
+    private final long[] mUpdateMillis = new long[MAX_TRACKS];
+    // Of the center of the box, in pixels per millisecond.
+    private final float[] mVelocityX = new float[MAX_TRACKS];
+    private final float[] mVelocityY = new float[MAX_TRACKS];
+    private int mTrackCount;
+    private int mNextId;
+
+    // The barcodes of the current frame, and the tracks they matched.
+    private final Barcode[] mItems = new Barcode[MAX_TRACKS];
+    private final Rect[] mItemBoxes = newRects(MAX_TRACKS);
+    private final int[] mItemTracks = new int[MAX_TRACKS];
+
+    private PredictedSearchWindow mSearchWindow;
+
+    private long mCreatedTrackers;
+    private long mReusedTrackers;
+
+    /**
+     * @param factory      creates the trackers, when there is none to reuse
+     * @param minIou       how much the boxes of barcodes with different values have to overlap to
+     *                     match, as the intersection over union from 0 to 1
+     * @param maxGapFrames how many frames in a row a barcode may be missed before its track is
+     *                     done
+     */
+    IouTracker(MultiProcessor.Factory<Barcode> factory, float minIou, int maxGapFrames) {
+        if ((minIou < 0) || (minIou > 1) || (maxGapFrames < 0)) {
+            throw new IllegalArgumentException("Invalid minimum IoU " + minIou +
+                    " or gap of " + maxGapFrames + " frames");
+        }
+        mFactory = factory;
+        mMinIou = minIou;
+        mMaxGapFrames = maxGapFrames;
+    }
+
+    /**
+     * Sets the search window which is updated from the tracks after every frame, or null.
+     */
+    void setSearchWindow(@Nullable PredictedSearchWindow searchWindow) {
+        mSearchWindow = searchWindow;
+    }
+
+    @Override
+    public void receiveDetections(Detector.Detections<Barcode> detections) {
+        SparseArray<Barcode> items = detections.getDetectedItems();
+        int count = Math.min(items.size(), MAX_TRACKS);
+        for (int i = 0; i < count; ++i) {
+            mItems[i] = items.valueAt(i);
+        }
+        track(detections, mItems, count, detections.getFrameMetadata().getTimestampMillis());
+        for (int i = 0; i < count; ++i) {
+            mItems[i] = null;
+        }
+    }
+
+    /**
+     * Matches the barcodes of a frame to the tracks, and updates the trackers.
+     */
+    void track(Detector.Detections<Barcode> detections, Barcode[] items, int count,
+               long timestampMillis) {
+        for (int i = 0; i < count; ++i) {
+            getBounds(items[i], mItemBoxes[i]);
+            mItemTracks[i] = -1;
+        }
+        for (int t = 0; t < mTrackCount; ++t) {
+            mMatches[t] = -1;
+        }
+
+        // Greedily take the best remaining match until there is none.
+        while (true) {
+            float bestScore = -1;
+            int bestTrack = -1;
+            int bestItem = -1;
+            for (int t = 0; t < mTrackCount; ++t) {
+                if (mMatches[t] >= 0) {
+                    continue;
+                }
+                for (int i = 0; i < count; ++i) {
+                    if (mItemTracks[i] >= 0) {
+                        continue;
+                    }
+                    float iou = getIou(mBoxes[t], mItemBoxes[i]);
+                    boolean sameValue = (mFormats[t] == items[i].format) &&
+                            equals(mValues[t], items[i].rawValue);
+                    if (!sameValue && (iou < mMinIou)) {
+                        continue;
+                    }
+                    float score = iou + (sameValue ? 1 : 0);
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestTrack = t;
+                        bestItem = i;
+                    }
+                }
+            }
+            if (bestTrack < 0) {
+                break;
+            }
+            mMatches[bestTrack] = bestItem;
+            mItemTracks[bestItem] = bestTrack;
+        }
+
+        // Update the matched tracks, and miss or end the others.  Ended tracks are replaced by the
+        // last one, which was already handled, so the loop runs backwards.
+        for (int t = mTrackCount - 1; t >= 0; --t) {
+            int i = mMatches[t];
+            if (i >= 0) {
+                updateVelocity(t, mItemBoxes[i], timestampMillis);
+                setTrack(t, items[i], mItemBoxes[i], timestampMillis);
+                mTrackers[t].onUpdate(detections, items[i]);
+            } else if (++mMisses[t] > mMaxGapFrames) {
+                endTrack(t);
+            } else {
+                mTrackers[t].onMissing(detections);
+            }
+        }
+
+        // Start tracks for the new barcodes.
+        for (int i = 0; (i < count) && (mTrackCount < MAX_TRACKS); ++i) {
+            if (mItemTracks[i] >= 0) {
+                continue;
+            }
+            int t = mTrackCount++;
+            Tracker<Barcode> tracker = mPool.poll();
+            if (tracker != null) {
+                mReusedTrackers++;
+            } else {
+                tracker = mFactory.create(items[i]);
+                mCreatedTrackers++;
+            }
+            mTrackers[t] = tracker;
+            mIds[t] = mNextId++;
+            mHits[t] = 0;
+            mVelocityX[t] = 0;
+            mVelocityY[t] = 0;
+            setTrack(t, items[i], mItemBoxes[i], timestampMillis);
+            tracker.onNewItem(mIds[t], items[i]);
+            tracker.onUpdate(detections, items[i]);
+        }
+
+        if (mSearchWindow != null) {
+            mSearchWindow.update(this, timestampMillis);
+        }
+    }
+
+    /**
+     * Ends all tracks.  The trackers are kept for reuse.
+     */
+    @Override
+    public void release() {
+        for (int t = mTrackCount - 1; t >= 0; --t) {
+            endTrack(t);
+        }
+    }
+
+    /**
+     * Returns the number of barcodes being followed.
+     */
+    int getTrackCount() {
+        return mTrackCount;
+    }
+
+    /**
+     * Returns the id of a track, from 0 to {@link #getTrackCount()} - 1.
+     */
+    int getTrackId(int track) {
+        return mIds[track];
+    }
+
+    /**
+     * Returns in how many frames the barcode of a track was seen.
+     */
+    int getTrackHits(int track) {
+        return mHits[track];
+    }
+
+    /**
+     * Returns in how many frames in a row the barcode of a track was missed, 0 if it was seen in
+     * the last frame.
+     */
+    int getTrackMisses(int track) {
+        return mMisses[track];
+    }
+
+    /**
+     * Predicts the box of a track at the given time, from the box where its barcode was last
+     * seen moving at the velocity of the track.
+     */
+    void predictBounds(int track, long atMillis, Rect out) {
+        long elapsedMillis = atMillis - mUpdateMillis[track];
+        out.set(mBoxes[track]);
+        out.offset(Math.round(mVelocityX[track] * elapsedMillis),
+                Math.round(mVelocityY[track] * elapsedMillis));
+    }
+
+    long getCreatedTrackers() {
+        return mCreatedTrackers;
+    }
+
+    long getReusedTrackers() {
+        return mReusedTrackers;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "IouTracker: %d trackers created, %d reused",
+                mCreatedTrackers, mReusedTrackers);
+    }
+
+    private void setTrack(int track, Barcode item, Rect box, long timestampMillis) {
+        mBoxes[track].set(box);
+        mFormats[track] = item.format;
+        mValues[track] = item.rawValue;
+        mMisses[track] = 0;
+        mHits[track]++;
+        mUpdateMillis[track] = timestampMillis;
+    }
+
+    /**
+     * Blends the movement of the box since the track was last seen into its velocity.
+     */
+    private void updateVelocity(int track, Rect box, long timestampMillis) {
+        long elapsedMillis = timestampMillis - mUpdateMillis[track];
+        if (elapsedMillis <= 0) {
+            return;
+        }
+        Rect last = mBoxes[track];
+        float velocityX = (box.centerX() - last.centerX()) / (float) elapsedMillis;
+        float velocityY = (box.centerY() - last.centerY()) / (float) elapsedMillis;
+        if (mHits[track] == 1) {
+            mVelocityX[track] = velocityX;
+            mVelocityY[track] = velocityY;
+        } else {
+            mVelocityX[track] += VELOCITY_SMOOTHING * (velocityX - mVelocityX[track]);
+            mVelocityY[track] += VELOCITY_SMOOTHING * (velocityY - mVelocityY[track]);
+        }
+    }
+
+    private void endTrack(int track) {
+        mTrackers[track].onDone();
+        mPool.push(mTrackers[track]);
+        int last = --mTrackCount;
+        mTrackers[track] = mTrackers[last];
+        mIds[track] = mIds[last];
+        mBoxes[track].set(mBoxes[last]);
+        mFormats[track] = mFormats[last];
+        mValues[track] = mValues[last];
+        mMisses[track] = mMisses[last];
+        mMatches[track] = mMatches[last];
+        mHits[track] = mHits[last];
+        mUpdateMillis[track] = mUpdateMillis[last];
+        mVelocityX[track] = mVelocityX[last];
+        mVelocityY[track] = mVelocityY[last];
+        mTrackers[last] = null;
+        mValues[last] = null;
+    }
+
+    /**
+     * Returns the intersection over union of two boxes, from 0 if they don't overlap to 1 if they
+     * are the same.
+     */
+    static float getIou(Rect a, Rect b) {
+        int width = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+        int height = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+        if ((width <= 0) || (height <= 0)) {
+            return 0;
+        }
+        long intersection = (long) width * height;
+        long union = (long) a.width() * a.height() + (long) b.width() * b.height() - intersection;
+        return (float) intersection / union;
+    }
+
+    /**
+     * Gets the bounding box of the corner points of the barcode, without allocating it like
+     * {@link Barcode#getBoundingBox()} does.
+     */
+    static void getBounds(Barcode item, Rect out) {
+        Point[] points = item.cornerPoints;
+        if ((points == null) || (points.length == 0)) {
+            out.setEmpty();
+            return;
+        }
+        out.set(points[0].x, points[0].y, points[0].x, points[0].y);
+        for (int i = 1; i < points.length; ++i) {
+            out.union(points[i].x, points[i].y);
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    private static Rect[] newRects(int count) {
+        Rect[] rects = new Rect[count];
+        for (int i = 0; i < count; ++i) {
+            rects[i] = new Rect();
+        }
+        return rects;
+    }
+}
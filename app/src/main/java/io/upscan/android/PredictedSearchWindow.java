@@ -0,0 +1,137 @@
+package io.upscan.android;
+
+import android.graphics.Rect;
+
+import java.util.Locale;
+
+import io.upscan.android.ui.RegionOfInterestSource;
+
+/**
+ * Restricts detection to where the tracked barcodes are predicted to be in the next frame, once
+ * they were seen steadily, so that following a few barcodes doesn't take a full search of every
+ * frame.  See {@link IouTracker#predictBounds(int, long, Rect)}.
+ * <p/>
+ * After every frame, the boxes of the tracks are predicted for the next frame, padded by
+ * {@link #PADDING} of their size in every direction, and the search window is the box around
+ * them, within the region of the fallback source (e.g., the view finder).  The fallback region is
+ * searched in full instead
+ * <ul>
+ * <li>every {@link #getFullSearchInterval()}-th frame, so that new barcodes are picked up,</li>
+ * <li>when there are no tracks, or a track was seen in fewer than {@link #MIN_STEADY_HITS}
+ * frames, so that its velocity isn't known well enough yet, and</li>
+ * <li>when a track was missed in the last frame, which may have been outside of the window.</li>
+ * </ul>
+ * Requires the camera source to crop to the region of interest, see
+ * {@link io.upscan.android.ui.CameraSource#setRegionOfInterestSource}.
+ */
+class PredictedSearchWindow implements RegionOfInterestSource {
+
+    static final int DEFAULT_FULL_SEARCH_INTERVAL = 5;
+
+    // Tracks seen in fewer frames than this are searched for in the full region.
+    static final int MIN_STEADY_HITS = 3;
+
+    // Padding on every side of a predicted box, as a fraction of its size.
+    static final float PADDING = 0.5f;
+
+    // Smallest padding, in pixels, so that small or thin barcodes get some leeway.
+    static final int MIN_PADDING = 32;
+
+    // Weight of the newest interval in the estimated frame interval.
+    private static final float INTERVAL_SMOOTHING = 0.25f;
+
+    private final RegionOfInterestSource mFallback;
+    private final int mFullSearchInterval;
+
+    // Guarded by this.
+    private final Rect mWindow = new Rect();
+    private final Rect mPredicted = new Rect();
+    private final Rect mRegion = new Rect();
+    private boolean mHasWindow;
+    private long mLastFrameMillis = -1;
+    private float mFrameIntervalMillis;
+    private int mWindowedInRow;
+    private long mWindowedFrames;
+    private long mFullFrames;
+
+    /**
+     * @param fallback           the region searched in full, or used when there is no window
+     * @param fullSearchInterval every how many frames the fallback region is searched in full
+     */
+    PredictedSearchWindow(RegionOfInterestSource fallback, int fullSearchInterval) {
+        if (fullSearchInterval < 1) {
+            throw new IllegalArgumentException("Invalid full search interval: " +
+                    fullSearchInterval);
+        }
+        mFallback = fallback;
+        mFullSearchInterval = fullSearchInterval;
+    }
+
+    int getFullSearchInterval() {
+        return mFullSearchInterval;
+    }
+
+    /**
+     * Predicts the window for the next frame from the tracks, after a frame was tracked.
+     */
+    synchronized void update(IouTracker tracker, long timestampMillis) {
+        if ((mLastFrameMillis >= 0) && (timestampMillis > mLastFrameMillis)) {
+            long intervalMillis = timestampMillis - mLastFrameMillis;
+            if (mFrameIntervalMillis == 0) {
+                mFrameIntervalMillis = intervalMillis;
+            } else {
+                mFrameIntervalMillis +=
+                        INTERVAL_SMOOTHING * (intervalMillis - mFrameIntervalMillis);
+            }
+        }
+        mLastFrameMillis = timestampMillis;
+
+        mHasWindow = false;
+        int count = tracker.getTrackCount();
+        if (count == 0) {
+            return;
+        }
+        long nextFrameMillis = timestampMillis + Math.round(mFrameIntervalMillis);
+        for (int t = 0; t < count; ++t) {
+            if ((tracker.getTrackHits(t) < MIN_STEADY_HITS) || (tracker.getTrackMisses(t) > 0)) {
+                return;
+            }
+            tracker.predictBounds(t, nextFrameMillis, mPredicted);
+            mPredicted.inset(-Math.max(MIN_PADDING, Math.round(PADDING * mPredicted.width())),
+                    -Math.max(MIN_PADDING, Math.round(PADDING * mPredicted.height())));
+            if (t == 0) {
+                mWindow.set(mPredicted);
+            } else {
+                mWindow.union(mPredicted);
+            }
+        }
+        mHasWindow = true;
+    }
+
+    /**
+     * Gets the predicted window, or the region of the fallback source if it is to be searched in
+     * full.
+     */
+    @Override
+    public synchronized boolean getRegionOfInterest(Rect out) {
+        boolean hasRegion = mFallback.getRegionOfInterest(mRegion);
+        if (mHasWindow && (mWindowedInRow + 1 < mFullSearchInterval)) {
+            out.set(mWindow);
+            if (!hasRegion || out.intersect(mRegion)) {
+                mWindowedInRow++;
+                mWindowedFrames++;
+                return true;
+            }
+        }
+        mWindowedInRow = 0;
+        mFullFrames++;
+        out.set(mRegion);
+        return hasRegion;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "PredictedSearchWindow: %d windowed, %d full frames",
+                mWindowedFrames, mFullFrames);
+    }
+}
@@ -14,6 +14,7 @@ import android.hardware.Camera;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
@@ -28,12 +29,10 @@ import android.widget.Toast;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.vision.Detector;
-import com.google.android.gms.vision.MultiProcessor;
 import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
 
-import java.io.IOException;
-
+import io.upscan.android.ui.AutoZoom;
 import io.upscan.android.ui.CameraSource;
 import io.upscan.android.ui.CameraSourcePreview;
 import io.upscan.android.ui.GraphicOverlay;
@@ -46,9 +45,19 @@ public class ScannerActivity extends AppCompatActivity {
     // permission request codes need to be < 256
     private static final int RC_HANDLE_CAMERA_PERM = 2;
 
+    // Frame rate once no barcode has been seen for the idle timeout, to save battery while the
+    // scanner is left open.
+    private static final float IDLE_FPS = 5.0f;
+    private static final long IDLE_TIMEOUT_MILLIS = 10000;
+
     private CameraSource mCameraSource;
     private CameraSourcePreview mPreview;
     private GraphicOverlay<BarcodeGraphic> mGraphicOverlay;
+    private TextView mInfoText;
+    private DecodeDeduplicator mDecodeDeduplicator;
+    private DetectionBatcher mDetectionBatcher;
+    private ConsensusVoter mConsensusVoter;
+    private PredictedSearchWindow mSearchWindow;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -59,6 +68,18 @@ public class ScannerActivity extends AppCompatActivity {
 
         mPreview = (CameraSourcePreview) findViewById(R.id.preview);
         mGraphicOverlay = (GraphicOverlay<BarcodeGraphic>) findViewById(R.id.graphicOverlay);
+        mInfoText = (TextView) findViewById(R.id.info_text);
+        mPreview.setStartCallback(new CameraSource.LifecycleCallback() {
+            @Override
+            public void onComplete(@Nullable Exception error) {
+                if (error != null) {
+                    // The preview released the camera source, which can't be started again.
+                    mCameraSource = null;
+                    Toast.makeText(ScannerActivity.this, R.string.camera_start_error,
+                            Toast.LENGTH_LONG).show();
+                }
+            }
+        });
 
 
         // Check for the camera permission before accessing the camera.  If the
@@ -109,6 +130,15 @@ public class ScannerActivity extends AppCompatActivity {
         if (mPreview != null) {
             mPreview.stop();
         }
+        if (mCameraSource != null) {
+            Log.d(TAG, "Frame work by thread: " + mCameraSource.getThreadTimings());
+        }
+        if (mDecodeDeduplicator != null) {
+            Log.d(TAG, mSearchWindow.toString());
+            Log.d(TAG, mConsensusVoter.toString());
+            Log.d(TAG, mDetectionBatcher.toString());
+            Log.d(TAG, mDecodeDeduplicator.toString());
+        }
     }
 
     /**
@@ -172,13 +202,8 @@ public class ScannerActivity extends AppCompatActivity {
         }
 
         if (mCameraSource != null) {
-            try {
-                mPreview.start(mCameraSource, mGraphicOverlay);
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to start camera source.", e);
-                mCameraSource.release();
-                mCameraSource = null;
-            }
+            // Starts in the background; failures are reported to the start callback.
+            mPreview.start(mCameraSource, mGraphicOverlay, mSearchWindow);
         }
     }
 
@@ -229,14 +254,34 @@ public class ScannerActivity extends AppCompatActivity {
     private void createCameraSource(boolean autoFocus, boolean useFlash) {
         Context context = getApplicationContext();
 
-        // A barcode detector is created to track barcodes.  An associated multi-processor instance
+        // A barcode detector is created to track barcodes.  An associated IoU tracker instance
         // is set to receive the barcode detection results, track the barcodes, and maintain
-        // graphics for each barcode on screen.  The factory is used by the multi-processor to
-        // create a separate tracker instance for each barcode.
+        // graphics for each barcode on screen.  The factory is used by the IoU tracker to
+        // create a separate tracker instance for each barcode, which is reused for later barcodes
+        // once its barcode is gone.
         BarcodeDetector barcodeDetector = new BarcodeDetector.Builder(context).build();
+        // The trackers report the barcodes they see to the auto zoom of the camera source.
+        // They read a barcode on every frame it is seen in.  The reads of a frame are batched,
+        // the UI thread gets the latest batch once per display frame, and only new barcodes, or
+        // ones that were away for a while, are shown.  A read is only reported once the tracker
+        // has read the same value three times within a second, since single reads of damaged
+        // barcodes are occasionally wrong.
+        AutoZoom autoZoom = new AutoZoom();
+        mConsensusVoter = new ConsensusVoter();
+        mDecodeDeduplicator = new DecodeDeduplicator(mDecodeListener);
+        mDetectionBatcher = new DetectionBatcher(mDecodeDeduplicator);
         BarcodeTrackerFactory barcodeFactory = new BarcodeTrackerFactory(mGraphicOverlay,
-                mBarcodeListener);
-        barcodeDetector.setProcessor(new MultiProcessor.Builder<>(barcodeFactory).build());
+                mDetectionBatcher, autoZoom, mConsensusVoter);
+        IouTracker iouTracker = new IouTracker(barcodeFactory, IouTracker.DEFAULT_MIN_IOU,
+                IouTracker.DEFAULT_MAX_GAP_FRAMES);
+        // Once barcodes are tracked steadily, only the windows where they are predicted to be
+        // next are searched, with a full search of the view finder every few frames for new
+        // barcodes.
+        mSearchWindow = new PredictedSearchWindow(mGraphicOverlay,
+                PredictedSearchWindow.DEFAULT_FULL_SEARCH_INTERVAL);
+        iouTracker.setSearchWindow(mSearchWindow);
+        Detector.Processor<Barcode> barcodeProcessor = mDetectionBatcher.wrap(iouTracker);
+        barcodeDetector.setProcessor(barcodeProcessor);
 
         if (!barcodeDetector.isOperational()) {
             // Note: The first time that an app using the barcode or face API is installed on a
@@ -264,10 +309,35 @@ public class ScannerActivity extends AppCompatActivity {
         // Creates and starts the camera.  Note that this uses a higher resolution in comparison
         // to other detection examples to enable the barcode detector to detect small barcodes
         // at long distances.
+        //
+        // The camera source delivers the results to the processor itself, so that it can crop
+        // frames to the view finder and map the barcodes back into full frame coordinates.
+        // Most scans are of large, close barcodes, which are found at half resolution already.
+        // Blurry frames, e.g. while the autofocus is hunting, are skipped, and a barcode that
+        // sits still in front of the camera isn't decoded over and over again.
+        // Capture slows down to what the detector keeps up with, and to 5 fps once no barcode has
+        // been seen for 10 seconds, to save battery while the scanner is left open.  Devices
+        // with the camera2 API capture through it.  The detection workers stay alive while
+        // paused, so that scanning resumes quickly.  1600x1200 is only an upper bound: on the
+        // first start, the largest size at which the detector keeps up with 10 decodes per second
+        // on this device is picked, and remembered.  Small and distant barcodes are zoomed in on,
+        // and the zoom goes back out once one was read.  The torch comes on by itself in the
+        // dark.
         CameraSource.Builder builder = new CameraSource.Builder(getApplicationContext(), barcodeDetector)
+                .setCamera2(true)
+                .setWarmRestart(true)
                 .setFacing(CameraSource.CAMERA_FACING_BACK)
                 .setRequestedPreviewSize(1600, 1200)
-                .setRequestedFps(15.0f);
+                .setAutoPreviewSize(10.0f)
+                .setRequestedFps(15.0f)
+                .setAdaptiveFrameRate(IDLE_FPS, IDLE_TIMEOUT_MILLIS)
+                .setProcessor(barcodeProcessor)
+                .setRegionMapper(new BarcodeRegionMapper())
+                .setCoarseToFineDetection(true)
+                .setSharpnessGate(true)
+                .setSceneChangeGate(true)
+                .setAutoZoom(autoZoom)
+                .setAutoTorch(true);
 
         // make sure that auto focus is an available option
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
@@ -281,20 +351,21 @@ public class ScannerActivity extends AppCompatActivity {
     }
 
 
-    private BarcodeDetectionListener mBarcodeListener = new BarcodeDetectionListener() {
+    private DecodeDeduplicator.Listener mDecodeListener = new DecodeDeduplicator.Listener() {
 
         @Override
-        public void onBarcodeDetected(final Detector.Detections<Barcode> detectionResults,
-                                      final Barcode item) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    // just show somewhere in UI now
-                    TextView text = (TextView) findViewById(R.id.info_text);
-                    text.setText(item.displayValue);
-                }
-            });
+        public void onNewCode(Barcode item) {
+            showCode(item);
+        }
+
+        @Override
+        public void onCodeReseen(Barcode item, long absentMillis) {
+            showCode(item);
+        }
 
+        private void showCode(Barcode item) {
+            // just show somewhere in UI now
+            mInfoText.setText(item.displayValue);
         }
     };
 }
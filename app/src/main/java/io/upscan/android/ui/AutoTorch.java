@@ -0,0 +1,160 @@
+package io.upscan.android.ui;
+
+import java.util.Locale;
+
+/**
+ * Switches the torch on in dim scenes and back off in bright ones.  See
+ * {@link CameraSource.Builder#setAutoTorch(boolean)}.
+ * <p/>
+ * Every {@link #SAMPLE_INTERVAL_FRAMES}-th frame is scored by the mean of a sparse sample of its
+ * luma plane (see {@link io.upscan.android.util.Nv21Utils#getMeanLuma}), and the scores are
+ * smoothed into a running mean.  The torch goes on when the running mean falls below
+ * {@link #TORCH_ON_LUMA}, i.e., when the auto exposure can't make up for the lack of light.
+ * <p/>
+ * The luma can't tell when to switch the torch back off, since the auto exposure pulls a scene
+ * lit by the torch back to a medium luma however bright the ambient light gets.  So once the
+ * exposure has settled after switching on, the running mean of the brightness of the scene is
+ * taken as the level of the torch alone, and the torch goes off when the brightness rises well
+ * above that level.  Where the camera reports its exposure, the brightness is the luma per unit
+ * of exposure, which the auto exposure doesn't cancel, and it has to rise by
+ * {@link #TORCH_OFF_RATIO}.  Otherwise the brightness is the luma itself, which only rises once
+ * the auto exposure has run out of range, by {@link #TORCH_OFF_LUMA_RATIO}.
+ * <p/>
+ * The torch isn't switched again for {@link #MIN_SWITCH_INTERVAL_MILLIS}, so that neither
+ * flicker nor the exposure settling after a switch make it toggle back and forth.
+ */
+public class AutoTorch {
+
+    // Frames are sampled at this interval, since the light doesn't change from frame to frame.
+    static final int SAMPLE_INTERVAL_FRAMES = 4;
+
+    // Weight of the newest sample in the running mean.
+    static final float SMOOTHING = 0.25f;
+
+    static final float TORCH_ON_LUMA = 40.0f;
+
+    // Rise of the brightness over the level of the torch that switches it off, with and without
+    // the exposure of the camera.
+    static final float TORCH_OFF_RATIO = 4.0f;
+    static final float TORCH_OFF_LUMA_RATIO = 1.5f;
+
+    static final long MIN_SWITCH_INTERVAL_MILLIS = 3000;
+
+    // Guarded by this.
+    private int mFrames;
+    private float mMeanLuma = -1;
+    private float mMeanBrightness = -1;
+    private boolean mExposureKnown;
+    private float mTorchBrightness = -1;
+    private boolean mTorchOn;
+    private long mLastSwitchMillis = Long.MIN_VALUE / 2;
+    private long mSamples;
+    private long mSwitches;
+
+    /**
+     * Counts a frame, and decides whether its luma should be sampled.
+     */
+    synchronized boolean shouldSample() {
+        return (mFrames++ % SAMPLE_INTERVAL_FRAMES) == 0;
+    }
+
+    /**
+     * Adds the mean luma of a sampled frame to the running mean, and decides on the torch.
+     *
+     * @param luma     the mean luma of the frame, from 0 to 255
+     * @param exposure the exposure of the frame, in any unit proportional to the exposure time
+     *                 times the sensitivity, or 0 if the camera doesn't report it
+     * @return 1 to switch the torch on, -1 to switch it off, or 0 to leave it as is
+     */
+    synchronized int onLuma(float luma, float exposure, long nowMillis) {
+        mSamples++;
+        boolean exposureKnown = exposure > 0;
+        if (exposureKnown != mExposureKnown) {
+            // Brightness with and without the exposure doesn't compare.
+            mExposureKnown = exposureKnown;
+            mMeanBrightness = -1;
+            mTorchBrightness = -1;
+        }
+        float brightness = exposureKnown ? luma / exposure : luma;
+        mMeanLuma = (mMeanLuma < 0) ? luma : mMeanLuma + SMOOTHING * (luma - mMeanLuma);
+        mMeanBrightness = (mMeanBrightness < 0) ? brightness :
+                mMeanBrightness + SMOOTHING * (brightness - mMeanBrightness);
+        if (nowMillis - mLastSwitchMillis < MIN_SWITCH_INTERVAL_MILLIS) {
+            return 0;
+        }
+
+        boolean torchOn;
+        if (!mTorchOn) {
+            torchOn = mMeanLuma < TORCH_ON_LUMA;
+        } else if (mTorchBrightness < 0) {
+            // The exposure has settled in the light of the torch.
+            mTorchBrightness = mMeanBrightness;
+            return 0;
+        } else {
+            torchOn = mMeanBrightness <= mTorchBrightness *
+                    (exposureKnown ? TORCH_OFF_RATIO : TORCH_OFF_LUMA_RATIO);
+        }
+        if (torchOn == mTorchOn) {
+            return 0;
+        }
+        mTorchOn = torchOn;
+        mLastSwitchMillis = nowMillis;
+        mSwitches++;
+        // The scene looks different in the new light, so the means start over.
+        mMeanLuma = -1;
+        mMeanBrightness = -1;
+        mTorchBrightness = -1;
+        return torchOn ? 1 : -1;
+    }
+
+    /**
+     * Starts over from the given torch state and clears the counters, e.g., when the camera is
+     * (re)started.
+     */
+    public synchronized void reset(boolean torchOn) {
+        mFrames = 0;
+        mMeanLuma = -1;
+        mMeanBrightness = -1;
+        mTorchBrightness = -1;
+        mTorchOn = torchOn;
+        mLastSwitchMillis = Long.MIN_VALUE / 2;
+        mSamples = 0;
+        mSwitches = 0;
+    }
+
+    /**
+     * Returns whether the torch was last switched on.
+     */
+    public synchronized boolean isTorchOn() {
+        return mTorchOn;
+    }
+
+    /**
+     * Returns the running mean of the luma since the last switch, or -1 if there is none yet.
+     */
+    public synchronized float getMeanLuma() {
+        return mMeanLuma;
+    }
+
+    /**
+     * Returns the brightness of the scene in the light of the torch alone, or -1 if the torch is
+     * off or the exposure hasn't settled yet.
+     */
+    public synchronized float getTorchBrightness() {
+        return mTorchBrightness;
+    }
+
+    public synchronized long getSamples() {
+        return mSamples;
+    }
+
+    public synchronized long getSwitches() {
+        return mSwitches;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "AutoTorch: %d switches over %d samples, torch %s",
+                mSwitches, mSamples, mTorchOn ? "on" : "off");
+    }
+}
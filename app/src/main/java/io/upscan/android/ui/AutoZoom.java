@@ -0,0 +1,154 @@
+package io.upscan.android.ui;
+
+import java.util.Locale;
+
+/**
+ * Zooms in on barcodes which are too small or too far away to be read well, and back out once
+ * one was read.  See {@link CameraSource.Builder#setAutoZoom(AutoZoom)}.
+ * <p/>
+ * The zoom steps in, one step at a time and at most every {@link #STEP_INTERVAL_MILLIS}, while
+ * <ul>
+ * <li>the smallest item reported by the trackers, see {@link #onItemTracked(int, int)}, covers
+ * less than {@link #SMALL_ITEM_FRACTION} of the frame, or</li>
+ * <li>nothing was detected in a run of frames in which barcode-like structure was found, which
+ * is only known with coarse to fine detection.</li>
+ * </ul>
+ * Once an item was read at a size that isn't small while zoomed in, the zoom steps back out to
+ * where it started after a short hold, and doesn't step in again for a while, so that the next
+ * barcode is found at a wide angle first.  The zoom also steps back out when nothing was seen for
+ * a while.  An auto zoom should only be used by one camera source at a time.
+ */
+public class AutoZoom {
+
+    /**
+     * Number of steps from no zoom to the maximum zoom of the camera.
+     */
+    public static final int STEPS_TO_MAX_ZOOM = 20;
+
+    // Items covering less than this fraction of the frame area are zoomed in on.
+    static final float SMALL_ITEM_FRACTION = 0.02f;
+
+    // How many steps the zoom goes in at most.
+    static final int MAX_STEPS = 8;
+
+    static final long STEP_INTERVAL_MILLIS = 300;
+
+    // Frames in a row with a near miss before zooming in.
+    static final int NEAR_MISS_RUN = 4;
+
+    // How long the zoom is held after a read before stepping back out.
+    static final long READ_HOLD_MILLIS = 800;
+
+    // How long after stepping back out the zoom doesn't step in again.
+    static final long COOLDOWN_MILLIS = 2500;
+
+    // How long without any items or near misses before stepping back out.
+    static final long IDLE_MILLIS = 3000;
+
+    // Guarded by this.
+    private int mSteps;
+    private long mLastStepMillis = Long.MIN_VALUE / 2;
+    private long mCooldownUntilMillis = Long.MIN_VALUE;
+    private long mZoomOutAtMillis = -1;
+    private long mLastActivityMillis;
+    private int mNearMissRun;
+    private long mFrameArea;
+    private long mSmallestItemArea = Long.MAX_VALUE;
+    private long mZoomInSteps;
+    private long mZoomOuts;
+
+    /**
+     * Reports an item which was detected in the current frame, e.g., from its tracker, with the
+     * size of its bounding box in frame coordinates.
+     */
+    public synchronized void onItemTracked(int width, int height) {
+        mSmallestItemArea = Math.min(mSmallestItemArea, (long) width * height);
+    }
+
+    /**
+     * Reports a frame which went through detection.
+     *
+     * @param nearMiss true if barcode-like structure was found but nothing was detected
+     */
+    synchronized void onFrameDetected(int width, int height, boolean nearMiss) {
+        mFrameArea = (long) width * height;
+        mNearMissRun = nearMiss ? mNearMissRun + 1 : 0;
+    }
+
+    /**
+     * Decides on the zoom after the results of a frame were delivered to the trackers.
+     *
+     * @return the number of steps to zoom in by, negative to zoom out, or 0 to keep the zoom
+     */
+    synchronized int update(long nowMillis) {
+        boolean tracked = mSmallestItemArea != Long.MAX_VALUE;
+        boolean small = tracked && (mSmallestItemArea < SMALL_ITEM_FRACTION * mFrameArea);
+        mSmallestItemArea = Long.MAX_VALUE;
+        if (tracked || (mNearMissRun > 0)) {
+            mLastActivityMillis = nowMillis;
+        }
+
+        if (mSteps > 0) {
+            if (tracked && !small && (mZoomOutAtMillis < 0)) {
+                mZoomOutAtMillis = nowMillis + READ_HOLD_MILLIS;
+            }
+            if (((mZoomOutAtMillis >= 0) && (nowMillis >= mZoomOutAtMillis)) ||
+                    (nowMillis - mLastActivityMillis >= IDLE_MILLIS)) {
+                int steps = mSteps;
+                mSteps = 0;
+                mZoomOutAtMillis = -1;
+                mCooldownUntilMillis = nowMillis + COOLDOWN_MILLIS;
+                mZoomOuts++;
+                return -steps;
+            }
+        }
+
+        boolean zoomIn = small || (!tracked && (mNearMissRun >= NEAR_MISS_RUN));
+        if (zoomIn && (mZoomOutAtMillis < 0) && (mSteps < MAX_STEPS) &&
+                (nowMillis >= mCooldownUntilMillis) &&
+                (nowMillis - mLastStepMillis >= STEP_INTERVAL_MILLIS)) {
+            mSteps++;
+            mLastStepMillis = nowMillis;
+            mNearMissRun = 0;
+            mZoomInSteps++;
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Forgets the zoom and clears the counters, e.g., when the camera is (re)started, which
+     * resets the zoom of the camera.
+     */
+    public synchronized void reset() {
+        mSteps = 0;
+        mLastStepMillis = Long.MIN_VALUE / 2;
+        mCooldownUntilMillis = Long.MIN_VALUE;
+        mZoomOutAtMillis = -1;
+        mNearMissRun = 0;
+        mSmallestItemArea = Long.MAX_VALUE;
+        mZoomInSteps = 0;
+        mZoomOuts = 0;
+    }
+
+    /**
+     * Returns how many steps the zoom is currently zoomed in by.
+     */
+    public synchronized int getSteps() {
+        return mSteps;
+    }
+
+    public synchronized long getZoomInSteps() {
+        return mZoomInSteps;
+    }
+
+    public synchronized long getZoomOuts() {
+        return mZoomOuts;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "AutoZoom: %d steps in, %d zoom outs, at %d steps",
+                mZoomInSteps, mZoomOuts, mSteps);
+    }
+}
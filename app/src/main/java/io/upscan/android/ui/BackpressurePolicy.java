@@ -0,0 +1,167 @@
+package io.upscan.android.ui;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which frames reach the detector when frames arrive faster than they are detected.  See
+ * {@link CameraSource.Builder#setBackpressurePolicy(BackpressurePolicy)}.
+ * <ul>
+ * <li>{@link #latestWins()} keeps only the newest pending frame (one per detection worker), so
+ * that every detection works on the freshest frame.  Lowest latency, for single scans.</li>
+ * <li>{@link #boundedQueue(int)} queues up to a number of frames in arrival order, and drops the
+ * newest frames while the queue is full.  Bursts are absorbed instead of thinned out.</li>
+ * <li>{@link #decimation(int)} passes on every n-th frame at a steady cadence, with the newest
+ * of those frames winning as above, e.g., for batch inventory where a predictable load matters
+ * more than latency.</li>
+ * </ul>
+ * Each policy counts the frames which were processed, i.e., taken by a detection worker; dropped,
+ * i.e., displaced by or rejected in favor of other frames because detection was busy; and
+ * recycled, i.e., handed back to the frame source unprocessed by design, because they were skipped
+ * by decimation or were still pending when the camera source stopped.  A policy should only be
+ * used by one camera source at a time.
+ */
+public class BackpressurePolicy {
+
+    /**
+     * Upper bound of the queue capacity and decimation interval.
+     */
+    public static final int MAX_PARAMETER = 16;
+
+    private static final int LATEST_WINS = 0;
+    private static final int BOUNDED_QUEUE = 1;
+    private static final int DECIMATION = 2;
+
+    private final int mMode;
+    private final int mParameter;
+
+    private final AtomicLong mProcessedFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mRecycledFrames = new AtomicLong();
+
+    // Only accessed on the thread of the frame source.
+    private long mArrivedFrames;
+
+    /**
+     * Returns a policy which keeps only the newest pending frame.  This is the default.
+     */
+    public static BackpressurePolicy latestWins() {
+        return new BackpressurePolicy(LATEST_WINS, 0);
+    }
+
+    /**
+     * Returns a policy which queues up to {@code capacity} frames, and drops arriving frames
+     * while the queue is full.  Each queued frame holds on to a preview buffer, so the number of
+     * preview buffers is raised as needed.
+     */
+    public static BackpressurePolicy boundedQueue(int capacity) {
+        if ((capacity < 1) || (capacity > MAX_PARAMETER)) {
+            throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        }
+        return new BackpressurePolicy(BOUNDED_QUEUE, capacity);
+    }
+
+    /**
+     * Returns a policy which passes on only the first of every {@code interval} frames, and
+     * recycles the others right away.
+     */
+    public static BackpressurePolicy decimation(int interval) {
+        if ((interval < 1) || (interval > MAX_PARAMETER)) {
+            throw new IllegalArgumentException("Invalid decimation interval: " + interval);
+        }
+        return new BackpressurePolicy(DECIMATION, interval);
+    }
+
+    private BackpressurePolicy(int mode, int parameter) {
+        mMode = mode;
+        mParameter = parameter;
+    }
+
+    /**
+     * Returns how many frames may be pending for the given number of detection workers.
+     */
+    int getPendingCapacity(int parallelism) {
+        return (mMode == BOUNDED_QUEUE) ? mParameter : parallelism;
+    }
+
+    /**
+     * Returns whether arriving frames are dropped while the pending frames are at capacity,
+     * rather than displacing the oldest pending frame.
+     */
+    boolean dropsNewest() {
+        return mMode == BOUNDED_QUEUE;
+    }
+
+    /**
+     * Returns whether the pending frames can be held in a single slot, for a single worker.
+     */
+    boolean isLatestOnly(int parallelism) {
+        return (mMode != BOUNDED_QUEUE) && (parallelism == 1);
+    }
+
+    /**
+     * Decides whether an arriving frame is passed on.  Must be called on the thread of the frame
+     * source.  A frame which isn't passed on is counted as recycled.
+     */
+    boolean accept() {
+        boolean accepted = (mMode != DECIMATION) || (mArrivedFrames % mParameter == 0);
+        mArrivedFrames++;
+        if (!accepted) {
+            mRecycledFrames.incrementAndGet();
+        }
+        return accepted;
+    }
+
+    void onProcessed() {
+        mProcessedFrames.incrementAndGet();
+    }
+
+    void onDropped() {
+        mDroppedFrames.incrementAndGet();
+    }
+
+    void onRecycled() {
+        mRecycledFrames.incrementAndGet();
+    }
+
+    /**
+     * Clears the counters, e.g., when the camera is (re)started.
+     */
+    public void reset() {
+        mArrivedFrames = 0;
+        mProcessedFrames.set(0);
+        mDroppedFrames.set(0);
+        mRecycledFrames.set(0);
+    }
+
+    public long getProcessedFrames() {
+        return mProcessedFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    public long getRecycledFrames() {
+        return mRecycledFrames.get();
+    }
+
+    @Override
+    public String toString() {
+        String mode;
+        switch (mMode) {
+            case BOUNDED_QUEUE:
+                mode = "bounded queue of " + mParameter;
+                break;
+            case DECIMATION:
+                mode = "every " + mParameter + " frames";
+                break;
+            default:
+                mode = "latest wins";
+                break;
+        }
+        return String.format(Locale.US, "BackpressurePolicy (%s): processed %d, dropped %d, " +
+                "recycled %d frames", mode, getProcessedFrames(), getDroppedFrames(),
+                getRecycledFrames());
+    }
+}
@@ -0,0 +1,1033 @@
+package io.upscan.android.ui;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Range;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import com.google.android.gms.common.images.Size;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.upscan.android.util.GeometryUtils;
+import io.upscan.android.util.Nv21Utils;
+
+/**
+ * The camera as a frame source, through the camera2 API.  Frames are captured by an
+ * {@link ImageReader} in {@link ImageFormat#YUV_420_888} and packed into the preview buffers as
+ * NV21 with bulk copies of the planes, see {@link Nv21Utils#fromYuv420}.  Focus, flash, zoom and
+ * the frame rate are set on the repeating capture request.  See
+ * {@link CameraSource.Builder#setCamera2(boolean)}.
+ * <p/>
+ * The focus and flash modes are those of the camera1 API, which are mapped to the closest camera2
+ * control modes, so that the camera source behaves the same with either API.
+ * <p/>
+ * The camera callbacks and the images are handled on a thread of this source.  The state shared
+ * with the callers is guarded by this source.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2FrameSource implements FrameSource {
+
+    private static final String TAG = "Camera2FrameSource";
+    private static final String THREAD_NAME = "Camera2";
+
+    // Images are packed into a preview buffer and closed as soon as they arrive, so the reader
+    // only needs room for the image being packed and the next one.  The frames waiting for the
+    // detector are held in the preview buffers instead, which are sized for the detection workers.
+    private static final int MAX_IMAGES = 2;
+
+    private static final long START_TIMEOUT_MILLIS = 2500;
+
+    // Prefix of the camera ids under which the preview size tuner remembers its picks.
+    private static final String TUNER_CAMERA_KEY_PREFIX = "camera2.";
+
+    // Number of zoom steps between no zoom and the maximum digital zoom, like the zoom values of
+    // the camera1 API.
+    private static final int MAX_ZOOM = 99;
+
+    private final Context mContext;
+    private final PreviewBufferPool mBufferPool;
+    private final ThreadTimings mThreadTimings;
+    private final int mFacing;
+    private final int mRequestedPreviewWidth;
+    private final int mRequestedPreviewHeight;
+    private final int mBufferCount;
+    private final ArrayBlockingQueue<byte[]> mFreeBuffers;
+
+    private float mFps;
+    private String mFocusMode;
+    private String mFlashMode;
+    private SurfaceHolder mPreviewDisplay;
+    private PreviewSizeTuner mPreviewSizeTuner;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private CameraCharacteristics mCharacteristics;
+    private ImageReader mImageReader;
+    private CameraDevice mDevice;
+    private CameraCaptureSession mSession;
+    private CaptureRequest.Builder mRequest;
+    private CountDownLatch mStarted;
+    private IOException mStartError;
+
+    private Size mPreviewSize;
+    private int mRotation;
+    private int mZoom;
+    // In upright preview frame coordinates, or null to let the camera pick.
+    private Rect mFocusArea;
+
+    private CameraSource.AutoFocusCallback mAutoFocusCallback;
+    private CameraSource.AutoFocusMoveCallback mAutoFocusMoveCallback;
+    private int mLastFocusState = -1;
+
+    private volatile FrameSource.Callback mCallback;
+    private volatile long mDroppedFrames;
+    // Of the last capture result, see getExposure().
+    private volatile float mExposure;
+
+    // Only accessed on the thread of this source.
+    private int mFrameId;
+    private long mFirstTimestampNanos;
+    // Found out from the first images of every image reader, see Nv21Utils#getChromaLayout.
+    private int mChromaLayout;
+
+    /**
+     * @param facing      one of {@link CameraSource#CAMERA_FACING_BACK} or
+     *                    {@link CameraSource#CAMERA_FACING_FRONT}
+     * @param bufferCount the number of preview buffers in the pool
+     */
+    Camera2FrameSource(Context context, PreviewBufferPool bufferPool, ThreadTimings threadTimings,
+                       int facing, int requestedPreviewWidth, int requestedPreviewHeight,
+                       float requestedFps, @Nullable String focusMode, @Nullable String flashMode,
+                       int bufferCount) {
+        mContext = context;
+        mBufferPool = bufferPool;
+        mThreadTimings = threadTimings;
+        mFacing = facing;
+        mRequestedPreviewWidth = requestedPreviewWidth;
+        mRequestedPreviewHeight = requestedPreviewHeight;
+        mFps = requestedFps;
+        mFocusMode = focusMode;
+        mFlashMode = flashMode;
+        mBufferCount = bufferCount;
+        mFreeBuffers = new ArrayBlockingQueue<>(bufferCount);
+    }
+
+    /**
+     * Sets the surface holder on which the preview is displayed from the next start, or null to
+     * not display the preview.
+     */
+    synchronized void setPreviewDisplay(@Nullable SurfaceHolder holder) {
+        mPreviewDisplay = holder;
+    }
+
+    /**
+     * Sets the tuner which picks the preview size from the next start, or null to use the
+     * supported size closest to the requested size.
+     */
+    synchronized void setPreviewSizeTuner(@Nullable PreviewSizeTuner tuner) {
+        mPreviewSizeTuner = tuner;
+    }
+
+    /**
+     * Opens the camera and waits for the capture session to be running.
+     */
+    @SuppressLint("MissingPermission")
+    @Override
+    public void start(Callback callback) throws IOException {
+        tunePreviewSize();
+        CountDownLatch started;
+        synchronized (this) {
+            if (mThread != null) {
+                return;
+            }
+            CameraManager manager =
+                    (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+            try {
+                String cameraId = getIdForRequestedCamera(manager, mFacing);
+                if (cameraId == null) {
+                    throw new IOException("Could not find requested camera.");
+                }
+                mCharacteristics = manager.getCameraCharacteristics(cameraId);
+                configure(cameraId);
+
+                mThread = new HandlerThread(THREAD_NAME);
+                mThread.start();
+                mHandler = new Handler(mThread.getLooper());
+                mImageReader = ImageReader.newInstance(mPreviewSize.getWidth(),
+                        mPreviewSize.getHeight(), ImageFormat.YUV_420_888, MAX_IMAGES);
+                mImageReader.setOnImageAvailableListener(mImageListener, mHandler);
+
+                mCallback = callback;
+                mStarted = new CountDownLatch(1);
+                mStartError = null;
+                started = mStarted;
+                manager.openCamera(cameraId, mDeviceCallback, mHandler);
+            } catch (CameraAccessException e) {
+                stop();
+                throw new IOException("Could not open the camera.", e);
+            } catch (IOException | RuntimeException e) {
+                stop();
+                throw e;
+            }
+        }
+
+        IOException error;
+        try {
+            if (!started.await(START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                error = new IOException("Timed out opening the camera.");
+            } else {
+                synchronized (this) {
+                    error = mStartError;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = new InterruptedIOException("Interrupted while opening the camera.");
+        }
+        if (error != null) {
+            stop();
+            throw error;
+        }
+    }
+
+    /**
+     * Closes the camera.
+     */
+    @Override
+    public void stop() {
+        HandlerThread thread;
+        synchronized (this) {
+            mCallback = null;
+            if (mSession != null) {
+                mSession.close();
+                mSession = null;
+            }
+            if (mDevice != null) {
+                mDevice.close();
+                mDevice = null;
+            }
+            mRequest = null;
+            mAutoFocusCallback = null;
+            if ((mStarted != null) && (mStarted.getCount() > 0)) {
+                mStartError = new IOException("Stopped while opening the camera.");
+                mStarted.countDown();
+            }
+
+            thread = mThread;
+            mThread = null;
+            if (thread == null) {
+                return;
+            }
+            // Closed on the thread of this source, so that it can't be closed while an image is
+            // being packed.
+            final ImageReader imageReader = mImageReader;
+            mImageReader = null;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    imageReader.close();
+                }
+            });
+            mHandler = null;
+        }
+
+        thread.quitSafely();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void recycle(byte[] data) {
+        // Buffers of a previous preview size are weeded out when they are taken from the queue,
+        // on the thread of this source.
+        mFreeBuffers.offer(data);
+    }
+
+    /**
+     * Returns the preview size of the last start, or null if never started.
+     */
+    synchronized Size getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    /**
+     * Returns the number of images dropped since no preview buffer was free.
+     */
+    long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Returns the exposure of the last capture, as the exposure time in milliseconds times the
+     * sensitivity in ISO 100, or 0 if the camera hasn't reported it (yet).
+     */
+    float getExposure() {
+        return mExposure;
+    }
+
+    @Nullable
+    synchronized String getFocusMode() {
+        return mFocusMode;
+    }
+
+    /**
+     * Sets the focus mode, if the camera is running and supports it.
+     *
+     * @param mode one of the focus modes of {@link Camera.Parameters}
+     */
+    synchronized boolean setFocusMode(String mode) {
+        if ((mRequest == null) || !isFocusModeSupported(mode)) {
+            return false;
+        }
+        mFocusMode = mode;
+        applyFocusMode();
+        return updateRepeatingRequest();
+    }
+
+    @Nullable
+    synchronized String getFlashMode() {
+        return mFlashMode;
+    }
+
+    /**
+     * Sets the flash mode, if the camera is running and supports it.
+     *
+     * @param mode one of the flash modes of {@link Camera.Parameters}
+     */
+    synchronized boolean setFlashMode(String mode) {
+        if ((mRequest == null) || !isFlashModeSupported(mode)) {
+            return false;
+        }
+        mFlashMode = mode;
+        applyFlashMode();
+        return updateRepeatingRequest();
+    }
+
+    /**
+     * Zooms by the given scale, in steps like those of the camera1 API.  See
+     * {@link CameraSource#doZoom(float)}.
+     *
+     * @return the new zoom value
+     */
+    synchronized int zoom(float scale) {
+        if (mRequest == null) {
+            return 0;
+        }
+        if (getMaxDigitalZoom() <= 1) {
+            Log.w(TAG, "Zoom is not supported on this device");
+            return 0;
+        }
+        mZoom = CameraSource.getScaledZoom(mZoom, MAX_ZOOM, scale);
+        applyZoom();
+        applyFocusArea();
+        updateRepeatingRequest();
+        return mZoom;
+    }
+
+    /**
+     * Zooms by the given number of auto zoom steps.  See {@link CameraSource#getSteppedZoom}.
+     *
+     * @return the new zoom value
+     */
+    synchronized int zoomBySteps(int steps) {
+        if ((mRequest == null) || (getMaxDigitalZoom() <= 1)) {
+            return 0;
+        }
+        mZoom = CameraSource.getSteppedZoom(mZoom, MAX_ZOOM, steps);
+        applyZoom();
+        applyFocusArea();
+        updateRepeatingRequest();
+        return mZoom;
+    }
+
+    /**
+     * Focuses and meters on the given area.  See {@link CameraSource#setFocusAreaSource}.
+     *
+     * @param upright the area in upright preview frame coordinates
+     */
+    synchronized void setFocusArea(Rect upright) {
+        if (mRequest == null) {
+            return;
+        }
+        mFocusArea = new Rect(upright);
+        applyFocusArea();
+        updateRepeatingRequest();
+    }
+
+    /**
+     * Changes the target frame rate of the running camera.
+     */
+    synchronized void setFrameRate(float fps) {
+        mFps = fps;
+        if (mRequest == null) {
+            return;
+        }
+        Range<Integer> current = mRequest.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
+        applyFrameRate();
+        if (!mRequest.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE).equals(current)) {
+            updateRepeatingRequest();
+        }
+    }
+
+    /**
+     * Triggers a focus scan, and calls back once the focus is locked.  Cameras without auto
+     * focus call back immediately, like with the camera1 API.
+     */
+    void autoFocus(@Nullable CameraSource.AutoFocusCallback cb) {
+        synchronized (this) {
+            if (mRequest == null) {
+                return;
+            }
+            Integer mode = mRequest.get(CaptureRequest.CONTROL_AF_MODE);
+            if ((mode != null) && (mode != CameraMetadata.CONTROL_AF_MODE_OFF) &&
+                    (mode != CameraMetadata.CONTROL_AF_MODE_EDOF)) {
+                mAutoFocusCallback = cb;
+                mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                        CameraMetadata.CONTROL_AF_TRIGGER_START);
+                capture();
+                mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                        CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+                return;
+            }
+        }
+        if (cb != null) {
+            cb.onAutoFocus(true);
+        }
+    }
+
+    /**
+     * Cancels a focus scan triggered by {@link #autoFocus}.
+     */
+    synchronized void cancelAutoFocus() {
+        if (mRequest == null) {
+            return;
+        }
+        mAutoFocusCallback = null;
+        mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+        capture();
+        mRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+    }
+
+    /**
+     * Sets the callback for when the continuous auto focus starts or stops moving.
+     */
+    synchronized void setAutoFocusMoveCallback(@Nullable CameraSource.AutoFocusMoveCallback cb) {
+        mAutoFocusMoveCallback = cb;
+    }
+
+    //==============================================================================================
+    // Private
+    //==============================================================================================
+
+    /**
+     * Selects the preview size and the rotation for the camera, and prepares the preview buffers
+     * and the display.
+     */
+    private void configure(String cameraId) throws IOException {
+        List<android.util.Size> sizes = getPreviewSizes(mCharacteristics);
+        int requestedWidth = mRequestedPreviewWidth;
+        int requestedHeight = mRequestedPreviewHeight;
+        if (mPreviewSizeTuner != null) {
+            int[] tunedSize = getTunedPreviewSize(mPreviewSizeTuner, cameraId, sizes);
+            requestedWidth = tunedSize[0];
+            requestedHeight = tunedSize[1];
+        }
+        android.util.Size size = selectSize(sizes, requestedWidth, requestedHeight);
+        if (size == null) {
+            throw new IOException("Could not find suitable preview size.");
+        }
+        mPreviewSize = new Size(size.getWidth(), size.getHeight());
+        Log.d(TAG, "Preview size: " + mPreviewSize);
+
+        int degrees = CameraSource.getDisplayRotationDegrees(mContext);
+        int orientation = mCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        int angle;
+        if (mFacing == CameraSource.CAMERA_FACING_FRONT) {
+            angle = (orientation + degrees) % 360;
+        } else {
+            angle = (orientation - degrees + 360) % 360;
+        }
+        // This corresponds to the rotation constants in Frame.
+        mRotation = angle / 90;
+
+        // The buffers of the previous session are reused if the preview size didn't change.
+        if (!mBufferPool.ensure(mPreviewSize.getWidth(), mPreviewSize.getHeight(), mBufferCount)) {
+            Log.d(TAG, "Allocated " + mBufferCount + " preview buffers, " +
+                    mBufferPool.getFootprintBytes() + " bytes");
+        }
+        mFreeBuffers.clear();
+        for (int i = 0; i < mBufferPool.size(); ++i) {
+            mFreeBuffers.offer(mBufferPool.get(i).mData);
+        }
+        mFrameId = 0;
+        mFirstTimestampNanos = -1;
+        mExposure = 0;
+        mChromaLayout = Nv21Utils.CHROMA_LAYOUT_UNKNOWN;
+        mZoom = 0;
+        mFocusArea = null;
+        mLastFocusState = -1;
+
+        if (mPreviewDisplay != null) {
+            // Resizing the surface lays out its view, which must happen on the main thread.  If
+            // the session is configured before that, the camera picks a size close to the view.
+            final SurfaceHolder display = mPreviewDisplay;
+            final Size previewSize = mPreviewSize;
+            Runnable resize = new Runnable() {
+                @Override
+                public void run() {
+                    display.setFixedSize(previewSize.getWidth(), previewSize.getHeight());
+                }
+            };
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                resize.run();
+            } else {
+                new Handler(Looper.getMainLooper()).post(resize);
+            }
+        }
+    }
+
+    private final CameraDevice.StateCallback mDeviceCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice device) {
+            synchronized (Camera2FrameSource.this) {
+                if (mCallback == null) {
+                    // Stopped while opening.
+                    device.close();
+                    return;
+                }
+                mDevice = device;
+                List<Surface> surfaces = new ArrayList<>();
+                surfaces.add(mImageReader.getSurface());
+                if (mPreviewDisplay != null) {
+                    surfaces.add(mPreviewDisplay.getSurface());
+                }
+                try {
+                    device.createCaptureSession(surfaces, mSessionCallback, mHandler);
+                } catch (CameraAccessException | RuntimeException e) {
+                    fail(new IOException("Could not create the capture session.", e));
+                }
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice device) {
+            onDeviceFailed(device, new IOException("Camera disconnected."));
+        }
+
+        @Override
+        public void onError(CameraDevice device, int error) {
+            onDeviceFailed(device, new IOException("Camera error " + error));
+        }
+    };
+
+    private synchronized void onDeviceFailed(CameraDevice device, IOException error) {
+        device.close();
+        if (mDevice == device) {
+            mDevice = null;
+            mSession = null;
+            mRequest = null;
+        }
+        fail(error);
+    }
+
+    private final CameraCaptureSession.StateCallback mSessionCallback =
+            new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession session) {
+                    synchronized (Camera2FrameSource.this) {
+                        if (mDevice == null) {
+                            session.close();
+                            return;
+                        }
+                        mSession = session;
+                        try {
+                            mRequest = mDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                        } catch (CameraAccessException | RuntimeException e) {
+                            fail(new IOException("Could not create the capture request.", e));
+                            return;
+                        }
+                        mRequest.addTarget(mImageReader.getSurface());
+                        if (mPreviewDisplay != null) {
+                            mRequest.addTarget(mPreviewDisplay.getSurface());
+                        }
+
+                        if ((mFocusMode != null) && !isFocusModeSupported(mFocusMode)) {
+                            Log.i(TAG, "Camera focus mode: " + mFocusMode +
+                                    " is not supported on this device.");
+                            mFocusMode = null;
+                        }
+                        if ((mFlashMode != null) && !isFlashModeSupported(mFlashMode)) {
+                            Log.i(TAG, "Camera flash mode: " + mFlashMode +
+                                    " is not supported on this device.");
+                            mFlashMode = null;
+                        }
+                        applyFocusMode();
+                        applyFlashMode();
+                        applyZoom();
+                        applyFocusArea();
+                        applyFrameRate();
+                        if (!updateRepeatingRequest()) {
+                            fail(new IOException("Could not start the capture session."));
+                            return;
+                        }
+                        if (mStarted != null) {
+                            mStarted.countDown();
+                        }
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession session) {
+                    synchronized (Camera2FrameSource.this) {
+                        fail(new IOException("Could not configure the capture session."));
+                    }
+                }
+            };
+
+    private final CameraCaptureSession.CaptureCallback mCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                               TotalCaptureResult result) {
+                    Integer state = result.get(CaptureResult.CONTROL_AF_STATE);
+                    if (state != null) {
+                        onFocusState(state);
+                    }
+                    Long exposureNanos = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                    Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                    if ((exposureNanos != null) && (sensitivity != null)) {
+                        mExposure = exposureNanos / 1000000.0f * sensitivity / 100.0f;
+                    }
+                }
+            };
+
+    private final ImageReader.OnImageAvailableListener mImageListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    long startNanos = System.nanoTime();
+                    Image image = reader.acquireLatestImage();
+                    if (image == null) {
+                        return;
+                    }
+                    try {
+                        onImage(image);
+                    } finally {
+                        image.close();
+                    }
+                    mThreadTimings.record(startNanos);
+                }
+            };
+
+    /**
+     * Packs the image into a free preview buffer and passes it on.  Called on the thread of this
+     * source.
+     */
+    private void onImage(Image image) {
+        Callback callback = mCallback;
+        if (callback == null) {
+            return;
+        }
+        byte[] data = takeFreeBuffer();
+        if (data == null) {
+            mDroppedFrames++;
+            return;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+        if (mChromaLayout == Nv21Utils.CHROMA_LAYOUT_UNKNOWN) {
+            mChromaLayout = Nv21Utils.getChromaLayout(planes[1].getBuffer(),
+                    planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    width, height);
+        }
+        Nv21Utils.fromYuv420(planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(),
+                planes[1].getPixelStride(),
+                mChromaLayout == Nv21Utils.CHROMA_LAYOUT_INTERLEAVED_VU, width, height, data);
+
+        if (mFirstTimestampNanos < 0) {
+            mFirstTimestampNanos = image.getTimestamp();
+        }
+        long timestampMillis =
+                TimeUnit.NANOSECONDS.toMillis(image.getTimestamp() - mFirstTimestampNanos);
+        callback.onFrame(data, ++mFrameId, timestampMillis, width, height, mRotation);
+    }
+
+    /**
+     * Returns a free preview buffer of the current preview size, or null if all are in use.
+     */
+    private byte[] takeFreeBuffer() {
+        byte[] data;
+        while ((data = mFreeBuffers.poll()) != null) {
+            if (mBufferPool.find(data) != null) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    private void onFocusState(int state) {
+        CameraSource.AutoFocusCallback focusCallback = null;
+        CameraSource.AutoFocusMoveCallback moveCallback = null;
+        synchronized (this) {
+            if ((state == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED) ||
+                    (state == CameraMetadata.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED)) {
+                focusCallback = mAutoFocusCallback;
+                mAutoFocusCallback = null;
+            }
+            if ((state != mLastFocusState) &&
+                    ((state == CameraMetadata.CONTROL_AF_STATE_PASSIVE_SCAN) ||
+                            (mLastFocusState == CameraMetadata.CONTROL_AF_STATE_PASSIVE_SCAN))) {
+                moveCallback = mAutoFocusMoveCallback;
+            }
+            mLastFocusState = state;
+        }
+        if (focusCallback != null) {
+            focusCallback.onAutoFocus(state == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED);
+        }
+        if (moveCallback != null) {
+            moveCallback.onAutoFocusMoving(state == CameraMetadata.CONTROL_AF_STATE_PASSIVE_SCAN);
+        }
+    }
+
+    /**
+     * Fails the start, or logs the error if the camera was already running.
+     */
+    private void fail(IOException error) {
+        if ((mStarted != null) && (mStarted.getCount() > 0)) {
+            mStartError = error;
+            mStarted.countDown();
+        } else {
+            Log.e(TAG, "Camera failed.", error);
+        }
+    }
+
+    private boolean updateRepeatingRequest() {
+        try {
+            mSession.setRepeatingRequest(mRequest.build(), mCaptureCallback, mHandler);
+            return true;
+        } catch (CameraAccessException | RuntimeException e) {
+            Log.w(TAG, "Could not update the capture request.", e);
+            return false;
+        }
+    }
+
+    private void capture() {
+        try {
+            mSession.capture(mRequest.build(), mCaptureCallback, mHandler);
+        } catch (CameraAccessException | RuntimeException e) {
+            Log.w(TAG, "Could not trigger the focus.", e);
+        }
+    }
+
+    private void applyFocusMode() {
+        if (mFocusMode == null) {
+            return;
+        }
+        mRequest.set(CaptureRequest.CONTROL_AF_MODE, getAfMode(mFocusMode));
+        if (Camera.Parameters.FOCUS_MODE_INFINITY.equals(mFocusMode)) {
+            mRequest.set(CaptureRequest.LENS_FOCUS_DISTANCE, 0.0f);
+        }
+    }
+
+    private void applyFlashMode() {
+        if (mFlashMode == null) {
+            return;
+        }
+        int aeMode = CameraMetadata.CONTROL_AE_MODE_ON;
+        int flashMode = CameraMetadata.FLASH_MODE_OFF;
+        switch (mFlashMode) {
+            case Camera.Parameters.FLASH_MODE_ON:
+                aeMode = CameraMetadata.CONTROL_AE_MODE_ON_ALWAYS_FLASH;
+                break;
+            case Camera.Parameters.FLASH_MODE_AUTO:
+                aeMode = CameraMetadata.CONTROL_AE_MODE_ON_AUTO_FLASH;
+                break;
+            case Camera.Parameters.FLASH_MODE_RED_EYE:
+                aeMode = CameraMetadata.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE;
+                break;
+            case Camera.Parameters.FLASH_MODE_TORCH:
+                flashMode = CameraMetadata.FLASH_MODE_TORCH;
+                break;
+            default:
+                break;
+        }
+        mRequest.set(CaptureRequest.CONTROL_AE_MODE, aeMode);
+        mRequest.set(CaptureRequest.FLASH_MODE, flashMode);
+    }
+
+    /**
+     * Crops the center of the sensor for the current zoom value.
+     */
+    private void applyZoom() {
+        Rect active = mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        float ratio = 1 + (getMaxDigitalZoom() - 1) * mZoom / MAX_ZOOM;
+        int width = (int) (active.width() / ratio);
+        int height = (int) (active.height() / ratio);
+        int left = active.left + (active.width() - width) / 2;
+        int top = active.top + (active.height() - height) / 2;
+        mRequest.set(CaptureRequest.SCALER_CROP_REGION,
+                new Rect(left, top, left + width, top + height));
+    }
+
+    /**
+     * Sets the focus and metering regions to the focus area, if there is one.  The regions are in
+     * the coordinates of the active array of the sensor, of which the preview frames show the
+     * crop region of the current zoom, trimmed to the aspect ratio of the preview.
+     */
+    private void applyFocusArea() {
+        if (mFocusArea == null) {
+            return;
+        }
+        Integer maxAfRegions = mCharacteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+        Integer maxAeRegions = mCharacteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+        boolean af = (maxAfRegions != null) && (maxAfRegions > 0);
+        boolean ae = (maxAeRegions != null) && (maxAeRegions > 0);
+        Rect crop = mRequest.get(CaptureRequest.SCALER_CROP_REGION);
+        if ((!af && !ae) || (crop == null)) {
+            return;
+        }
+
+        int width = mPreviewSize.getWidth();
+        int height = mPreviewSize.getHeight();
+        Rect visible = new Rect(crop);
+        if ((long) crop.width() * height > (long) crop.height() * width) {
+            int visibleWidth = (int) ((long) crop.height() * width / height);
+            visible.inset((crop.width() - visibleWidth) / 2, 0);
+        } else {
+            int visibleHeight = (int) ((long) crop.width() * height / width);
+            visible.inset(0, (crop.height() - visibleHeight) / 2);
+        }
+        Rect sensor = new Rect();
+        GeometryUtils.uprightToSensor(mFocusArea, mRotation, width, height, sensor);
+        Rect region = new Rect(
+                visible.left + (int) ((long) sensor.left * visible.width() / width),
+                visible.top + (int) ((long) sensor.top * visible.height() / height),
+                visible.left + (int) ((long) sensor.right * visible.width() / width),
+                visible.top + (int) ((long) sensor.bottom * visible.height() / height));
+        if (!region.intersect(visible)) {
+            return;
+        }
+        MeteringRectangle[] regions = {
+                new MeteringRectangle(region, MeteringRectangle.METERING_WEIGHT_MAX)};
+        if (af) {
+            mRequest.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+        }
+        if (ae) {
+            mRequest.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+        }
+    }
+
+    /**
+     * Selects the most suitable target frame rate range, in the same way as for the camera1 API.
+     */
+    private void applyFrameRate() {
+        Range<Integer>[] ranges =
+                mCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        Range<Integer> selectedRange = null;
+        float minDiff = Float.MAX_VALUE;
+        for (Range<Integer> range : ranges) {
+            float diff = Math.abs(mFps - range.getLower()) + Math.abs(mFps - range.getUpper());
+            if (diff < minDiff) {
+                selectedRange = range;
+                minDiff = diff;
+            }
+        }
+        if (selectedRange != null) {
+            mRequest.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, selectedRange);
+        }
+    }
+
+    private float getMaxDigitalZoom() {
+        Float maxZoom = mCharacteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        return (maxZoom != null) ? maxZoom : 1;
+    }
+
+    private boolean isFocusModeSupported(String mode) {
+        int afMode = getAfMode(mode);
+        if (afMode < 0) {
+            return false;
+        }
+        int[] afModes = mCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        for (int available : afModes) {
+            if (available == afMode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isFlashModeSupported(String mode) {
+        if (Camera.Parameters.FLASH_MODE_OFF.equals(mode)) {
+            return true;
+        }
+        Boolean available = mCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        return (available != null) && available;
+    }
+
+    /**
+     * Returns the camera2 auto focus mode for a camera1 focus mode, or -1 if there is none.
+     */
+    private static int getAfMode(String focusMode) {
+        switch (focusMode) {
+            case Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE:
+                return CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
+            case Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO:
+                return CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
+            case Camera.Parameters.FOCUS_MODE_AUTO:
+                return CameraMetadata.CONTROL_AF_MODE_AUTO;
+            case Camera.Parameters.FOCUS_MODE_MACRO:
+                return CameraMetadata.CONTROL_AF_MODE_MACRO;
+            case Camera.Parameters.FOCUS_MODE_EDOF:
+                return CameraMetadata.CONTROL_AF_MODE_EDOF;
+            case Camera.Parameters.FOCUS_MODE_FIXED:
+            case Camera.Parameters.FOCUS_MODE_INFINITY:
+                return CameraMetadata.CONTROL_AF_MODE_OFF;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Selects the size closest to the desired width and height, in the same way as for the
+     * camera1 API.
+     */
+    private static android.util.Size selectSize(List<android.util.Size> sizes, int desiredWidth,
+                                                int desiredHeight) {
+        android.util.Size selectedSize = null;
+        int minDiff = Integer.MAX_VALUE;
+        for (android.util.Size size : sizes) {
+            int diff = Math.abs(size.getWidth() - desiredWidth) +
+                    Math.abs(size.getHeight() - desiredHeight);
+            if (diff < minDiff) {
+                selectedSize = size;
+                minDiff = diff;
+            }
+        }
+        return selectedSize;
+    }
+
+    /**
+     * Returns the sizes the camera can deliver images in, and which the preview display can take
+     * as well, if there is one.
+     */
+    private synchronized List<android.util.Size> getPreviewSizes(
+            CameraCharacteristics characteristics) {
+        StreamConfigurationMap map =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        List<android.util.Size> sizes =
+                new ArrayList<>(Arrays.asList(map.getOutputSizes(ImageFormat.YUV_420_888)));
+        if (mPreviewDisplay != null) {
+            // The display must be able to take the same size, or the session can't be configured.
+            List<android.util.Size> displaySizes = Arrays.asList(
+                    map.getOutputSizes(SurfaceHolder.class));
+            List<android.util.Size> commonSizes = new ArrayList<>(sizes);
+            commonSizes.retainAll(displaySizes);
+            if (!commonSizes.isEmpty()) {
+                sizes = commonSizes;
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Lets the preview size tuner pick the preview size, if there is a tuner and it hasn't picked
+     * one for the camera yet.  Picking benchmarks the detector for up to a few seconds, so this
+     * runs before the camera is opened and without holding the lock of this source, which would
+     * block zooming, focusing and the like meanwhile.  The pick is remembered by the tuner, and
+     * applied when the camera is configured.
+     */
+    void tunePreviewSize() throws IOException {
+        PreviewSizeTuner tuner;
+        synchronized (this) {
+            tuner = mPreviewSizeTuner;
+        }
+        if (tuner == null) {
+            return;
+        }
+        CameraManager manager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String cameraId = getIdForRequestedCamera(manager, mFacing);
+            if (cameraId != null) {
+                getTunedPreviewSize(tuner, cameraId,
+                        getPreviewSizes(manager.getCameraCharacteristics(cameraId)));
+            }
+        } catch (CameraAccessException e) {
+            throw new IOException("Could not open the camera.", e);
+        }
+    }
+
+    /**
+     * Returns the preview size to request with auto preview size, as picked by the tuner on the
+     * first start.
+     */
+    private int[] getTunedPreviewSize(PreviewSizeTuner tuner, String cameraId,
+                                      List<android.util.Size> sizes) {
+        String cameraKey = TUNER_CAMERA_KEY_PREFIX + cameraId;
+        int[] size = tuner.getRememberedPreviewSize(cameraKey,
+                mRequestedPreviewWidth, mRequestedPreviewHeight);
+        if (size == null) {
+            List<int[]> candidates = new ArrayList<>(sizes.size());
+            for (android.util.Size candidate : sizes) {
+                candidates.add(new int[]{candidate.getWidth(), candidate.getHeight()});
+            }
+            size = tuner.tunePreviewSize(cameraKey, candidates,
+                    mRequestedPreviewWidth, mRequestedPreviewHeight);
+        }
+        return (size != null) ? size : new int[]{mRequestedPreviewWidth, mRequestedPreviewHeight};
+    }
+
+    /**
+     * Returns the id of the camera facing in the given direction, or null if there is none.
+     */
+    private static String getIdForRequestedCamera(CameraManager manager, int facing)
+            throws CameraAccessException {
+        int lensFacing = (facing == CameraSource.CAMERA_FACING_FRONT) ?
+                CameraMetadata.LENS_FACING_FRONT : CameraMetadata.LENS_FACING_BACK;
+        for (String id : manager.getCameraIdList()) {
+            Integer cameraFacing =
+                    manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+            if ((cameraFacing != null) && (cameraFacing == lensFacing)) {
+                return id;
+            }
+        }
+        return null;
+    }
+}
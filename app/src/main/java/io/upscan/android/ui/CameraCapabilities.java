@@ -0,0 +1,146 @@
+package io.upscan.android.ui;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The configuration negotiated for a camera, for the requested preview size and frame rate, along
+ * with the capabilities of the camera that are looked up while it is running.  This is what
+ * {@link CameraCapabilityCache} keeps, so that the camera can be configured without negotiating
+ * again.
+ * <p/>
+ * Encodes into a compact string of {@code ;} separated fields:
+ * <pre>
+ * version;requested width x height @ fps * 1000;preview width x height;picture width x height
+ *     (or empty);fps range;supported fps ranges (, separated);focus modes;flash modes
+ * </pre>
+ */
+final class CameraCapabilities {
+
+    private static final String VERSION = "1";
+    private static final int FIELD_COUNT = 8;
+
+    final int mRequestedWidth;
+    final int mRequestedHeight;
+    final int mRequestedFpsScaled;
+
+    final int mPreviewWidth;
+    final int mPreviewHeight;
+    // Zero if there is no picture size of the same aspect ratio.
+    final int mPictureWidth;
+    final int mPictureHeight;
+
+    // The selected preview frames per second range, scaled by 1000 like in the camera API.
+    final int[] mPreviewFpsRange;
+    final List<int[]> mSupportedFpsRanges;
+    final List<String> mSupportedFocusModes;
+    final List<String> mSupportedFlashModes;
+
+    CameraCapabilities(int requestedWidth, int requestedHeight, int requestedFpsScaled,
+                       int previewWidth, int previewHeight, int pictureWidth, int pictureHeight,
+                       int[] previewFpsRange, List<int[]> supportedFpsRanges,
+                       List<String> supportedFocusModes, List<String> supportedFlashModes) {
+        mRequestedWidth = requestedWidth;
+        mRequestedHeight = requestedHeight;
+        mRequestedFpsScaled = requestedFpsScaled;
+        mPreviewWidth = previewWidth;
+        mPreviewHeight = previewHeight;
+        mPictureWidth = pictureWidth;
+        mPictureHeight = pictureHeight;
+        mPreviewFpsRange = previewFpsRange;
+        mSupportedFpsRanges = supportedFpsRanges;
+        mSupportedFocusModes = nonNull(supportedFocusModes);
+        mSupportedFlashModes = nonNull(supportedFlashModes);
+    }
+
+    /**
+     * Returns whether this configuration was negotiated for the given request.
+     */
+    boolean matches(int requestedWidth, int requestedHeight, int requestedFpsScaled) {
+        return (mRequestedWidth == requestedWidth) && (mRequestedHeight == requestedHeight) &&
+                (mRequestedFpsScaled == requestedFpsScaled);
+    }
+
+    String encode() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(VERSION).append(';')
+                .append(mRequestedWidth).append('x').append(mRequestedHeight)
+                .append('@').append(mRequestedFpsScaled).append(';')
+                .append(mPreviewWidth).append('x').append(mPreviewHeight).append(';');
+        if (mPictureWidth > 0) {
+            builder.append(mPictureWidth).append('x').append(mPictureHeight);
+        }
+        builder.append(';').append(mPreviewFpsRange[0]).append('-').append(mPreviewFpsRange[1])
+                .append(';');
+        for (int i = 0; i < mSupportedFpsRanges.size(); ++i) {
+            int[] range = mSupportedFpsRanges.get(i);
+            builder.append((i > 0) ? "," : "").append(range[0]).append('-').append(range[1]);
+        }
+        builder.append(';');
+        appendList(builder, mSupportedFocusModes);
+        builder.append(';');
+        appendList(builder, mSupportedFlashModes);
+        return builder.toString();
+    }
+
+    /**
+     * Decodes a string made by {@link #encode()}.
+     *
+     * @return the capabilities, or null if the string is malformed or of another version
+     */
+    static CameraCapabilities decode(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        String[] fields = encoded.split(";", -1);
+        if ((fields.length != FIELD_COUNT) || !VERSION.equals(fields[0])) {
+            return null;
+        }
+        try {
+            int[] requested = parseInts(fields[1], "[x@]", 3);
+            int[] preview = parseInts(fields[2], "x", 2);
+            int[] picture = fields[3].isEmpty() ? new int[2] : parseInts(fields[3], "x", 2);
+            int[] fpsRange = parseInts(fields[4], "-", 2);
+            List<int[]> fpsRanges = new ArrayList<>();
+            if (!fields[5].isEmpty()) {
+                for (String range : fields[5].split(",")) {
+                    fpsRanges.add(parseInts(range, "-", 2));
+                }
+            }
+            return new CameraCapabilities(requested[0], requested[1], requested[2],
+                    preview[0], preview[1], picture[0], picture[1], fpsRange, fpsRanges,
+                    parseList(fields[6]), parseList(fields[7]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int[] parseInts(String field, String separator, int count) {
+        String[] parts = field.split(separator);
+        if (parts.length != count) {
+            throw new IllegalArgumentException("Malformed field: " + field);
+        }
+        int[] values = new int[count];
+        for (int i = 0; i < count; ++i) {
+            values[i] = Integer.parseInt(parts[i]);
+        }
+        return values;
+    }
+
+    private static List<String> parseList(String field) {
+        return field.isEmpty() ?
+                Collections.<String>emptyList() : Arrays.asList(field.split(","));
+    }
+
+    private static void appendList(StringBuilder builder, List<String> values) {
+        for (int i = 0; i < values.size(); ++i) {
+            builder.append((i > 0) ? "," : "").append(values.get(i));
+        }
+    }
+
+    private static List<String> nonNull(List<String> values) {
+        return (values != null) ? values : Collections.<String>emptyList();
+    }
+}
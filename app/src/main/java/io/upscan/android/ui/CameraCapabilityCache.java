@@ -0,0 +1,88 @@
+package io.upscan.android.ui;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Remembers the configuration negotiated for each camera across launches, see
+ * {@link CameraCapabilities}.  The entries are kept in shared preferences along with the build
+ * fingerprint of the device, and are all dropped when the fingerprint changes, e.g., after a
+ * system update which may have changed what the cameras support.  The preview sizes picked by the
+ * {@link PreviewSizeTuner} are kept alongside.
+ * <p/>
+ * Reads the preferences from disk when created, so it should be created off of the main thread.
+ */
+class CameraCapabilityCache {
+
+    private static final String PREFERENCES_NAME = "camera_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_CAMERA_PREFIX = "camera.";
+    private static final String KEY_TUNED_PREFIX = "tuned.";
+
+    private final SharedPreferences mPreferences;
+
+    CameraCapabilityCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if (!Build.FINGERPRINT.equals(mPreferences.getString(KEY_FINGERPRINT, null))) {
+            mPreferences.edit()
+                    .clear()
+                    .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                    .apply();
+        }
+    }
+
+    /**
+     * Returns the configuration last negotiated for the camera, or null if there is none.
+     */
+    CameraCapabilities get(int cameraId) {
+        return CameraCapabilities.decode(mPreferences.getString(KEY_CAMERA_PREFIX + cameraId, null));
+    }
+
+    void put(int cameraId, CameraCapabilities capabilities) {
+        mPreferences.edit().putString(KEY_CAMERA_PREFIX + cameraId, capabilities.encode()).apply();
+    }
+
+    /**
+     * Drops the configuration of the camera, e.g., because the camera refused it.
+     */
+    void remove(int cameraId) {
+        mPreferences.edit().remove(KEY_CAMERA_PREFIX + cameraId).apply();
+    }
+
+    /**
+     * Returns the preview size picked by the {@link PreviewSizeTuner} for the camera, the
+     * maximum size and the target decode rate, or null if there is none.
+     *
+     * @return the size as {width, height}
+     */
+    int[] getTunedPreviewSize(String cameraKey, int maxWidth, int maxHeight,
+                              float targetDecodeRate) {
+        String value = mPreferences.getString(
+                getTunedKey(cameraKey, maxWidth, maxHeight, targetDecodeRate), null);
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split("x");
+        try {
+            return (parts.length == 2) ?
+                    new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    void putTunedPreviewSize(String cameraKey, int maxWidth, int maxHeight,
+                             float targetDecodeRate, int[] size) {
+        mPreferences.edit()
+                .putString(getTunedKey(cameraKey, maxWidth, maxHeight, targetDecodeRate),
+                        size[0] + "x" + size[1])
+                .apply();
+    }
+
+    private static String getTunedKey(String cameraKey, int maxWidth, int maxHeight,
+                                      float targetDecodeRate) {
+        return KEY_TUNED_PREFIX + cameraKey + '.' + maxWidth + 'x' + maxHeight + '@' +
+                (int) (targetDecodeRate * 1000.0f);
+    }
+}
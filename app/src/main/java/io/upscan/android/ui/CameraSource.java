@@ -21,15 +21,20 @@ import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.support.annotation.StringDef;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -40,14 +45,29 @@ import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Frame;
 
 import java.io.IOException;
-import java.lang.Thread.State;
+import java.io.InterruptedIOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.upscan.android.util.GeometryUtils;
+import io.upscan.android.util.Nv21Utils;
+import io.upscan.android.util.StructureFinder;
 
 // Note: This requires Google Play Services 8.1 or higher, due to using indirect byte buffers for
 // storing images.
@@ -66,6 +86,13 @@ import java.util.Map;
  * utilization is higher than you'd like, then you may want to consider reducing FPS.  If the camera
  * preview or detector results are too "jerky", then you may want to consider increasing FPS.
  * <p/>
+ * The camera is opened, configured and released on a dedicated camera thread owned by this camera
+ * source, so that preview frame callbacks are never delivered on the main looper.  Per-thread
+ * timing of the frame work is available through {@link #getThreadTimings()}.
+ * <p/>
+ * On Android 5.0 and later, the camera can be driven through the camera2 API instead, see
+ * {@link Builder#setCamera2(boolean)}.
+ * <p/>
  * The following Android permission is required to use the camera:
  * <ul>
  * <li>android.permissions.CAMERA</li>
@@ -80,18 +107,71 @@ public class CameraSource {
 
     private static final String TAG = "OpenCameraSource";
 
+    private static final String CAMERA_THREAD_NAME = "CameraSource-camera";
+    private static final String LIFECYCLE_THREAD_NAME = "CameraSource-lifecycle";
+    private static final String PROCESSING_THREAD_NAME = "CameraSource-frames";
+
     /**
      * The dummy surface texture must be assigned a chosen name.  Since we never use an OpenGL
      * context, we can choose any ID we want here.
      */
     private static final int DUMMY_TEXTURE_NAME = 100;
 
+    /**
+     * Prefix of the camera ids under which the preview size tuner remembers its picks.
+     */
+    private static final String TUNER_CAMERA_KEY_PREFIX = "camera1.";
+
     /**
      * If the absolute difference between a preview size aspect ratio and a picture size aspect
      * ratio is less than this tolerance, they are considered to be the same aspect ratio.
      */
     private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
 
+    /**
+     * By default, four frame buffers are used for working with the camera:
+     * <ul>
+     * <li>one for the frame that is currently being executed upon in doing detection</li>
+     * <li>one for the next pending frame to process immediately upon completing detection</li>
+     * <li>two for the frames that the camera uses to populate future preview images</li>
+     * </ul>
+     */
+    private static final int DEFAULT_PREVIEW_BUFFER_COUNT = 4;
+
+    /**
+     * At least one buffer each for detection, the pending frame and the camera are needed.
+     */
+    private static final int MIN_PREVIEW_BUFFER_COUNT = 3;
+    private static final int MAX_PREVIEW_BUFFER_COUNT = 16;
+
+    private static final int MAX_DETECTION_PARALLELISM = 8;
+
+    /**
+     * Regions of interest smaller than this (in pixels along either side) are considered bogus,
+     * and the full frame is used instead.
+     */
+    private static final int MIN_REGION_OF_INTEREST_SIZE = 32;
+
+    /**
+     * The focus area is checked for changes at most this often, and only moved if it moved by
+     * more than the larger side of the preview divided by {@link #FOCUS_AREA_TOLERANCE_DIVISOR},
+     * so that the camera isn't reconfigured on every frame while a barcode jitters.
+     */
+    private static final long FOCUS_AREA_INTERVAL_MILLIS = 500;
+    private static final int FOCUS_AREA_TOLERANCE_DIVISOR = 16;
+
+    // Weight of the single focus and metering area, on the camera's scale of 1 to 1000.
+    private static final int CAMERA_AREA_WEIGHT = 1000;
+
+    // Every this many pixels of every this many rows are sampled to score the sharpness of frames.
+    private static final int SHARPNESS_SAMPLE_STEP = 4;
+
+    // Every this many pixels of every this many rows are sampled for the scene signature.
+    private static final int SIGNATURE_SAMPLE_STEP = 4;
+
+    // Every this many pixels of every this many rows are sampled for the brightness of frames.
+    private static final int LUMA_SAMPLE_STEP = 16;
+
     @StringDef({
             Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE,
             Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO,
@@ -120,9 +200,42 @@ public class CameraSource {
 
     private final Object mCameraLock = new Object();
 
-    // Guarded by mCameraLock
+    /**
+     * Serializes starting, stopping and releasing, which take mCameraLock only while they work
+     * with the camera.  Stopping waits for the detection workers while holding this lock alone, so
+     * that zooming, focusing and the like don't wait for a slow detector.  Always taken before
+     * mCameraLock.
+     */
+    private final Object mLifecycleLock = new Object();
+
+    // Guarded by mCameraLock, and only ever modified on the camera thread.
     private Camera mCamera;
 
+    /**
+     * Dedicated thread on which the camera is opened, configured and released.  The camera delivers
+     * its callbacks on the looper of the thread that opened it, so this also keeps the preview
+     * frame callbacks off of the main thread.
+     */
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
+
+    /**
+     * Runs the asynchronous starts and stops in the order in which they were requested, see
+     * {@link #startAsync(LifecycleCallback)}.  The thread is only created on first use.
+     */
+    private final ExecutorService mLifecycleExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, LIFECYCLE_THREAD_NAME);
+                }
+            });
+
+    /**
+     * Timing of the per-frame work, keyed by the thread that did it.
+     */
+    private final ThreadTimings mThreadTimings = new ThreadTimings();
+
     private int mFacing = CAMERA_FACING_BACK;
 
     /**
@@ -143,6 +256,19 @@ public class CameraSource {
     private String mFocusMode = null;
     private String mFlashMode = null;
 
+    /**
+     * Configuration of the open camera, and the cache it came from.  Only accessed on the camera
+     * thread; the cache is created there on first use, since it reads from disk.
+     */
+    private CameraCapabilities mCapabilities;
+    private CameraCapabilityCache mCapabilityCache;
+
+    /**
+     * Picks the preview size with auto preview size, see {@link Builder#setAutoPreviewSize}.
+     */
+    private float mTargetDecodeRate;
+    private PreviewSizeTuner mPreviewSizeTuner;
+
     // These instances need to be held onto to avoid GC of their underlying resources.  Even though
     // these aren't used outside of the method that creates them, they still must have hard
     // references maintained to them.
@@ -150,18 +276,124 @@ public class CameraSource {
     private SurfaceTexture mDummySurfaceTexture;
 
     /**
-     * Dedicated thread and associated runnable for calling into the detector with frames, as the
-     * frames become available from the camera.
+     * Dedicated thread(s) and associated runnable for calling into the detector with frames, as the
+     * frames become available from the camera.  There is one thread per detection worker; see
+     * {@link Builder#setDetectionParallelism(int)}.  The workers are guarded by mLifecycleLock.
      */
-    private Thread mProcessingThread;
+    private Thread[] mProcessingThreads;
     private FrameProcessingRunnable mFrameProcessor;
+    private int mDetectionParallelism = 1;
+
+    /**
+     * With warm restart, the workers run on a long-lived executor instead of threads of their
+     * own, which is kept until release.  See {@link Builder#setWarmRestart(boolean)}.
+     */
+    private boolean mWarmRestart;
+    private ExecutorService mProcessingExecutor;
+    private Future<?>[] mProcessingTasks;
+
+    // Time of the last start, and how long it took from there to the first decode.
+    private volatile long mStartRequestedMillis;
+    private volatile long mStartToFirstDecodeMillis = -1;
+
+    /**
+     * Receives the detection results, if the camera source runs the detector itself instead of
+     * going through {@link Detector#receiveFrame(Frame)}.  See {@link Builder#setProcessor}.
+     */
+    private Detector.Processor<?> mProcessor;
+
+    /**
+     * Maps results of cropped frames back to full frame coordinates.  Cropping to the region of
+     * interest is only done if set.  See {@link Builder#setRegionMapper}.
+     */
+    private RegionMapper<?> mRegionMapper;
+    private volatile RegionOfInterestSource mRegionOfInterestSource;
+
+    /**
+     * Supplies the area to focus and meter on, see {@link #setFocusAreaSource}.  The areas are
+     * only accessed on the thread that delivers the results.
+     */
+    private volatile FocusAreaSource mFocusAreaSource;
+    private final Rect mFocusArea = new Rect();
+    private final Rect mNextFocusArea = new Rect();
+    private long mFocusAreaMillis;
+
+    /**
+     * Whether frames are detected at half resolution first.  See
+     * {@link Builder#setCoarseToFineDetection(boolean)}.
+     */
+    private boolean mCoarseToFineDetection;
+
+    /**
+     * Skips blurry frames, if enabled.  See {@link Builder#setSharpnessGate(boolean)}.
+     */
+    private SharpnessGate mSharpnessGate;
+
+    /**
+     * Reuses the last results while the scene is still, if enabled.  See
+     * {@link Builder#setSceneChangeGate(boolean)}.
+     */
+    private SceneChangeGate mSceneChangeGate;
 
     /**
-     * Map to convert between a byte array, received from the camera, and its associated byte
-     * buffer.  We use byte buffers internally because this is a more efficient way to call into
-     * native code later (avoids a potential copy).
+     * Zooms in on small and distant barcodes, if enabled.  See {@link Builder#setAutoZoom}.
      */
-    private Map<byte[], ByteBuffer> mBytesToByteBuffer = new HashMap<>();
+    private AutoZoom mAutoZoom;
+
+    /**
+     * Switches the torch with the brightness of the scene, if enabled.  See
+     * {@link Builder#setAutoTorch(boolean)}.
+     */
+    private AutoTorch mAutoTorch;
+
+    /**
+     * The flash mode to apply on the camera thread, or null if none is pending.  Posting only
+     * when there was none coalesces changes that come in faster than the camera thread applies
+     * them, see {@link #postFlashMode(String)}.
+     */
+    private final AtomicReference<String> mPendingFlashMode = new AtomicReference<>();
+
+    /**
+     * Pool of the preview buffers, which also converts between a byte array received from the
+     * camera and its associated preview frame.  The frame holds the byte buffer wrapping the array
+     * along with the frame metadata.
+     */
+    private final PreviewBufferPool mBufferPool = new PreviewBufferPool();
+    private int mPreviewBufferCount = DEFAULT_PREVIEW_BUFFER_COUNT;
+
+    /**
+     * Decides which frames reach the detector while it is busy.  See
+     * {@link Builder#setBackpressurePolicy(BackpressurePolicy)}.
+     */
+    private BackpressurePolicy mBackpressurePolicy = BackpressurePolicy.latestWins();
+
+    /**
+     * Where the frames come from.  This is the camera, unless another source was set with
+     * {@link Builder#setFrameSource(FrameSource)}, in which case the camera is never opened.
+     */
+    private FrameSource mFrameSource;
+    private CameraFrameSource mCameraFrameSource;
+
+    /**
+     * The camera through the camera2 API, if enabled and available.  See
+     * {@link Builder#setCamera2(boolean)}.
+     */
+    private boolean mCamera2Enabled;
+    private Camera2FrameSource mCamera2FrameSource;
+
+    /**
+     * Records the frames received from the frame source, if set.  See
+     * {@link #setCaptureRecorder(CaptureRecorder)}.
+     */
+    private volatile CaptureRecorder mCaptureRecorder;
+
+    /**
+     * Adapts the frame rate to the detector, if enabled.  See
+     * {@link Builder#setAdaptiveFrameRate(float, long)}.
+     */
+    private FrameRateGovernor mFrameRateGovernor;
+    private float mIdleFps;
+    private long mIdleTimeoutMillis;
 
     //==============================================================================================
     // Builder
@@ -231,6 +463,24 @@ public class CameraSource {
             return this;
         }
 
+        /**
+         * Picks the preview size automatically, as the largest supported size up to the requested
+         * preview size at which the detector still sustains the given decode rate on this
+         * device.  On the first start, the detector is timed on a synthetic bar pattern at a few
+         * candidate sizes, which takes up to a few seconds.  The pick is remembered per camera and
+         * device, so later starts apply it right away.  Ignored if another frame source is set.
+         * Default: disabled, i.e., the supported size closest to the requested size.
+         *
+         * @param targetDecodeRate the decodes per second to sustain
+         */
+        public Builder setAutoPreviewSize(float targetDecodeRate) {
+            if (targetDecodeRate <= 0) {
+                throw new IllegalArgumentException("Invalid decode rate: " + targetDecodeRate);
+            }
+            mCameraSource.mTargetDecodeRate = targetDecodeRate;
+            return this;
+        }
+
         /**
          * Sets the camera to use (either {@link #CAMERA_FACING_BACK} or
          * {@link #CAMERA_FACING_FRONT}). Default: back facing.
@@ -243,11 +493,254 @@ public class CameraSource {
             return this;
         }
 
+        /**
+         * Sets the number of preview buffers shared between the camera and the detector.  More
+         * buffers let the camera keep capturing while detection is busy, at the cost of memory.
+         * Default: 4.
+         */
+        public Builder setPreviewBufferCount(int count) {
+            if ((count < MIN_PREVIEW_BUFFER_COUNT) || (count > MAX_PREVIEW_BUFFER_COUNT)) {
+                throw new IllegalArgumentException("Invalid preview buffer count: " + count);
+            }
+            mCameraSource.mPreviewBufferCount = count;
+            return this;
+        }
+
+        /**
+         * Sets the source of the frames to run detection on, instead of the camera.  The camera
+         * isn't opened when started, and the camera controls (zoom, focus, flash, taking
+         * pictures) have no effect.  This allows running the frame processing pipeline on
+         * generated or recorded frames, e.g., to measure its throughput.  Default: the camera.
+         */
+        public Builder setFrameSource(FrameSource source) {
+            mCameraSource.mFrameSource = source;
+            return this;
+        }
+
+        /**
+         * Drives the camera through the camera2 API on devices that have it (Android 5.0 and
+         * later), and through the camera1 API on older ones.  Frames are captured in YUV_420_888
+         * by an image reader and packed into the preview buffers with bulk copies of the planes,
+         * which saves the per-frame copy of the camera1 preview callbacks on most devices.  Focus,
+         * flash and zoom behave the same as with the camera1 API, but taking pictures isn't
+         * supported.  Ignored if another frame source is set.  Default: disabled.
+         */
+        public Builder setCamera2(boolean enabled) {
+            mCameraSource.mCamera2Enabled = enabled;
+            return this;
+        }
+
+        /**
+         * Sets the processor which receives the detection results.  When set, the camera source
+         * runs the detector and delivers its results to this processor itself, instead of going
+         * through {@link Detector#receiveFrame(Frame)}.  This would normally be the same processor
+         * that is set on the detector, so that releasing the detector also releases it.
+         * Required for parallel detection, see {@link #setDetectionParallelism(int)}.
+         */
+        public <T> Builder setProcessor(Detector.Processor<T> processor) {
+            mCameraSource.mProcessor = processor;
+            return this;
+        }
+
+        /**
+         * Sets the mapper which maps the results of a partial frame back into full frame
+         * coordinates.  This enables cropping frames to the region of interest before detection,
+         * see {@link CameraSource#setRegionOfInterestSource}.  Requires a processor to be set
+         * with {@link #setProcessor}, since the results must be mapped before they are delivered.
+         */
+        public <T> Builder setRegionMapper(RegionMapper<T> mapper) {
+            mCameraSource.mRegionMapper = mapper;
+            return this;
+        }
+
+        /**
+         * Sets the number of workers which run detection in parallel.  With more than one
+         * worker, pending frames are kept in a bounded ring and detected concurrently, and the
+         * results are put back into frame order before being delivered to the processor set with
+         * {@link #setProcessor}, so that trackers still see the frames in order.  The detector
+         * must support concurrent calls to {@link Detector#detect(Frame)}.
+         * <p/>
+         * Each worker holds on to two more preview buffers, so the number of preview buffers is
+         * raised as needed.  Default: 1.
+         */
+        public Builder setDetectionParallelism(int parallelism) {
+            if ((parallelism < 1) || (parallelism > MAX_DETECTION_PARALLELISM)) {
+                throw new IllegalArgumentException("Invalid detection parallelism: " + parallelism);
+            }
+            mCameraSource.mDetectionParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Sets the policy which decides which frames reach the detector while it is busy, see
+         * {@link BackpressurePolicy}.  The policy also counts the processed, dropped and recycled
+         * frames, see {@link CameraSource#getBackpressurePolicy()}.  Default:
+         * {@link BackpressurePolicy#latestWins()}.
+         */
+        public Builder setBackpressurePolicy(BackpressurePolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("No backpressure policy supplied.");
+            }
+            mCameraSource.mBackpressurePolicy = policy;
+            return this;
+        }
+
+        /**
+         * Keeps the frame processing workers alive across {@link CameraSource#stop()} and
+         * {@link CameraSource#start()}, parked on a long-lived executor, instead of starting new
+         * threads on every start.  The preview buffers, the scratch buffers and the detector are
+         * kept across restarts either way, so only the camera itself is released on stop.  The
+         * executor is shut down on {@link CameraSource#release()}.  This shortens resuming, see
+         * {@link CameraSource#getStartToFirstDecodeMillis()}.  Default: disabled.
+         */
+        public Builder setWarmRestart(boolean enabled) {
+            mCameraSource.mWarmRestart = enabled;
+            return this;
+        }
+
+        /**
+         * Detects on a frame downsampled to half the width and height first, which finds large
+         * and close barcodes at a fraction of the cost.  Only if that misses, the detector is run
+         * again at full resolution, on just the part of the frame that has barcode-like structure
+         * (if any), so that small and distant barcodes are still found.  Requires a region mapper
+         * to map the results back into full frame coordinates, see {@link #setRegionMapper}.
+         * Default: disabled.
+         */
+        public Builder setCoarseToFineDetection(boolean enabled) {
+            mCameraSource.mCoarseToFineDetection = enabled;
+            return this;
+        }
+
+        /**
+         * Skips frames that are too blurry to be worth detecting, such as those captured while
+         * the autofocus is hunting or the device is moving.  The sharpness of every frame is
+         * scored on its luma plane, and frames scoring well below recent frames are skipped.  See
+         * {@link CameraSource#getSharpnessGate()} for the skip rate and score distribution.
+         * Default: disabled.
+         */
+        public Builder setSharpnessGate(boolean enabled) {
+            mCameraSource.mSharpnessGate = enabled ? new SharpnessGate() : null;
+            return this;
+        }
+
+        /**
+         * Skips detection while the scene is still after something was detected, and delivers
+         * the results of the last detected frame again instead, so that trackers keep following
+         * the items.  Detection resumes as soon as the scene changes, which is checked on a small
+         * downsampled signature of every frame.  See {@link CameraSource#getSceneChangeGate()}
+         * for how many frames were skipped.  Requires a processor, since results can only be
+         * reused if the camera source sees them.  Default: disabled.
+         */
+        public Builder setSceneChangeGate(boolean enabled) {
+            mCameraSource.mSceneChangeGate = enabled ? new SceneChangeGate() : null;
+            return this;
+        }
+
+        /**
+         * Zooms in on barcodes which are small in the frame, or which are found as barcode-like
+         * structure but aren't decoded (with coarse to fine detection only), in small steps at a
+         * limited rate, and zooms back out once one was read.  The trackers report the items
+         * they see with {@link AutoZoom#onItemTracked(int, int)}, so that distant barcodes are
+         * read at a lower preview resolution.  Requires a processor, since the zoom is decided
+         * as the results are delivered.  See {@link AutoZoom} for how the zoom is decided.
+         * Default: disabled.
+         */
+        public Builder setAutoZoom(AutoZoom autoZoom) {
+            mCameraSource.mAutoZoom = autoZoom;
+            return this;
+        }
+
+        /**
+         * Switches the torch on when the scene gets too dark to read barcodes, and back off when
+         * it gets bright, from the mean luma of a sparse sample of every few frames and, with the
+         * camera2 backend, the exposure of the camera.  The torch is switched at a limited rate,
+         * so that it doesn't flicker.  The flash mode set with {@link #setFlashMode(String)}
+         * applies until the first switch.  Has no effect on cameras without a torch.  See
+         * {@link AutoTorch} for how the torch is decided.
+         * Default: disabled.
+         */
+        public Builder setAutoTorch(boolean enabled) {
+            mCameraSource.mAutoTorch = enabled ? new AutoTorch() : null;
+            return this;
+        }
+
+        /**
+         * Adapts the frame rate to what the detector can sustain, instead of capturing at the
+         * requested frame rate regardless of how many frames are dropped.  The rate is derived
+         * from the detection latency and the number of frames dropped in front of the detector,
+         * and never exceeds the requested frame rate.  It is applied by reconfiguring the preview
+         * frames per second range of the camera where supported, and by skipping frames
+         * otherwise.
+         * <p/>
+         * When nothing has been detected for the given time, the frame rate drops to the idle
+         * rate until the next detection.  This requires a processor to be set, since otherwise
+         * the results aren't seen by the camera source.  Default: disabled.
+         *
+         * @param idleFps           the frame rate while nothing is being detected
+         * @param idleTimeoutMillis how long without a detection before switching to the idle rate
+         */
+        public Builder setAdaptiveFrameRate(float idleFps, long idleTimeoutMillis) {
+            if ((idleFps <= 0) || (idleTimeoutMillis < 0)) {
+                throw new IllegalArgumentException("Invalid idle frame rate: " + idleFps +
+                        " after " + idleTimeoutMillis + "ms");
+            }
+            mCameraSource.mIdleFps = idleFps;
+            mCameraSource.mIdleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
         /**
          * Creates an instance of the camera source.
          */
         public CameraSource build() {
-            mCameraSource.mFrameProcessor = mCameraSource.new FrameProcessingRunnable(mDetector);
+            if ((mCameraSource.mDetectionParallelism > 1) && (mCameraSource.mProcessor == null)) {
+                throw new IllegalStateException("Parallel detection requires a processor.");
+            }
+            if ((mCameraSource.mRegionMapper != null) && (mCameraSource.mProcessor == null)) {
+                throw new IllegalStateException("Region of interest cropping requires a processor.");
+            }
+            if (mCameraSource.mCoarseToFineDetection && (mCameraSource.mRegionMapper == null)) {
+                throw new IllegalStateException("Coarse to fine detection requires a region mapper.");
+            }
+            if ((mCameraSource.mSceneChangeGate != null) && (mCameraSource.mProcessor == null)) {
+                throw new IllegalStateException("The scene change gate requires a processor.");
+            }
+            if ((mCameraSource.mAutoZoom != null) && (mCameraSource.mProcessor == null)) {
+                throw new IllegalStateException("Auto zoom requires a processor.");
+            }
+            if (mCameraSource.mIdleFps > 0) {
+                if (mCameraSource.mProcessor == null) {
+                    throw new IllegalStateException("Adaptive frame rate requires a processor.");
+                }
+                mCameraSource.mFrameRateGovernor = new FrameRateGovernor(
+                        mCameraSource.mRequestedFps, mCameraSource.mIdleFps,
+                        mCameraSource.mIdleTimeoutMillis, mCameraSource.mDetectionParallelism);
+            }
+            if (mCameraSource.mFrameSource == null) {
+                if (mCameraSource.mTargetDecodeRate > 0) {
+                    mCameraSource.mPreviewSizeTuner = new PreviewSizeTuner(
+                            mCameraSource.mContext, mCameraSource.mTargetDecodeRate,
+                            new DetectorBenchmark(mDetector));
+                }
+                if (mCameraSource.mCamera2Enabled &&
+                        (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)) {
+                    mCameraSource.mCamera2FrameSource = new Camera2FrameSource(
+                            mCameraSource.mContext, mCameraSource.mBufferPool,
+                            mCameraSource.mThreadTimings, mCameraSource.mFacing,
+                            mCameraSource.mRequestedPreviewWidth,
+                            mCameraSource.mRequestedPreviewHeight, mCameraSource.mRequestedFps,
+                            mCameraSource.mFocusMode, mCameraSource.mFlashMode,
+                            mCameraSource.getPreviewBufferCount());
+                    mCameraSource.mCamera2FrameSource.setPreviewSizeTuner(
+                            mCameraSource.mPreviewSizeTuner);
+                    mCameraSource.mFrameSource = mCameraSource.mCamera2FrameSource;
+                } else {
+                    mCameraSource.mCameraFrameSource = mCameraSource.new CameraFrameSource();
+                    mCameraSource.mFrameSource = mCameraSource.mCameraFrameSource;
+                }
+            }
+            mCameraSource.mFrameProcessor = mCameraSource.new FrameProcessingRunnable(mDetector,
+                    mCameraSource.mDetectionParallelism);
             return mCameraSource;
         }
     }
@@ -315,6 +808,18 @@ public class CameraSource {
         void onAutoFocusMoving(boolean start);
     }
 
+    /**
+     * Callback interface used to notify on completion of an asynchronous start or stop.
+     */
+    public interface LifecycleCallback {
+        /**
+         * Called on the main thread once the start or stop is done.
+         *
+         * @param error the exception which failed the start or stop, or null if it succeeded
+         */
+        void onComplete(@Nullable Exception error);
+    }
+
     //==============================================================================================
     // Public
     //==============================================================================================
@@ -323,9 +828,24 @@ public class CameraSource {
      * Stops the camera and releases the resources of the camera and underlying detector.
      */
     public void release() {
-        synchronized (mCameraLock) {
+        synchronized (mLifecycleLock) {
             stop();
-            mFrameProcessor.release();
+            synchronized (mCameraLock) {
+                mFrameProcessor.release();
+                mBufferPool.clear();
+
+                if (mProcessingExecutor != null) {
+                    mProcessingExecutor.shutdown();
+                    mProcessingExecutor = null;
+                }
+                mLifecycleExecutor.shutdown();
+
+                if (mCameraThread != null) {
+                    mCameraThread.quit();
+                    mCameraThread = null;
+                    mCameraHandler = null;
+                }
+            }
         }
     }
 
@@ -337,27 +857,50 @@ public class CameraSource {
      */
     @RequiresPermission(Manifest.permission.CAMERA)
     public CameraSource start() throws IOException {
-        synchronized (mCameraLock) {
-            if (mCamera != null) {
-                return this;
-            }
+        tunePreviewSize();
+        synchronized (mLifecycleLock) {
+            synchronized (mCameraLock) {
+                if ((mCamera != null) || isProcessing()) {
+                    return this;
+                }
+                mStartRequestedMillis = SystemClock.elapsedRealtime();
+                mStartToFirstDecodeMillis = -1;
+                if (mCameraFrameSource == null) {
+                    if (mCamera2FrameSource != null) {
+                        mCamera2FrameSource.setPreviewDisplay(null);
+                    }
+                    startFrameSource();
+                    return this;
+                }
 
-            mCamera = createCamera();
+                // SurfaceTexture was introduced in Honeycomb (11), so if we are running and
+                // old version of Android. fall back to use SurfaceView.  The view is created here,
+                // as views must be created on the calling (UI) thread rather than the camera
+                // thread.
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    mDummySurfaceTexture = new SurfaceTexture(DUMMY_TEXTURE_NAME);
+                } else {
+                    if (mDummySurfaceView == null) {
+                        mDummySurfaceView = new SurfaceView(mContext);
+                    }
+                }
 
-            // SurfaceTexture was introduced in Honeycomb (11), so if we are running and
-            // old version of Android. fall back to use SurfaceView.
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                mDummySurfaceTexture = new SurfaceTexture(DUMMY_TEXTURE_NAME);
-                mCamera.setPreviewTexture(mDummySurfaceTexture);
-            } else {
-                mDummySurfaceView = new SurfaceView(mContext);
-                mCamera.setPreviewDisplay(mDummySurfaceView.getHolder());
-            }
-            mCamera.startPreview();
+                runOnCameraThread(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        mCamera = createCamera();
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                            mCamera.setPreviewTexture(mDummySurfaceTexture);
+                        } else {
+                            mCamera.setPreviewDisplay(mDummySurfaceView.getHolder());
+                        }
+                        mCamera.startPreview();
+                        return null;
+                    }
+                });
 
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
+                startFrameSource();
+            }
         }
         return this;
     }
@@ -370,19 +913,35 @@ public class CameraSource {
      * @throws IOException if the supplied surface holder could not be used as the preview display
      */
     @RequiresPermission(Manifest.permission.CAMERA)
-    public CameraSource start(SurfaceHolder surfaceHolder) throws IOException {
-        synchronized (mCameraLock) {
-            if (mCamera != null) {
-                return this;
-            }
+    public CameraSource start(final SurfaceHolder surfaceHolder) throws IOException {
+        tunePreviewSize();
+        synchronized (mLifecycleLock) {
+            synchronized (mCameraLock) {
+                if ((mCamera != null) || isProcessing()) {
+                    return this;
+                }
+                mStartRequestedMillis = SystemClock.elapsedRealtime();
+                mStartToFirstDecodeMillis = -1;
+                if (mCameraFrameSource == null) {
+                    if (mCamera2FrameSource != null) {
+                        mCamera2FrameSource.setPreviewDisplay(surfaceHolder);
+                    }
+                    startFrameSource();
+                    return this;
+                }
 
-            mCamera = createCamera();
-            mCamera.setPreviewDisplay(surfaceHolder);
-            mCamera.startPreview();
+                runOnCameraThread(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        mCamera = createCamera();
+                        mCamera.setPreviewDisplay(surfaceHolder);
+                        mCamera.startPreview();
+                        return null;
+                    }
+                });
 
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
+                startFrameSource();
+            }
         }
         return this;
     }
@@ -397,92 +956,307 @@ public class CameraSource {
      * resources of the underlying detector.
      */
     public void stop() {
-        synchronized (mCameraLock) {
-            mFrameProcessor.setActive(false);
-            if (mProcessingThread != null) {
-                try {
-                    // Wait for the thread to complete to ensure that we can't have multiple threads
-                    // executing at the same time (i.e., which would happen if we called start too
-                    // quickly after stop).
-                    mProcessingThread.join();
-                } catch (InterruptedException e) {
-                    Log.d(TAG, "Frame processing thread interrupted on release.");
+        synchronized (mLifecycleLock) {
+            synchronized (mCameraLock) {
+                mFrameSource.stop();
+                mFrameProcessor.setActive(false);
+            }
+            // Outside of mCameraLock, since a slow detector would block the camera controls.
+            if (isProcessing()) {
+                // Wait for the workers to complete to ensure that we can't have multiple workers
+                // executing at the same time (i.e., which would happen if we called start too
+                // quickly after stop).
+                awaitProcessing();
+                Log.d(TAG, "Start to first decode: " + mStartToFirstDecodeMillis + "ms");
+                Log.d(TAG, "Detected " + mFrameProcessor.getDetectedFramesPerSecond() +
+                        " frames per second with " + mDetectionParallelism + " worker(s)");
+                if (mCoarseToFineDetection) {
+                    Log.d(TAG, mFrameProcessor.getCoarseToFineStats());
                 }
-                mProcessingThread = null;
+                if (mSharpnessGate != null) {
+                    Log.d(TAG, mSharpnessGate.toString());
+                }
+                if (mSceneChangeGate != null) {
+                    Log.d(TAG, mSceneChangeGate.toString());
+                }
+                if (mAutoZoom != null) {
+                    Log.d(TAG, mAutoZoom.toString());
+                }
+                if (mAutoTorch != null) {
+                    Log.d(TAG, mAutoTorch.toString());
+                }
+                Log.d(TAG, mBackpressurePolicy.toString());
             }
 
-            if (mCamera != null) {
-                mCamera.stopPreview();
-                mCamera.setPreviewCallbackWithBuffer(null);
-                try {
-                    // We want to be compatible back to Gingerbread, but SurfaceTexture
-                    // wasn't introduced until Honeycomb.  Since the interface cannot use a SurfaceTexture, if the
-                    // developer wants to display a preview we must use a SurfaceHolder.  If the developer doesn't
-                    // want to display a preview we use a SurfaceTexture if we are running at least Honeycomb.
-
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                        mCamera.setPreviewTexture(null);
-
-                    } else {
-                        mCamera.setPreviewDisplay(null);
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to clear camera preview: " + e);
+            synchronized (mCameraLock) {
+                if (mCamera != null) {
+                    callOnCameraThread(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            releaseCamera();
+                            return null;
+                        }
+                    });
                 }
-                mCamera.release();
-                mCamera = null;
             }
         }
     }
 
     /**
-     * Returns the preview size that is currently in use by the underlying camera.
+     * Same as {@link #start()}, but opens the camera on a background thread and returns right
+     * away, so that it may be called from lifecycle callbacks without blocking the main thread.
+     * Asynchronous starts and stops are carried out one after the other, in the order in which
+     * they were requested.  They shouldn't be mixed with the blocking calls.
+     *
+     * @param callback called on the main thread once started, or null
+     * @return the completion of the start, which fails with the exception thrown by
+     * {@link #start()}
      */
-    public Size getPreviewSize() {
-        return mPreviewSize;
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public Future<CameraSource> startAsync(@Nullable LifecycleCallback callback) {
+        if ((Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) &&
+                (mDummySurfaceView == null)) {
+            // Views must be created on the calling (UI) thread, see start().
+            mDummySurfaceView = new SurfaceView(mContext);
+        }
+        return submitLifecycle(new Callable<CameraSource>() {
+            @Override
+            @SuppressLint("MissingPermission")
+            public CameraSource call() throws IOException {
+                return start();
+            }
+        }, callback);
     }
 
     /**
-     * Returns the selected camera; one of {@link #CAMERA_FACING_BACK} or
-     * {@link #CAMERA_FACING_FRONT}.
+     * Same as {@link #start(SurfaceHolder)}, but opens the camera on a background thread and
+     * returns right away.  See {@link #startAsync(LifecycleCallback)}.
+     *
+     * @param surfaceHolder the surface holder to use for the preview frames
+     * @param callback      called on the main thread once started, or null
+     * @return the completion of the start, which fails with the exception thrown by
+     * {@link #start(SurfaceHolder)}
      */
-    public int getCameraFacing() {
-        return mFacing;
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public Future<CameraSource> startAsync(final SurfaceHolder surfaceHolder,
+                                           @Nullable LifecycleCallback callback) {
+        return submitLifecycle(new Callable<CameraSource>() {
+            @Override
+            @SuppressLint("MissingPermission")
+            public CameraSource call() throws IOException {
+                return start(surfaceHolder);
+            }
+        }, callback);
     }
 
-    public int doZoom(float scale) {
-        synchronized (mCameraLock) {
-            if (mCamera == null) {
-                return 0;
-            }
-            int currentZoom = 0;
-            int maxZoom;
-            Camera.Parameters parameters = mCamera.getParameters();
-            if (!parameters.isZoomSupported()) {
-                Log.w(TAG, "Zoom is not supported on this device");
-                return currentZoom;
+    /**
+     * Same as {@link #stop()}, but waits for the detection workers and closes the camera on a
+     * background thread and returns right away, so that a slow detector can't block the main
+     * thread.  See {@link #startAsync(LifecycleCallback)}.
+     *
+     * @param callback called on the main thread once stopped, or null
+     * @return the completion of the stop
+     */
+    public Future<Void> stopAsync(@Nullable LifecycleCallback callback) {
+        return submitLifecycle(new Callable<Void>() {
+            @Override
+            public Void call() {
+                stop();
+                return null;
             }
-            maxZoom = parameters.getMaxZoom();
+        }, callback);
+    }
 
-            currentZoom = parameters.getZoom() + 1;
-            float newZoom;
-            if (scale > 1) {
-                newZoom = currentZoom + scale * (maxZoom / 10);
-            } else {
-                newZoom = currentZoom * scale;
+    /**
+     * Same as {@link #release()}, but on a background thread, after any pending asynchronous
+     * starts and stops.  See {@link #startAsync(LifecycleCallback)}.
+     *
+     * @param callback called on the main thread once released, or null
+     * @return the completion of the release
+     */
+    public Future<Void> releaseAsync(@Nullable LifecycleCallback callback) {
+        return submitLifecycle(new Callable<Void>() {
+            @Override
+            public Void call() {
+                release();
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns the preview size that is currently in use by the underlying camera.
+     */
+    public Size getPreviewSize() {
+        if (mCamera2FrameSource != null) {
+            return mCamera2FrameSource.getPreviewSize();
+        }
+        return mPreviewSize;
+    }
+
+    /**
+     * Sets the source of the region of interest, typically the view finder of the overlay that is
+     * drawn on top of the preview.  If a {@link Builder#setRegionMapper region mapper} was set,
+     * frames are cropped to the region of interest before detection, which saves the detector
+     * from decoding pixels whose results would be discarded anyway.  May be changed at any time.
+     *
+     * @param source the region of interest source, or null to always detect on the full frame
+     */
+    public void setRegionOfInterestSource(@Nullable RegionOfInterestSource source) {
+        mRegionOfInterestSource = source;
+    }
+
+    /**
+     * Sets the source of the area which the camera focuses and meters on, typically the overlay
+     * that is drawn on top of the preview, which supplies the barcode being tracked or else its
+     * view finder.  Without focus and metering areas, continuous autofocus often locks on to the
+     * background rather than the barcode in the view finder.  The area is checked as detection
+     * results are delivered, so this requires a processor, see {@link Builder#setProcessor}.
+     * Has no effect on cameras which don't support focus or metering areas.  May be changed at
+     * any time.
+     *
+     * @param source the focus area source, or null to leave the areas to the camera
+     */
+    public void setFocusAreaSource(@Nullable FocusAreaSource source) {
+        mFocusAreaSource = source;
+    }
+
+    /**
+     * Sets the recorder which records every frame received from the frame source, before any
+     * frames are skipped, so that the recording can be replayed with {@link ReplayFrameSource}.
+     * The recorder must have been started, and is left running when this camera source stops.
+     * May be changed at any time.
+     *
+     * @param recorder the recorder, or null to stop passing frames to the recorder
+     */
+    public void setCaptureRecorder(@Nullable CaptureRecorder recorder) {
+        mCaptureRecorder = recorder;
+    }
+
+    /**
+     * Returns the number of frames per second that went through detection since the camera source
+     * was last started.  Compare this across {@link Builder#setDetectionParallelism(int)} values
+     * to see how detection throughput scales with the number of workers.
+     */
+    public float getDetectedFramesPerSecond() {
+        return mFrameProcessor.getDetectedFramesPerSecond();
+    }
+
+    /**
+     * Returns the gate that skips blurry frames, with its metrics since the camera source was
+     * last started, or null if it isn't enabled.
+     *
+     * @see Builder#setSharpnessGate(boolean)
+     */
+    @Nullable
+    public SharpnessGate getSharpnessGate() {
+        return mSharpnessGate;
+    }
+
+    /**
+     * Returns the gate that reuses results while the scene is still, with its metrics since the
+     * camera source was last started, or null if it isn't enabled.
+     *
+     * @see Builder#setSceneChangeGate(boolean)
+     */
+    @Nullable
+    public SceneChangeGate getSceneChangeGate() {
+        return mSceneChangeGate;
+    }
+
+    /**
+     * Returns the auto zoom, with its counters since the camera source was last started, or null
+     * if it isn't enabled.
+     *
+     * @see Builder#setAutoZoom(AutoZoom)
+     */
+    @Nullable
+    public AutoZoom getAutoZoom() {
+        return mAutoZoom;
+    }
+
+    /**
+     * Returns the auto torch, with its counters since the camera source was last started, or null
+     * if it isn't enabled.
+     *
+     * @see Builder#setAutoTorch(boolean)
+     */
+    @Nullable
+    public AutoTorch getAutoTorch() {
+        return mAutoTorch;
+    }
+
+    /**
+     * Returns the backpressure policy, with its counters since the camera source was last
+     * started.
+     *
+     * @see Builder#setBackpressurePolicy(BackpressurePolicy)
+     */
+    public BackpressurePolicy getBackpressurePolicy() {
+        return mBackpressurePolicy;
+    }
+
+    /**
+     * Returns how long it took from the last start until something was first detected, in
+     * milliseconds, or -1 if nothing has been detected yet.  Only measured if a processor was
+     * set, see {@link Builder#setProcessor}.
+     */
+    public long getStartToFirstDecodeMillis() {
+        return mStartToFirstDecodeMillis;
+    }
+
+    /**
+     * Returns the frame rate that frames are currently captured at for detection.  This is the
+     * requested frame rate, unless the frame rate is adapted to the detector.
+     *
+     * @see Builder#setAdaptiveFrameRate(float, long)
+     */
+    public float getTargetFps() {
+        return (mFrameRateGovernor != null) ? mFrameRateGovernor.getTargetFps() : mRequestedFps;
+    }
+
+    /**
+     * Returns the memory held by the preview buffers, in bytes.  The buffers are kept across
+     * {@link #stop()} and reused by the next start if the preview size is unchanged.
+     */
+    public long getPreviewBufferFootprint() {
+        return mBufferPool.getFootprintBytes();
+    }
+
+    /**
+     * Returns the selected camera; one of {@link #CAMERA_FACING_BACK} or
+     * {@link #CAMERA_FACING_FRONT}.
+     */
+    public int getCameraFacing() {
+        return mFacing;
+    }
+
+    public int doZoom(final float scale) {
+        synchronized (mCameraLock) {
+            if (mCamera2FrameSource != null) {
+                return mCamera2FrameSource.zoom(scale);
             }
-            currentZoom = Math.round(newZoom) - 1;
-            if (currentZoom < 0) {
-                currentZoom = 0;
-            } else if (currentZoom > maxZoom) {
-                currentZoom = maxZoom;
+            if (mCamera == null) {
+                return 0;
             }
-            parameters.setZoom(currentZoom);
-            mCamera.setParameters(parameters);
-            return currentZoom;
+            return callOnCameraThread(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return applyZoom(scale);
+                }
+            });
         }
     }
 
+    /**
+     * Returns the thread timings of the per-frame work done by this camera source, i.e., the
+     * preview frame callbacks and the calls into the detector.  Use this to confirm that no frame
+     * work is done on the main thread.
+     */
+    public ThreadTimings getThreadTimings() {
+        return mThreadTimings;
+    }
+
     /**
      * Initiates taking a picture, which happens asynchronously.  The camera source should have been
      * activated previously with {@link #start()} or {@link #start(SurfaceHolder)}.  The camera
@@ -495,11 +1269,17 @@ public class CameraSource {
     public void takePicture(ShutterCallback shutter, PictureCallback jpeg) {
         synchronized (mCameraLock) {
             if (mCamera != null) {
-                PictureStartCallback startCallback = new PictureStartCallback();
+                final PictureStartCallback startCallback = new PictureStartCallback();
                 startCallback.mDelegate = shutter;
-                PictureDoneCallback doneCallback = new PictureDoneCallback();
+                final PictureDoneCallback doneCallback = new PictureDoneCallback();
                 doneCallback.mDelegate = jpeg;
-                mCamera.takePicture(startCallback, null, null, doneCallback);
+                callOnCameraThread(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        mCamera.takePicture(startCallback, null, null, doneCallback);
+                        return null;
+                    }
+                });
             }
         }
     }
@@ -521,6 +1301,9 @@ public class CameraSource {
     @Nullable
     @FocusMode
     public String getFocusMode() {
+        if (mCamera2FrameSource != null) {
+            return mCamera2FrameSource.getFocusMode();
+        }
         return mFocusMode;
     }
 
@@ -531,16 +1314,25 @@ public class CameraSource {
      * @return {@code true} if the focus mode is set, {@code false} otherwise
      * @see #getFocusMode()
      */
-    public boolean setFocusMode(@FocusMode String mode) {
+    public boolean setFocusMode(@FocusMode final String mode) {
         synchronized (mCameraLock) {
+            if (mCamera2FrameSource != null) {
+                return (mode != null) && mCamera2FrameSource.setFocusMode(mode);
+            }
             if (mCamera != null && mode != null) {
-                Camera.Parameters parameters = mCamera.getParameters();
-                if (parameters.getSupportedFocusModes().contains(mode)) {
-                    parameters.setFocusMode(mode);
-                    mCamera.setParameters(parameters);
-                    mFocusMode = mode;
-                    return true;
-                }
+                return callOnCameraThread(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        if (mCapabilities.mSupportedFocusModes.contains(mode)) {
+                            Camera.Parameters parameters = mCamera.getParameters();
+                            parameters.setFocusMode(mode);
+                            mCamera.setParameters(parameters);
+                            mFocusMode = mode;
+                            return true;
+                        }
+                        return false;
+                    }
+                });
             }
 
             return false;
@@ -561,6 +1353,9 @@ public class CameraSource {
     @Nullable
     @FlashMode
     public String getFlashMode() {
+        if (mCamera2FrameSource != null) {
+            return mCamera2FrameSource.getFlashMode();
+        }
         return mFlashMode;
     }
 
@@ -571,22 +1366,74 @@ public class CameraSource {
      * @return {@code true} if the flash mode is set, {@code false} otherwise
      * @see #getFlashMode()
      */
-    public boolean setFlashMode(@FlashMode String mode) {
+    public boolean setFlashMode(@FlashMode final String mode) {
         synchronized (mCameraLock) {
+            if (mCamera2FrameSource != null) {
+                return (mode != null) && mCamera2FrameSource.setFlashMode(mode);
+            }
             if (mCamera != null && mode != null) {
-                Camera.Parameters parameters = mCamera.getParameters();
-                if (parameters.getSupportedFlashModes().contains(mode)) {
-                    parameters.setFlashMode(mode);
-                    mCamera.setParameters(parameters);
-                    mFlashMode = mode;
-                    return true;
-                }
+                return callOnCameraThread(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return applyFlashMode(mode);
+                    }
+                });
             }
 
             return false;
         }
     }
 
+    /**
+     * Sets the flash mode of the running camera, on the camera thread.  Does nothing if the mode
+     * is already set.
+     *
+     * @return {@code true} if the flash mode is set, {@code false} if it isn't supported
+     */
+    private boolean applyFlashMode(String mode) {
+        if (!mCapabilities.mSupportedFlashModes.contains(mode)) {
+            return false;
+        }
+        if (!mode.equals(mFlashMode)) {
+            Camera.Parameters parameters = mCamera.getParameters();
+            parameters.setFlashMode(mode);
+            mCamera.setParameters(parameters);
+            mFlashMode = mode;
+        }
+        return true;
+    }
+
+    /**
+     * Sets the flash mode of the running camera, on the camera thread.  Does not wait for the
+     * mode to be applied, and if another mode is posted in the meantime, only the last one is
+     * applied, so that the camera is reconfigured at most once per turn of the camera thread.
+     */
+    private void postFlashMode(String mode) {
+        if (mCamera2FrameSource != null) {
+            mCamera2FrameSource.setFlashMode(mode);
+            return;
+        }
+        Handler handler = mCameraHandler;
+        if ((handler == null) || (mPendingFlashMode.getAndSet(mode) != null)) {
+            // Not running on the camera, or already posted.
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                String mode = mPendingFlashMode.getAndSet(null);
+                if ((mCamera == null) || (mode == null)) {
+                    return;
+                }
+                try {
+                    applyFlashMode(mode);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Could not set the flash mode to " + mode, e);
+                }
+            }
+        });
+    }
+
     /**
      * Starts camera auto-focus and registers a callback function to run when
      * the camera is focused.  This method is only valid when preview is active
@@ -607,13 +1454,24 @@ public class CameraSource {
      */
     public void autoFocus(@Nullable AutoFocusCallback cb) {
         synchronized (mCameraLock) {
+            if (mCamera2FrameSource != null) {
+                mCamera2FrameSource.autoFocus(cb);
+                return;
+            }
             if (mCamera != null) {
                 CameraAutoFocusCallback autoFocusCallback = null;
                 if (cb != null) {
                     autoFocusCallback = new CameraAutoFocusCallback();
                     autoFocusCallback.mDelegate = cb;
                 }
-                mCamera.autoFocus(autoFocusCallback);
+                final CameraAutoFocusCallback callback = autoFocusCallback;
+                callOnCameraThread(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        mCamera.autoFocus(callback);
+                        return null;
+                    }
+                });
             }
         }
     }
@@ -628,8 +1486,18 @@ public class CameraSource {
      */
     public void cancelAutoFocus() {
         synchronized (mCameraLock) {
+            if (mCamera2FrameSource != null) {
+                mCamera2FrameSource.cancelAutoFocus();
+                return;
+            }
             if (mCamera != null) {
-                mCamera.cancelAutoFocus();
+                callOnCameraThread(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        mCamera.cancelAutoFocus();
+                        return null;
+                    }
+                });
             }
         }
     }
@@ -647,13 +1515,22 @@ public class CameraSource {
         }
 
         synchronized (mCameraLock) {
-            if (mCamera != null) {
+            if (mCamera2FrameSource != null) {
+                mCamera2FrameSource.setAutoFocusMoveCallback(cb);
+            } else if (mCamera != null) {
                 CameraAutoFocusMoveCallback autoFocusMoveCallback = null;
                 if (cb != null) {
                     autoFocusMoveCallback = new CameraAutoFocusMoveCallback();
                     autoFocusMoveCallback.mDelegate = cb;
                 }
-                mCamera.setAutoFocusMoveCallback(autoFocusMoveCallback);
+                final CameraAutoFocusMoveCallback callback = autoFocusMoveCallback;
+                callOnCameraThread(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        mCamera.setAutoFocusMoveCallback(callback);
+                        return null;
+                    }
+                });
             }
         }
 
@@ -696,10 +1573,10 @@ public class CameraSource {
             if (mDelegate != null) {
                 mDelegate.onPictureTaken(data);
             }
-            synchronized (mCameraLock) {
-                if (mCamera != null) {
-                    mCamera.startPreview();
-                }
+            // This is called on the camera thread, which is the only thread that modifies mCamera.
+            // Taking mCameraLock here could deadlock with a caller waiting on the camera thread.
+            if (mCamera != null) {
+                mCamera.startPreview();
             }
         }
     }
@@ -733,6 +1610,179 @@ public class CameraSource {
         }
     }
 
+    /**
+     * Starts the frame processing workers, one per detection worker, and then the frame source.
+     * The workers run on threads of their own, or on the processing executor with warm restart.
+     *
+     * @throws IOException if the frame source could not be started
+     */
+    private void startFrameSource() throws IOException {
+        mFrameProcessor.setActive(true);
+        if (mWarmRestart) {
+            if (mProcessingExecutor == null) {
+                mProcessingExecutor = Executors.newFixedThreadPool(mDetectionParallelism,
+                        new ThreadFactory() {
+                            private int mCount;
+
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                return new Thread(runnable, getProcessingThreadName(mCount++));
+                            }
+                        });
+            }
+            mProcessingTasks = new Future<?>[mDetectionParallelism];
+            for (int i = 0; i < mProcessingTasks.length; ++i) {
+                mProcessingTasks[i] = mProcessingExecutor.submit(mFrameProcessor);
+            }
+        } else {
+            mProcessingThreads = new Thread[mDetectionParallelism];
+            for (int i = 0; i < mProcessingThreads.length; ++i) {
+                mProcessingThreads[i] = new Thread(mFrameProcessor, getProcessingThreadName(i));
+                mProcessingThreads[i].start();
+            }
+        }
+
+        try {
+            mFrameSource.start(mFrameProcessor);
+        } catch (IOException | RuntimeException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the task on the lifecycle thread, and reports its outcome to the callback on the main
+     * thread.
+     */
+    private <T> Future<T> submitLifecycle(Callable<T> task,
+                                          @Nullable final LifecycleCallback callback) {
+        FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                if (callback == null) {
+                    return;
+                }
+                Exception error = null;
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    error = (cause instanceof Exception) ? (Exception) cause : e;
+                } catch (InterruptedException | CancellationException e) {
+                    error = e;
+                }
+                final Exception result = error;
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onComplete(result);
+                    }
+                });
+            }
+        };
+        mLifecycleExecutor.execute(future);
+        return future;
+    }
+
+    private String getProcessingThreadName(int index) {
+        return (mDetectionParallelism == 1) ?
+                PROCESSING_THREAD_NAME : PROCESSING_THREAD_NAME + "-" + index;
+    }
+
+    /**
+     * Returns whether the frame processing workers were started and not yet stopped.
+     */
+    private boolean isProcessing() {
+        return (mProcessingThreads != null) || (mProcessingTasks != null);
+    }
+
+    /**
+     * Waits for the frame processing workers to complete, after the frame processor was made
+     * inactive.  The threads of the processing executor stay alive.  A worker which failed
+     * doesn't keep the others from being waited for.
+     */
+    private void awaitProcessing() {
+        try {
+            if (mProcessingThreads != null) {
+                for (Thread thread : mProcessingThreads) {
+                    thread.join();
+                }
+            } else {
+                for (Future<?> task : mProcessingTasks) {
+                    try {
+                        task.get();
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Frame processing failed.", e.getCause());
+                    } catch (CancellationException e) {
+                        Log.d(TAG, "Frame processing task cancelled.");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Frame processing thread interrupted on release.");
+        }
+        mProcessingThreads = null;
+        mProcessingTasks = null;
+    }
+
+    /**
+     * Returns the handler of the camera thread, starting the thread if it isn't running yet.
+     */
+    private Handler getCameraHandler() {
+        if (mCameraThread == null) {
+            mCameraThread = new HandlerThread(CAMERA_THREAD_NAME);
+            mCameraThread.start();
+            mCameraHandler = new Handler(mCameraThread.getLooper());
+        }
+        return mCameraHandler;
+    }
+
+    /**
+     * Runs the supplied task on the camera thread and waits for it to complete.  If called from the
+     * camera thread itself, the task is run immediately.  Exceptions thrown by the task are
+     * rethrown on the calling thread.
+     *
+     * @throws IOException if the task threw one, or if the wait for the camera thread was
+     *                     interrupted
+     */
+    private <T> T runOnCameraThread(Callable<T> task) throws IOException {
+        Handler handler = getCameraHandler();
+        FutureTask<T> future = new FutureTask<>(task);
+        if (Looper.myLooper() == handler.getLooper()) {
+            future.run();
+        } else if (!handler.post(future)) {
+            throw new IllegalStateException("Camera thread is not running.");
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on the camera thread.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Same as {@link #runOnCameraThread(Callable)}, for tasks which don't do any I/O.
+     */
+    private <T> T callOnCameraThread(Callable<T> task) {
+        try {
+            return runOnCameraThread(task);
+        } catch (IOException e) {
+            throw new IllegalStateException("Camera thread task failed.", e);
+        }
+    }
+
     /**
      * Opens the camera and applies the user settings.
      *
@@ -746,71 +1796,415 @@ public class CameraSource {
         }
         Camera camera = Camera.open(requestedCameraId);
 
-        SizePair sizePair = selectSizePair(camera, mRequestedPreviewWidth, mRequestedPreviewHeight);
+        // The configuration negotiated on an earlier start is applied as is, unless the camera
+        // refuses it, e.g., because the cached entry is stale.
+        if (mCapabilityCache == null) {
+            mCapabilityCache = new CameraCapabilityCache(mContext);
+        }
+        int requestedFpsScaled = (int) (mRequestedFps * 1000.0f);
+        Camera.Parameters parameters = camera.getParameters();
+        int requestedWidth = mRequestedPreviewWidth;
+        int requestedHeight = mRequestedPreviewHeight;
+        if (mPreviewSizeTuner != null) {
+            int[] size = getTunedPreviewSize(requestedCameraId, parameters);
+            requestedWidth = size[0];
+            requestedHeight = size[1];
+        }
+        CameraCapabilities capabilities = mCapabilityCache.get(requestedCameraId);
+        if ((capabilities != null) &&
+                capabilities.matches(requestedWidth, requestedHeight, requestedFpsScaled)) {
+            try {
+                configureCamera(camera, parameters, requestedCameraId, capabilities);
+                Log.d(TAG, "Applied the cached camera configuration: " + capabilities.encode());
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Camera refused the cached configuration, negotiating again", e);
+                mCapabilityCache.remove(requestedCameraId);
+                capabilities = null;
+                parameters = camera.getParameters();
+            }
+        } else {
+            capabilities = null;
+        }
+        if (capabilities == null) {
+            capabilities = negotiateCapabilities(parameters, requestedWidth, requestedHeight,
+                    requestedFpsScaled);
+            configureCamera(camera, parameters, requestedCameraId, capabilities);
+            mCapabilityCache.put(requestedCameraId, capabilities);
+        }
+        mCapabilities = capabilities;
+        mPreviewSize = new Size(capabilities.mPreviewWidth, capabilities.mPreviewHeight);
+
+        // The buffers of the previous session are reused if the preview size didn't change.
+        int bufferCount = getPreviewBufferCount();
+        if (!mBufferPool.ensure(mPreviewSize.getWidth(), mPreviewSize.getHeight(), bufferCount)) {
+            Log.d(TAG, "Allocated " + bufferCount + " preview buffers, " +
+                    mBufferPool.getFootprintBytes() + " bytes");
+        }
+        camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
+        for (int i = 0; i < mBufferPool.size(); ++i) {
+            camera.addCallbackBuffer(mBufferPool.get(i).mData);
+        }
+
+        return camera;
+    }
+
+    /**
+     * Lets the preview size tuner pick the preview size, if there is a tuner and it hasn't picked
+     * one for the camera yet.  Picking benchmarks the detector for up to a few seconds, so this
+     * runs before the camera lock is taken, which would block zooming, focusing and the like
+     * meanwhile.  The camera1 API only lists the preview sizes of an open camera, so the camera is
+     * opened briefly for them, once per device.  The pick is remembered by the tuner, and applied
+     * when the camera is opened.
+     */
+    private void tunePreviewSize() throws IOException {
+        if (mPreviewSizeTuner == null) {
+            return;
+        }
+        if (mCameraFrameSource == null) {
+            if (mCamera2FrameSource != null) {
+                mCamera2FrameSource.tunePreviewSize();
+            }
+            return;
+        }
+        final int cameraId = getIdForRequestedCamera(mFacing);
+        if (cameraId == -1) {
+            return;
+        }
+        String cameraKey = TUNER_CAMERA_KEY_PREFIX + cameraId;
+        if (mPreviewSizeTuner.getRememberedPreviewSize(cameraKey, mRequestedPreviewWidth,
+                mRequestedPreviewHeight) != null) {
+            return;
+        }
+        List<int[]> sizes;
+        synchronized (mLifecycleLock) {
+            synchronized (mCameraLock) {
+                if ((mCamera != null) || isProcessing()) {
+                    return;
+                }
+                sizes = runOnCameraThread(new Callable<List<int[]>>() {
+                    @Override
+                    public List<int[]> call() {
+                        Camera camera = Camera.open(cameraId);
+                        try {
+                            return getPreviewSizes(camera.getParameters());
+                        } finally {
+                            camera.release();
+                        }
+                    }
+                });
+            }
+        }
+        mPreviewSizeTuner.tunePreviewSize(cameraKey, sizes, mRequestedPreviewWidth,
+                mRequestedPreviewHeight);
+    }
+
+    /**
+     * Returns the preview size to request with auto preview size, as picked by the tuner, see
+     * {@link #tunePreviewSize()}.  Must be called on the camera thread.
+     */
+    private int[] getTunedPreviewSize(int cameraId, Camera.Parameters parameters) {
+        String cameraKey = TUNER_CAMERA_KEY_PREFIX + cameraId;
+        int[] size = mPreviewSizeTuner.getRememberedPreviewSize(cameraKey,
+                mRequestedPreviewWidth, mRequestedPreviewHeight);
+        if (size == null) {
+            // Only if tunePreviewSize() didn't leave a pick, e.g., since no size qualified.
+            size = mPreviewSizeTuner.tunePreviewSize(cameraKey, getPreviewSizes(parameters),
+                    mRequestedPreviewWidth, mRequestedPreviewHeight);
+        }
+        return (size != null) ? size : new int[]{mRequestedPreviewWidth, mRequestedPreviewHeight};
+    }
+
+    /**
+     * Returns the valid preview sizes of the camera, as {width, height}.
+     */
+    private static List<int[]> getPreviewSizes(Camera.Parameters parameters) {
+        List<int[]> sizes = new ArrayList<>();
+        for (SizePair sizePair : generateValidPreviewSizeList(parameters)) {
+            Size previewSize = sizePair.previewSize();
+            sizes.add(new int[]{previewSize.getWidth(), previewSize.getHeight()});
+        }
+        return sizes;
+    }
+
+    /**
+     * Selects the preview size, picture size and frames per second range for the requested
+     * values, and records them along with the supported modes.
+     *
+     * @throws RuntimeException if there is no suitable size or range
+     */
+    private CameraCapabilities negotiateCapabilities(Camera.Parameters parameters,
+                                                     int requestedWidth, int requestedHeight,
+                                                     int requestedFpsScaled) {
+        SizePair sizePair = selectSizePair(parameters, requestedWidth, requestedHeight);
         if (sizePair == null) {
             throw new RuntimeException("Could not find suitable preview size.");
         }
+        Size previewSize = sizePair.previewSize();
         Size pictureSize = sizePair.pictureSize();
-        mPreviewSize = sizePair.previewSize();
 
-        int[] previewFpsRange = selectPreviewFpsRange(camera, mRequestedFps);
+        List<int[]> supportedFpsRanges = parameters.getSupportedPreviewFpsRange();
+        int[] previewFpsRange = selectPreviewFpsRange(supportedFpsRanges, mRequestedFps);
         if (previewFpsRange == null) {
             throw new RuntimeException("Could not find suitable preview frames per second range.");
         }
 
-        Camera.Parameters parameters = camera.getParameters();
+        return new CameraCapabilities(requestedWidth, requestedHeight,
+                requestedFpsScaled, previewSize.getWidth(), previewSize.getHeight(),
+                (pictureSize != null) ? pictureSize.getWidth() : 0,
+                (pictureSize != null) ? pictureSize.getHeight() : 0,
+                previewFpsRange, supportedFpsRanges, parameters.getSupportedFocusModes(),
+                parameters.getSupportedFlashModes());
+    }
 
-        parameters.setPictureSize(pictureSize.getWidth(), pictureSize.getHeight());
-        parameters.setPreviewSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+    /**
+     * Applies the configuration and the user settings to the camera, in a single call to
+     * {@link Camera#setParameters(Camera.Parameters)}.
+     *
+     * @throws RuntimeException if the camera refuses the parameters
+     */
+    private void configureCamera(Camera camera, Camera.Parameters parameters, int cameraId,
+                                 CameraCapabilities capabilities) {
+        if (capabilities.mPictureWidth > 0) {
+            parameters.setPictureSize(capabilities.mPictureWidth, capabilities.mPictureHeight);
+        }
+        parameters.setPreviewSize(capabilities.mPreviewWidth, capabilities.mPreviewHeight);
         parameters.setPreviewFpsRange(
-                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
-                previewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+                capabilities.mPreviewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                capabilities.mPreviewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
         parameters.setPreviewFormat(ImageFormat.NV21);
 
-        setRotation(camera, parameters, requestedCameraId);
+        setRotation(camera, parameters, cameraId);
 
         if (mFocusMode != null) {
-            if (parameters.getSupportedFocusModes().contains(
-                    mFocusMode)) {
+            if (capabilities.mSupportedFocusModes.contains(mFocusMode)) {
                 parameters.setFocusMode(mFocusMode);
             } else {
                 Log.i(TAG, "Camera focus mode: " + mFocusMode + " is not supported on this device.");
             }
         }
 
-        // setting mFocusMode to the one set in the params
-        mFocusMode = parameters.getFocusMode();
-
         if (mFlashMode != null) {
-            if (parameters.getSupportedFlashModes().contains(
-                    mFlashMode)) {
+            if (capabilities.mSupportedFlashModes.contains(mFlashMode)) {
                 parameters.setFlashMode(mFlashMode);
             } else {
                 Log.i(TAG, "Camera flash mode: " + mFlashMode + " is not supported on this device.");
             }
         }
 
-        // setting mFlashMode to the one set in the params
-        mFlashMode = parameters.getFlashMode();
-
         camera.setParameters(parameters);
 
-        // Four frame buffers are needed for working with the camera:
-        //
-        //   one for the frame that is currently being executed upon in doing detection
-        //   one for the next pending frame to process immediately upon completing detection
-        //   two for the frames that the camera uses to populate future preview images
-        camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-
-        return camera;
+        // setting mFocusMode and mFlashMode to the ones set in the params
+        mFocusMode = parameters.getFocusMode();
+        mFlashMode = parameters.getFlashMode();
     }
 
     /**
-     * Gets the id for the camera specified by the direction it is facing.  Returns -1 if no such
+     * Returns the number of preview buffers to allocate.  See DEFAULT_PREVIEW_BUFFER_COUNT for how
+     * many are needed.  Every additional detection worker holds one more frame in detection, and
+     * every additional pending frame of the backpressure policy one more.  With latest wins, there
+     * is one pending frame per worker.
+     */
+    private int getPreviewBufferCount() {
+        int pendingCapacity = mBackpressurePolicy.getPendingCapacity(mDetectionParallelism);
+        return Math.max(mPreviewBufferCount, DEFAULT_PREVIEW_BUFFER_COUNT +
+                (mDetectionParallelism - 1) + (pendingCapacity - 1));
+    }
+
+    /**
+     * Stops the preview and releases the camera.  Must be called on the camera thread.
+     */
+    private void releaseCamera() {
+        mCamera.stopPreview();
+        mCamera.setPreviewCallbackWithBuffer(null);
+        try {
+            // We want to be compatible back to Gingerbread, but SurfaceTexture
+            // wasn't introduced until Honeycomb.  Since the interface cannot use a SurfaceTexture, if the
+            // developer wants to display a preview we must use a SurfaceHolder.  If the developer doesn't
+            // want to display a preview we use a SurfaceTexture if we are running at least Honeycomb.
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                mCamera.setPreviewTexture(null);
+
+            } else {
+                mCamera.setPreviewDisplay(null);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to clear camera preview: " + e);
+        }
+        mCamera.release();
+        mCamera = null;
+    }
+
+    /**
+     * Applies the zoom scale to the camera.  Must be called on the camera thread.
+     *
+     * @return the new zoom value
+     */
+    private int applyZoom(float scale) {
+        int currentZoom = 0;
+        int maxZoom;
+        Camera.Parameters parameters = mCamera.getParameters();
+        if (!parameters.isZoomSupported()) {
+            Log.w(TAG, "Zoom is not supported on this device");
+            return currentZoom;
+        }
+        maxZoom = parameters.getMaxZoom();
+
+        currentZoom = getScaledZoom(parameters.getZoom(), maxZoom, scale);
+        parameters.setZoom(currentZoom);
+        mCamera.setParameters(parameters);
+        return currentZoom;
+    }
+
+    /**
+     * Moves the focus and metering areas of the camera to the area of the focus area source, if
+     * that moved noticeably since the areas were last set.  Must be called on the thread that
+     * delivers the results, after they were delivered, so that the tracked items are current.
+     */
+    private void updateFocusArea(long nowMillis) {
+        FocusAreaSource source = mFocusAreaSource;
+        if ((source == null) || (nowMillis - mFocusAreaMillis < FOCUS_AREA_INTERVAL_MILLIS)) {
+            return;
+        }
+        mFocusAreaMillis = nowMillis;
+        Size previewSize = getPreviewSize();
+        if ((previewSize == null) || !source.getFocusArea(mNextFocusArea)) {
+            return;
+        }
+        int tolerance = Math.max(previewSize.getWidth(), previewSize.getHeight()) /
+                FOCUS_AREA_TOLERANCE_DIVISOR;
+        if (!mFocusArea.isEmpty() &&
+                (Math.abs(mNextFocusArea.left - mFocusArea.left) <= tolerance) &&
+                (Math.abs(mNextFocusArea.top - mFocusArea.top) <= tolerance) &&
+                (Math.abs(mNextFocusArea.right - mFocusArea.right) <= tolerance) &&
+                (Math.abs(mNextFocusArea.bottom - mFocusArea.bottom) <= tolerance)) {
+            return;
+        }
+        mFocusArea.set(mNextFocusArea);
+        postFocusArea(new Rect(mFocusArea));
+    }
+
+    /**
+     * Sets the focus and metering areas of the running camera, on the camera thread.  Does not
+     * wait for the areas to be applied.
+     *
+     * @param upright the area in upright preview frame coordinates
+     */
+    private void postFocusArea(final Rect upright) {
+        if (mCamera2FrameSource != null) {
+            mCamera2FrameSource.setFocusArea(upright);
+            return;
+        }
+        Handler handler = mCameraHandler;
+        if (handler == null) {
+            // Not running on the camera.
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCamera == null) {
+                    return;
+                }
+                try {
+                    Camera.Parameters parameters = mCamera.getParameters();
+                    boolean focusAreas = parameters.getMaxNumFocusAreas() > 0;
+                    boolean meteringAreas = parameters.getMaxNumMeteringAreas() > 0;
+                    if (!focusAreas && !meteringAreas) {
+                        return;
+                    }
+                    int width = mPreviewSize.getWidth();
+                    int height = mPreviewSize.getHeight();
+                    Rect area = new Rect();
+                    GeometryUtils.uprightToSensor(upright, mRotation, width, height, area);
+                    GeometryUtils.sensorToCameraArea(area, width, height, area);
+                    List<Camera.Area> areas =
+                            Collections.singletonList(new Camera.Area(area, CAMERA_AREA_WEIGHT));
+                    if (focusAreas) {
+                        parameters.setFocusAreas(areas);
+                    }
+                    if (meteringAreas) {
+                        parameters.setMeteringAreas(areas);
+                    }
+                    mCamera.setParameters(parameters);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Could not set the focus area to " + upright, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Zooms the running camera by the given number of auto zoom steps, on the camera thread.
+     * Does not wait for the zoom to be applied.
+     */
+    private void postZoomSteps(final int steps) {
+        if (mCamera2FrameSource != null) {
+            mCamera2FrameSource.zoomBySteps(steps);
+            return;
+        }
+        Handler handler = mCameraHandler;
+        if (handler == null) {
+            // Not running on the camera.
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCamera == null) {
+                    return;
+                }
+                try {
+                    Camera.Parameters parameters = mCamera.getParameters();
+                    if (!parameters.isZoomSupported()) {
+                        return;
+                    }
+                    int zoom = getSteppedZoom(parameters.getZoom(), parameters.getMaxZoom(), steps);
+                    if (parameters.isSmoothZoomSupported()) {
+                        mCamera.stopSmoothZoom();
+                        mCamera.startSmoothZoom(zoom);
+                    } else {
+                        parameters.setZoom(zoom);
+                        mCamera.setParameters(parameters);
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Could not zoom by " + steps + " steps", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the zoom value after zooming by the given number of auto zoom steps, from 0 to
+     * {@code maxZoom}.  See {@link AutoZoom#STEPS_TO_MAX_ZOOM}.
+     */
+    static int getSteppedZoom(int zoom, int maxZoom, int steps) {
+        int step = Math.max(1, Math.round(maxZoom / (float) AutoZoom.STEPS_TO_MAX_ZOOM));
+        return Math.max(0, Math.min(maxZoom, zoom + steps * step));
+    }
+
+    /**
+     * Returns the zoom value after zooming by the given scale, from 0 to {@code maxZoom}.
+     */
+    static int getScaledZoom(int zoom, int maxZoom, float scale) {
+        int currentZoom = zoom + 1;
+        float newZoom;
+        if (scale > 1) {
+            newZoom = currentZoom + scale * (maxZoom / 10);
+        } else {
+            newZoom = currentZoom * scale;
+        }
+        currentZoom = Math.round(newZoom) - 1;
+        if (currentZoom < 0) {
+            currentZoom = 0;
+        } else if (currentZoom > maxZoom) {
+            currentZoom = maxZoom;
+        }
+        return currentZoom;
+    }
+
+    /**
+     * Gets the id for the camera specified by the direction it is facing.  Returns -1 if no such
      * camera was found.
      *
      * @param facing the desired camera (front-facing or rear-facing)
@@ -834,13 +2228,14 @@ public class CameraSource {
      * ratio.  On some hardware, if you would only set the preview size, you will get a distorted
      * image.
      *
-     * @param camera        the camera to select a preview size from
+     * @param parameters    the parameters of the camera to select a preview size from
      * @param desiredWidth  the desired width of the camera preview frames
      * @param desiredHeight the desired height of the camera preview frames
      * @return the selected preview and picture size pair
      */
-    private static SizePair selectSizePair(Camera camera, int desiredWidth, int desiredHeight) {
-        List<SizePair> validPreviewSizes = generateValidPreviewSizeList(camera);
+    private static SizePair selectSizePair(Camera.Parameters parameters, int desiredWidth,
+                                           int desiredHeight) {
+        List<SizePair> validPreviewSizes = generateValidPreviewSizeList(parameters);
 
         // The method for selecting the best size is to minimize the sum of the differences between
         // the desired values and the actual values for width and height.  This is certainly not the
@@ -875,7 +2270,9 @@ public class CameraSource {
         public SizePair(android.hardware.Camera.Size previewSize,
                         android.hardware.Camera.Size pictureSize) {
             mPreview = new Size(previewSize.width, previewSize.height);
-            mPicture = new Size(pictureSize.width, pictureSize.height);
+            if (pictureSize != null) {
+                mPicture = new Size(pictureSize.width, pictureSize.height);
+            }
         }
 
         public Size previewSize() {
@@ -905,8 +2302,7 @@ public class CameraSource {
      * set to a size that is the same aspect ratio as the preview size we choose.  Otherwise, the
      * preview images may be distorted on some devices.
      */
-    private static List<SizePair> generateValidPreviewSizeList(Camera camera) {
-        Camera.Parameters parameters = camera.getParameters();
+    private static List<SizePair> generateValidPreviewSizeList(Camera.Parameters parameters) {
         List<android.hardware.Camera.Size> supportedPreviewSizes =
                 parameters.getSupportedPreviewSizes();
         List<android.hardware.Camera.Size> supportedPictureSizes =
@@ -947,11 +2343,12 @@ public class CameraSource {
      * Selects the most suitable preview frames per second range, given the desired frames per
      * second.
      *
-     * @param camera            the camera to select a frames per second range from
-     * @param desiredPreviewFps the desired frames per second for the camera preview frames
+     * @param previewFpsRangeList the supported frames per second ranges to select from
+     * @param desiredPreviewFps   the desired frames per second for the camera preview frames
      * @return the selected preview frames per second range
      */
-    private int[] selectPreviewFpsRange(Camera camera, float desiredPreviewFps) {
+    private static int[] selectPreviewFpsRange(List<int[]> previewFpsRangeList,
+                                               float desiredPreviewFps) {
         // The camera API uses integers scaled by a factor of 1000 instead of floating-point frame
         // rates.
         int desiredPreviewFpsScaled = (int) (desiredPreviewFps * 1000.0f);
@@ -963,7 +2360,6 @@ public class CameraSource {
         // range (15, 30).
         int[] selectedFpsRange = null;
         int minDiff = Integer.MAX_VALUE;
-        List<int[]> previewFpsRangeList = camera.getParameters().getSupportedPreviewFpsRange();
         for (int[] range : previewFpsRangeList) {
             int deltaMin = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
             int deltaMax = desiredPreviewFpsScaled - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
@@ -976,6 +2372,50 @@ public class CameraSource {
         return selectedFpsRange;
     }
 
+    /**
+     * Reconfigures the preview frames per second range of the running camera for the given frame
+     * rate, on the camera thread.  Does not wait for the change to be applied.
+     */
+    private void postPreviewFpsRange(final float fps) {
+        if (mCamera2FrameSource != null) {
+            mCamera2FrameSource.setFrameRate(fps);
+            return;
+        }
+        Handler handler = mCameraHandler;
+        if (handler == null) {
+            // Not running on the camera.
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCamera == null) {
+                    return;
+                }
+                try {
+                    int[] range = selectPreviewFpsRange(mCapabilities.mSupportedFpsRanges, fps);
+                    if (range == null) {
+                        return;
+                    }
+                    Camera.Parameters parameters = mCamera.getParameters();
+                    int[] current = new int[2];
+                    parameters.getPreviewFpsRange(current);
+                    if (Arrays.equals(current, range)) {
+                        return;
+                    }
+                    parameters.setPreviewFpsRange(
+                            range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                            range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+                    mCamera.setParameters(parameters);
+                } catch (RuntimeException e) {
+                    // Some cameras refuse to change the range while previewing, in which case
+                    // the frame rate is only limited by skipping frames.
+                    Log.w(TAG, "Could not change the preview frame rate to " + fps, e);
+                }
+            }
+        });
+    }
+
     /**
      * Calculates the correct rotation for the given camera id and sets the rotation in the
      * parameters.  It also sets the camera's display orientation and rotation.
@@ -984,26 +2424,7 @@ public class CameraSource {
      * @param cameraId   the camera id to set rotation based on
      */
     private void setRotation(Camera camera, Camera.Parameters parameters, int cameraId) {
-        WindowManager windowManager =
-                (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
-        int degrees = 0;
-        int rotation = windowManager.getDefaultDisplay().getRotation();
-        switch (rotation) {
-            case Surface.ROTATION_0:
-                degrees = 0;
-                break;
-            case Surface.ROTATION_90:
-                degrees = 90;
-                break;
-            case Surface.ROTATION_180:
-                degrees = 180;
-                break;
-            case Surface.ROTATION_270:
-                degrees = 270;
-                break;
-            default:
-                Log.e(TAG, "Bad rotation value: " + rotation);
-        }
+        int degrees = getDisplayRotationDegrees(mContext);
 
         CameraInfo cameraInfo = new CameraInfo();
         Camera.getCameraInfo(cameraId, cameraInfo);
@@ -1026,32 +2447,30 @@ public class CameraSource {
     }
 
     /**
-     * Creates one buffer for the camera preview callback.  The size of the buffer is based off of
-     * the camera preview size and the format of the camera image.
-     *
-     * @return a new preview buffer of the appropriate size for the current camera settings
+     * Returns the rotation of the display from its natural orientation, in degrees.
      */
-    private byte[] createPreviewBuffer(Size previewSize) {
-        int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
-        long sizeInBits = previewSize.getHeight() * previewSize.getWidth() * bitsPerPixel;
-        int bufferSize = (int) Math.ceil(sizeInBits / 8.0d) + 1;
-
-        //
-        // NOTICE: This code only works when using play services v. 8.1 or higher.
-        //
-
-        // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
-        // should guarantee that there will be an array to work with.
-        byte[] byteArray = new byte[bufferSize];
-        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
-        if (!buffer.hasArray() || (buffer.array() != byteArray)) {
-            // I don't think that this will ever happen.  But if it does, then we wouldn't be
-            // passing the preview content to the underlying detector later.
-            throw new IllegalStateException("Failed to create valid buffer for camera source.");
+    static int getDisplayRotationDegrees(Context context) {
+        WindowManager windowManager =
+                (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        int degrees = 0;
+        int rotation = windowManager.getDefaultDisplay().getRotation();
+        switch (rotation) {
+            case Surface.ROTATION_0:
+                degrees = 0;
+                break;
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+            default:
+                Log.e(TAG, "Bad rotation value: " + rotation);
         }
-
-        mBytesToByteBuffer.put(byteArray, buffer);
-        return byteArray;
+        return degrees;
     }
 
     //==============================================================================================
@@ -1064,7 +2483,145 @@ public class CameraSource {
     private class CameraPreviewCallback implements Camera.PreviewCallback {
         @Override
         public void onPreviewFrame(byte[] data, Camera camera) {
-            mFrameProcessor.setNextFrame(data, camera);
+            long startNanos = System.nanoTime();
+            mCameraFrameSource.onPreviewFrame(data, camera);
+            mThreadTimings.record(startNanos);
+        }
+    }
+
+    /**
+     * The camera as a frame source.  The camera itself is opened and released by the camera
+     * source; this only passes the preview frames on while started, and hands their buffers back
+     * to the camera.
+     */
+    private class CameraFrameSource implements FrameSource {
+        private volatile Callback mCallback;
+        private long mStartTimeMillis = SystemClock.elapsedRealtime();
+
+        // Only accessed on the camera thread.
+        private int mFrameId = 0;
+
+        @Override
+        public void start(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void stop() {
+            mCallback = null;
+        }
+
+        @Override
+        public void recycle(byte[] data) {
+            Camera camera = mCamera;
+            if (camera != null) {
+                camera.addCallbackBuffer(data);
+            }
+        }
+
+        void onPreviewFrame(byte[] data, Camera camera) {
+            if (mBufferPool.find(data) == null) {
+                // Not one of ours (anymore), so don't hand it back to the camera.
+                return;
+            }
+            Callback callback = mCallback;
+            if (callback == null) {
+                camera.addCallbackBuffer(data);
+                return;
+            }
+
+            // Timestamp and frame ID are maintained here, which will give downstream code some
+            // idea of the timing of frames received and when frames were dropped along the way.
+            callback.onFrame(data, ++mFrameId, SystemClock.elapsedRealtime() - mStartTimeMillis,
+                    mPreviewSize.getWidth(), mPreviewSize.getHeight(), mRotation);
+        }
+    }
+
+    /**
+     * Times the detector on a rendered EAN-13 barcode, for the preview size tuner, so that the
+     * time includes decoding and not only the search for barcodes.  The image is kept while the
+     * same size is benchmarked.
+     */
+    private static class DetectorBenchmark implements PreviewSizeTuner.Benchmark {
+        private static final String BARCODE = "4006381333931";
+
+        private final Detector<?> mDetector;
+        private byte[] mImage;
+        private int mWidth;
+        private int mHeight;
+
+        DetectorBenchmark(Detector<?> detector) {
+            mDetector = detector;
+        }
+
+        @Override
+        public long detectNanos(int width, int height) {
+            if ((mImage == null) || (width != mWidth) || (height != mHeight)) {
+                mImage = new byte[Nv21Utils.getImageSize(width, height)];
+                SyntheticFrameSource.renderEan13(mImage, width, height, BARCODE);
+                mWidth = width;
+                mHeight = height;
+            }
+            Frame frame = new Frame.Builder()
+                    .setImageData(ByteBuffer.wrap(mImage), width, height, ImageFormat.NV21)
+                    .build();
+            long startNanos = System.nanoTime();
+            mDetector.detect(frame);
+            return System.nanoTime() - startNanos;
+        }
+
+        @Override
+        public void finish() {
+            mImage = null;
+        }
+    }
+
+    /**
+     * Per processing thread scratch state, so that frames can be cropped without allocating.
+     */
+    private static class FrameScratch {
+        final Rect mRegion = new Rect();
+        final Rect mCrop = new Rect();
+        boolean mCropped;
+        byte[] mData;
+        ByteBuffer mBuffer;
+
+        // Coarse to fine detection: the downsampled frame, the part of the frame that is detected
+        // at full resolution, and that part in upright coordinates.
+        final StructureFinder mStructureFinder = new StructureFinder();
+        final Rect mFine = new Rect();
+        final Rect mFineUpright = new Rect();
+        byte[] mCoarseData;
+        ByteBuffer mCoarseBuffer;
+        byte[] mFineData;
+        ByteBuffer mFineBuffer;
+
+        // Whether the fine pass of coarse to fine detection found nothing, for the auto zoom.
+        boolean mNearMiss;
+
+        // Signature of the frame for the scene change gate.
+        final int[] mSignature =
+                new int[SceneChangeGate.SIGNATURE_COLUMNS * SceneChangeGate.SIGNATURE_ROWS];
+
+        void ensureCapacity(int size) {
+            if ((mData == null) || (mData.length < size)) {
+                mData = new byte[size];
+                mBuffer = ByteBuffer.wrap(mData);
+            }
+        }
+
+        void ensureCoarseCapacity(int size) {
+            if ((mCoarseData == null) || (mCoarseData.length < size)) {
+                mCoarseData = new byte[size];
+                mCoarseBuffer = ByteBuffer.wrap(mCoarseData);
+            }
+        }
+
+        void ensureFineCapacity(int size) {
+            if ((mFineData == null) || (mFineData.length < size)) {
+                mFineData = new byte[size];
+                mFineBuffer = ByteBuffer.wrap(mFineData);
+            }
         }
     }
 
@@ -1077,74 +2634,205 @@ public class CameraSource {
      * frames come in, the most recent frame is held onto as pending.  As soon as detection and its
      * associated processing are done for the previous frame, detection on the mostly recently
      * received frame will immediately start on the same thread.
+     * <p/>
+     * Frames are handed over from the camera thread (or the thread of another
+     * {@link FrameSource}) through a lock-free {@link LatestFrameSlot}, so neither the camera
+     * callback nor the processing thread ever contends on a monitor.
+     * <p/>
+     * With parallel detection, this runnable is run by several worker threads.  The most recent
+     * frames are then held in a bounded {@link PreviewFrameRing} instead, and the results are put
+     * back into frame order by a {@link DetectionResequencer} before reaching the processor.  The
+     * ring is also used as the queue of a bounded queue {@link BackpressurePolicy}.
      */
-    private class FrameProcessingRunnable implements Runnable {
+    private class FrameProcessingRunnable implements Runnable, FrameSource.Callback {
         private Detector<?> mDetector;
-        private long mStartTimeMillis = SystemClock.elapsedRealtime();
 
-        // This lock guards all of the member variables below.
-        private final Object mLock = new Object();
-        private boolean mActive = true;
+        // Holds the newest frame awaiting processing, when detecting on a single thread and only
+        // the latest frame is kept.
+        private final LatestFrameSlot<PreviewFrame> mPendingFrame;
+
+        // Hold the frames awaiting processing otherwise.
+        private final PreviewFrameRing mPendingFrames;
+
+        // Reorders the results, when detecting on several workers.
+        private final DetectionResequencer<Detector.Detections<?>> mResequencer;
+
+        // Throughput since the last activation.
+        private final AtomicLong mDetectedFrames = new AtomicLong();
+        private volatile long mActiveSinceMillis;
+
+        // Outcome of coarse to fine detection since the last activation.
+        private final AtomicLong mCoarseHits = new AtomicLong();
+        private final AtomicLong mFinePasses = new AtomicLong();
 
-        // These pending variables hold the state associated with the new frame awaiting processing.
-        private long mPendingTimeMillis;
-        private int mPendingFrameId = 0;
-        private ByteBuffer mPendingFrameData;
+        // The results of the last frame that went through detection, reused by the scene change
+        // gate while the scene is still.
+        private volatile Detector.Detections<?> mLastDetections;
 
-        FrameProcessingRunnable(Detector<?> detector) {
+        // Scratch buffers of the processing threads, kept across restarts.
+        private final ArrayDeque<FrameScratch> mScratchPool = new ArrayDeque<>();
+
+        FrameProcessingRunnable(Detector<?> detector, int parallelism) {
             mDetector = detector;
+            if (mBackpressurePolicy.isLatestOnly(parallelism)) {
+                mPendingFrame = new LatestFrameSlot<>();
+                mPendingFrames = null;
+            } else {
+                mPendingFrame = null;
+                mPendingFrames = new PreviewFrameRing(
+                        mBackpressurePolicy.getPendingCapacity(parallelism),
+                        mBackpressurePolicy.dropsNewest());
+            }
+            if (parallelism == 1) {
+                mResequencer = null;
+            } else {
+                mResequencer = new DetectionResequencer<>(2 * parallelism,
+                        new DetectionResequencer.Sink<Detector.Detections<?>>() {
+                            @Override
+                            public void deliver(Detector.Detections<?> detections) {
+                                deliverDetections(detections);
+                            }
+                        });
+            }
         }
 
         /**
-         * Releases the underlying receiver.  This is only safe to do after the associated thread
-         * has completed, which is managed in camera source's release method above.
+         * Releases the underlying receiver.  This is only safe to do after the associated threads
+         * have completed, which is managed in camera source's release method above.
          */
         @SuppressLint("Assert")
         void release() {
-            assert (mProcessingThread.getState() == State.TERMINATED);
+            assert (mProcessingThreads == null);
             mDetector.release();
             mDetector = null;
         }
 
         /**
          * Marks the runnable as active/not active.  Signals any blocked threads to continue.
+         * Pending frames which were never processed are handed back to the frame source.
          */
         void setActive(boolean active) {
-            synchronized (mLock) {
-                mActive = active;
-                mLock.notifyAll();
+            if (mPendingFrames == null) {
+                mPendingFrame.setActive(active);
+                PreviewFrame frame = mPendingFrame.poll();
+                if (frame != null) {
+                    mBackpressurePolicy.onRecycled();
+                    mFrameSource.recycle(frame.mData);
+                }
+            } else {
+                mPendingFrames.setActive(active);
+                PreviewFrame frame;
+                while ((frame = mPendingFrames.poll()) != null) {
+                    mBackpressurePolicy.onRecycled();
+                    mFrameSource.recycle(frame.mData);
+                }
+            }
+            if (mResequencer != null) {
+                mResequencer.setActive(active);
+            }
+
+            if (active) {
+                mBackpressurePolicy.reset();
+                mDetectedFrames.set(0);
+                mCoarseHits.set(0);
+                mFinePasses.set(0);
+                mActiveSinceMillis = SystemClock.elapsedRealtime();
+                if (mFrameRateGovernor != null) {
+                    mFrameRateGovernor.reset(mActiveSinceMillis);
+                }
+                if (mSharpnessGate != null) {
+                    mSharpnessGate.reset();
+                }
+                if (mSceneChangeGate != null) {
+                    mSceneChangeGate.reset();
+                    mLastDetections = null;
+                }
+                if (mAutoZoom != null) {
+                    mAutoZoom.reset();
+                }
+                if (mAutoTorch != null) {
+                    mPendingFlashMode.set(null);
+                    mAutoTorch.reset(Camera.Parameters.FLASH_MODE_TORCH.equals(getFlashMode()));
+                }
+                // The camera starts out with its own focus and metering areas.
+                mFocusArea.setEmpty();
+                mFocusAreaMillis = 0;
             }
         }
 
         /**
-         * Sets the frame data received from the camera.  This adds the previous unused frame buffer
-         * (if present) back to the camera, and keeps a pending reference to the frame data for
-         * future use.
+         * Returns the detection throughput since the last activation.
          */
-        void setNextFrame(byte[] data, Camera camera) {
-            synchronized (mLock) {
-                if (mPendingFrameData != null) {
-                    camera.addCallbackBuffer(mPendingFrameData.array());
-                    mPendingFrameData = null;
-                }
+        float getDetectedFramesPerSecond() {
+            long elapsedMillis = SystemClock.elapsedRealtime() - mActiveSinceMillis;
+            return (elapsedMillis <= 0) ? 0 : mDetectedFrames.get() * 1000.0f / elapsedMillis;
+        }
+
+        /**
+         * Returns how many frames were decoded by the coarse pass, and how many needed a full
+         * resolution pass, since the last activation.
+         */
+        String getCoarseToFineStats() {
+            long frames = mDetectedFrames.get();
+            long coarseHits = mCoarseHits.get();
+            long finePasses = mFinePasses.get();
+            return "Coarse to fine detection: " + coarseHits + " coarse hits, " + finePasses +
+                    " fine passes, " + (frames - coarseHits - finePasses) + " skipped of " +
+                    frames + " frames";
+        }
+
+        /**
+         * Receives the frame data from the frame source.  This hands the previous unused frame
+         * buffer (if present) back to the source, and keeps a pending reference to the frame data
+         * for future use.
+         */
+        @Override
+        public void onFrame(byte[] data, int id, long timestampMillis, int width, int height,
+                            int rotation) {
+            CaptureRecorder recorder = mCaptureRecorder;
+            if (recorder != null) {
+                recorder.record(data, width, height, rotation, timestampMillis);
+            }
 
-                // Timestamp and frame ID are maintained here, which will give downstream code some
-                // idea of the timing of frames received and when frames were dropped along the way.
-                mPendingTimeMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
-                mPendingFrameId++;
-                mPendingFrameData = mBytesToByteBuffer.get(data);
+            // Frames beyond the adapted frame rate go straight back to the source.
+            if ((mFrameRateGovernor != null) &&
+                    !mFrameRateGovernor.acceptFrame(SystemClock.elapsedRealtime())) {
+                mFrameSource.recycle(data);
+                return;
+            }
+            if (!mBackpressurePolicy.accept()) {
+                // Skipped by design, which mustn't look like a drop to the governor.
+                if (mFrameRateGovernor != null) {
+                    mFrameRateGovernor.onFrameSkipped();
+                }
+                mFrameSource.recycle(data);
+                return;
+            }
 
-                // Notify the processor thread if it is waiting on the next frame (see below).
-                mLock.notifyAll();
+            PreviewFrame frame = mBufferPool.adopt(data);
+            frame.mId = id;
+            frame.mTimestampMillis = timestampMillis;
+            frame.mWidth = width;
+            frame.mHeight = height;
+            frame.mRotation = rotation;
+
+            // Publishing the frame wakes up the processor thread if it is waiting on the next
+            // frame (see below).  A frame that was displaced is stale by now, and a frame that was
+            // rejected by a full queue is not going to be processed, so either buffer goes
+            // straight back to the source.
+            PreviewFrame displaced = (mPendingFrames == null) ?
+                    mPendingFrame.offer(frame) : mPendingFrames.offer(frame);
+            if (displaced != null) {
+                mBackpressurePolicy.onDropped();
+                mFrameSource.recycle(displaced.mData);
             }
         }
 
         /**
          * As long as the processing thread is active, this executes detection on frames
          * continuously.  The next pending frame is either immediately available or hasn't been
-         * received yet.  Once it is available, we transfer the frame info to local variables and
-         * run detection on that frame.  It immediately loops back for the next frame without
-         * pausing.
+         * received yet.  Once it is available, we take ownership of the frame and run detection on
+         * it.  It immediately loops back for the next frame without pausing.
          * <p/>
          * If detection takes longer than the time in between new frames from the camera, this will
          * mean that this loop will run without ever waiting on a frame, avoiding any context
@@ -1155,57 +2843,384 @@ public class CameraSource {
          */
         @Override
         public void run() {
-            Frame outputFrame;
-            ByteBuffer data;
+            FrameScratch scratch = obtainScratch();
+            try {
+                processFrames(scratch);
+            } finally {
+                recycleScratch(scratch);
+            }
+        }
 
+        private void processFrames(FrameScratch scratch) {
             while (true) {
-                synchronized (mLock) {
-                    if (mActive && (mPendingFrameData == null)) {
-                        try {
-                            // Wait for the next frame to be received from the camera, since we
-                            // don't have it yet.
-                            mLock.wait();
-                        } catch (InterruptedException e) {
-                            Log.d(TAG, "Frame processing loop terminated.", e);
-                            return;
-                        }
+                // Wait for the next frame to be received from the camera, if we don't have it yet.
+                // Taking the frame removes it from the slot (or ring), which ensures that this
+                // buffer isn't recycled back to the camera before we are done using that data.
+                PreviewFrame frame = takeFrame();
+                if (frame == null) {
+                    // Exit the loop once this camera source is stopped or released, or the thread
+                    // was interrupted.
+                    Log.d(TAG, "Frame processing loop terminated.");
+                    return;
+                }
+                mBackpressurePolicy.onProcessed();
+
+                long startNanos = System.nanoTime();
+                boolean recycled = false;
+                boolean detected = false;
+                Detector.Detections<?> detections = null;
+                try {
+                    if ((mAutoTorch != null) && mAutoTorch.shouldSample()) {
+                        sampleLuma(frame);
+                    }
+                    byte[] data;
+                    ByteBuffer buffer;
+                    int width;
+                    int height;
+                    if (cropToRegionOfInterest(frame, scratch)) {
+                        // The crop is a copy, so the preview buffer can go back to the source
+                        // right away rather than after detection.
+                        mFrameSource.recycle(frame.mData);
+                        recycled = true;
+                        data = scratch.mData;
+                        buffer = scratch.mBuffer;
+                        width = scratch.mCrop.width();
+                        height = scratch.mCrop.height();
+                    } else {
+                        data = frame.mData;
+                        buffer = frame.mBuffer;
+                        width = frame.mWidth;
+                        height = frame.mHeight;
                     }
 
-                    if (!mActive) {
-                        // Exit the loop once this camera source is stopped or released.  We check
-                        // this here, immediately after the wait() above, to handle the case where
-                        // setActive(false) had been called, triggering the termination of this
-                        // loop.
-                        return;
+                    // Results of a cropped frame are offset by the upright origin of the crop.
+                    int offsetX = scratch.mCropped ? scratch.mRegion.left : 0;
+                    int offsetY = scratch.mCropped ? scratch.mRegion.top : 0;
+                    // Still scenes reuse the last results, and nothing is delivered for frames
+                    // that are too blurry to be worth detecting.
+                    if (isSceneUnchanged(data, offsetX, offsetY, width, height, scratch)) {
+                        detections = reuseDetections(buildFrame(frame, buffer, width, height));
+                    } else if (isSharpEnough(data, width, height)) {
+                        if (mProcessor == null) {
+                            mDetector.receiveFrame(buildFrame(frame, buffer, width, height));
+                        } else if (mCoarseToFineDetection) {
+                            detections = detectCoarseToFine(frame, data, buffer, width, height,
+                                    offsetX, offsetY, scratch);
+                        } else {
+                            detections = detect(buildFrame(frame, buffer, width, height), 1.0f,
+                                    offsetX, offsetY);
+                        }
+                        detected = true;
+                        mDetectedFrames.incrementAndGet();
+                        rememberDetections(detections, offsetX, offsetY, width, height,
+                                scratch);
+                        if (mAutoZoom != null) {
+                            mAutoZoom.onFrameDetected(frame.mWidth, frame.mHeight,
+                                    mCoarseToFineDetection && scratch.mNearMiss);
+                        }
+                    }
+                } catch (Throwable t) {
+                    Log.e(TAG, "Exception thrown from receiver.", t);
+                } finally {
+                    if (!recycled) {
+                        mFrameSource.recycle(frame.mData);
                     }
+                    mThreadTimings.record(startNanos);
+                }
 
-                    outputFrame = new Frame.Builder()
-                            .setImageData(mPendingFrameData, mPreviewSize.getWidth(),
-                                    mPreviewSize.getHeight(), ImageFormat.NV21)
-                            .setId(mPendingFrameId)
-                            .setTimestampMillis(mPendingTimeMillis)
-                            .setRotation(mRotation)
-                            .build();
-
-                    // Hold onto the frame data locally, so that we can use this for detection
-                    // below.  We need to clear mPendingFrameData to ensure that this buffer isn't
-                    // recycled back to the camera before we are done using that data.
-                    data = mPendingFrameData;
-                    mPendingFrameData = null;
+                if ((mFrameRateGovernor != null) && detected) {
+                    governFrameRate(detections, System.nanoTime() - startNanos);
                 }
 
-                // The code below needs to run outside of synchronization, because this will allow
-                // the camera to add pending frame(s) while we are running detection on the current
-                // frame.
+                if (mResequencer != null) {
+                    // Always complete the sequence, even if detection failed, so that the results
+                    // of later frames aren't held up.
+                    mResequencer.complete(frame.mSequence, detections);
+                } else if (detections != null) {
+                    deliverDetections(detections);
+                }
+            }
+        }
 
-                try {
-                    mDetector.receiveFrame(outputFrame);
-                } catch (Throwable t) {
-                    Log.e(TAG, "Exception thrown from receiver.", t);
-                } finally {
-                    mCamera.addCallbackBuffer(data.array());
+        /**
+         * Takes the next pending frame, waiting for one if there is none yet.  The frame rate
+         * governor measures drops from the ids of the frames as they are taken, while the ring
+         * is still locked, since several workers may finish their frames out of order.  Waiting
+         * in the ring releases its lock, so the other workers can wait for frames meanwhile.
+         *
+         * @return the frame, or null once processing is stopped
+         */
+        private PreviewFrame takeFrame() {
+            PreviewFrame frame;
+            if (mPendingFrames == null) {
+                // A single worker, so the frames are taken in order anyway.
+                frame = mPendingFrame.take();
+                if ((frame != null) && (mFrameRateGovernor != null)) {
+                    mFrameRateGovernor.onFrameTaken(frame.mId);
+                }
+                return frame;
+            }
+            synchronized (mPendingFrames) {
+                frame = mPendingFrames.take();
+                if ((frame != null) && (mFrameRateGovernor != null)) {
+                    mFrameRateGovernor.onFrameTaken(frame.mId);
+                }
+            }
+            return frame;
+        }
+
+        /**
+         * Feeds the detection latency and outcome of a frame to the frame rate governor, and
+         * reconfigures the camera if the target frame rate has moved far enough.
+         */
+        private void governFrameRate(Detector.Detections<?> detections, long detectionNanos) {
+            long nowMillis = SystemClock.elapsedRealtime();
+            boolean decoded = (detections != null) && (detections.getDetectedItems().size() > 0);
+            mFrameRateGovernor.onFrameProcessed(detectionNanos / 1000000.0f, decoded, nowMillis);
+            float fps = mFrameRateGovernor.takePreviewFpsChange(nowMillis);
+            if (fps > 0) {
+                postPreviewFpsRange(fps);
+            }
+        }
+
+        /**
+         * Feeds the brightness of the whole frame to the auto torch, along with the exposure if
+         * the camera2 backend reports it, and switches the torch if it decides to.
+         */
+        private void sampleLuma(PreviewFrame frame) {
+            float luma = Nv21Utils.getMeanLuma(frame.mData, frame.mWidth, frame.mHeight,
+                    LUMA_SAMPLE_STEP);
+            Camera2FrameSource camera2 = mCamera2FrameSource;
+            float exposure = ((camera2 != null) && (mFrameSource == camera2)) ?
+                    camera2.getExposure() : 0;
+            int change = mAutoTorch.onLuma(luma, exposure, SystemClock.elapsedRealtime());
+            if (change != 0) {
+                postFlashMode((change > 0) ?
+                        Camera.Parameters.FLASH_MODE_TORCH : Camera.Parameters.FLASH_MODE_OFF);
+            }
+        }
+
+        /**
+         * Scores the sharpness of the image, if the sharpness gate is enabled.
+         *
+         * @return false if the image is too blurry to be worth detecting
+         */
+        private boolean isSharpEnough(byte[] data, int width, int height) {
+            return (mSharpnessGate == null) || mSharpnessGate.accept(
+                    Nv21Utils.getLaplacianVariance(data, width, height, SHARPNESS_SAMPLE_STEP));
+        }
+
+        /**
+         * Computes the signature of the image and compares it with the last detected frame, if
+         * the scene change gate is enabled.  The image is at the upright offset in the full
+         * frame, if it was cropped.
+         *
+         * @return true if the scene is unchanged, and the last results should be reused
+         */
+        private boolean isSceneUnchanged(byte[] data, int offsetX, int offsetY, int width,
+                                         int height, FrameScratch scratch) {
+            if (mSceneChangeGate == null) {
+                return false;
+            }
+            Nv21Utils.getLumaSignature(data, width, height, SceneChangeGate.SIGNATURE_COLUMNS,
+                    SceneChangeGate.SIGNATURE_ROWS, SIGNATURE_SAMPLE_STEP, scratch.mSignature);
+            return (mLastDetections != null) &&
+                    mSceneChangeGate.isUnchanged(scratch.mSignature, offsetX, offsetY, width,
+                            height);
+        }
+
+        /**
+         * Remembers the results and signature of a frame that went through detection, for the
+         * scene change gate.
+         */
+        private void rememberDetections(Detector.Detections<?> detections, int offsetX,
+                                        int offsetY, int width, int height,
+                                        FrameScratch scratch) {
+            if ((mSceneChangeGate == null) || (detections == null)) {
+                return;
+            }
+            mLastDetections = detections;
+            mSceneChangeGate.update(scratch.mSignature, offsetX, offsetY, width, height,
+                    detections.getDetectedItems().size() > 0);
+        }
+
+        /**
+         * Returns the results of the last detected frame again, for the given frame.
+         */
+        @SuppressWarnings("unchecked")
+        private Detector.Detections<?> reuseDetections(Frame frame) {
+            Detector.Detections<?> last = mLastDetections;
+            return new Detector.Detections(last.getDetectedItems(), frame.getMetadata(),
+                    last.detectorIsOperational());
+        }
+
+        private Frame buildFrame(PreviewFrame frame, ByteBuffer data, int width, int height) {
+            return new Frame.Builder()
+                    .setImageData(data, width, height, ImageFormat.NV21)
+                    .setId(frame.mId)
+                    .setTimestampMillis(frame.mTimestampMillis)
+                    .setRotation(frame.mRotation)
+                    .build();
+        }
+
+        /**
+         * Crops the frame to the region of interest, if there is one and detection results can be
+         * mapped back to full frame coordinates.  The region is taken in upright coordinates,
+         * mapped back into sensor coordinates taking the rotation into account, and aligned to
+         * even coordinates for the NV21 chroma plane.
+         *
+         * @return true if the frame was cropped into the scratch buffer
+         */
+        private boolean cropToRegionOfInterest(PreviewFrame frame, FrameScratch scratch) {
+            scratch.mCropped = false;
+            RegionOfInterestSource source = mRegionOfInterestSource;
+            if ((mRegionMapper == null) || (source == null) ||
+                    !source.getRegionOfInterest(scratch.mRegion)) {
+                return false;
+            }
+
+            int width = frame.mWidth;
+            int height = frame.mHeight;
+            Rect crop = scratch.mCrop;
+            GeometryUtils.uprightToSensor(scratch.mRegion, frame.mRotation, width, height, crop);
+            crop.set(Math.max(0, crop.left) & ~1,
+                    Math.max(0, crop.top) & ~1,
+                    Math.min(width, crop.right + 1) & ~1,
+                    Math.min(height, crop.bottom + 1) & ~1);
+            if ((crop.width() < MIN_REGION_OF_INTEREST_SIZE) ||
+                    (crop.height() < MIN_REGION_OF_INTEREST_SIZE) ||
+                    ((crop.width() == width) && (crop.height() == height))) {
+                return false;
+            }
+
+            scratch.ensureCapacity(Nv21Utils.getImageSize(width, height));
+            Nv21Utils.crop(frame.mData, width, height,
+                    crop.left, crop.top, crop.width(), crop.height(), scratch.mData);
+
+            // The detector reports results relative to the upright crop, whose origin is the
+            // top left corner of the aligned crop in upright frame coordinates.
+            GeometryUtils.sensorToUpright(crop, frame.mRotation, width, height, scratch.mRegion);
+            scratch.mCropped = true;
+            return true;
+        }
+
+        /**
+         * Runs the detector on the frame, without delivering the results.  Results of a cropped
+         * or downsampled frame are mapped back into full frame coordinates, see
+         * {@link RegionMapper#mapToFrame}.
+         */
+        @SuppressWarnings("unchecked")
+        private Detector.Detections<?> detect(Frame frame, float scale, int offsetX, int offsetY) {
+            SparseArray<?> items = mDetector.detect(frame);
+            if ((scale != 1.0f) || (offsetX != 0) || (offsetY != 0)) {
+                RegionMapper mapper = mRegionMapper;
+                for (int i = 0; i < items.size(); ++i) {
+                    mapper.mapToFrame(items.valueAt(i), scale, offsetX, offsetY);
+                }
+            }
+            return new Detector.Detections(items, frame.getMetadata(), mDetector.isOperational());
+        }
+
+        /**
+         * Runs the detector on the image downsampled by two first.  If that finds nothing, the
+         * part of the downsampled image with barcode-like structure is located, and the detector
+         * runs again on that part of the image at full resolution.  Images without any such
+         * structure are only detected at the coarse resolution.
+         *
+         * @param data    the image, which is either the full frame or a crop of it
+         * @param buffer  the byte buffer wrapping the image
+         * @param offsetX the horizontal offset of the image in upright full frame coordinates
+         * @param offsetY the vertical offset of the image in upright full frame coordinates
+         */
+        private Detector.Detections<?> detectCoarseToFine(PreviewFrame frame, byte[] data,
+                                                         ByteBuffer buffer, int width, int height,
+                                                         int offsetX, int offsetY,
+                                                         FrameScratch scratch) {
+            scratch.mNearMiss = false;
+            int coarseWidth = Nv21Utils.getDownsampledSize(width);
+            int coarseHeight = Nv21Utils.getDownsampledSize(height);
+            scratch.ensureCoarseCapacity(Nv21Utils.getImageSize(coarseWidth, coarseHeight));
+            Nv21Utils.downsample(data, width, height, scratch.mCoarseData);
+            Detector.Detections<?> coarse = detect(
+                    buildFrame(frame, scratch.mCoarseBuffer, coarseWidth, coarseHeight),
+                    2.0f, offsetX, offsetY);
+            if (coarse.getDetectedItems().size() > 0) {
+                mCoarseHits.incrementAndGet();
+                return coarse;
+            }
+
+            Rect fine = scratch.mFine;
+            if (!scratch.mStructureFinder.find(scratch.mCoarseData, coarseWidth, coarseHeight,
+                    fine)) {
+                return coarse;
+            }
+
+            // Back into full resolution, padded by a block so that the quiet zone of a barcode
+            // at the edge of the structure is included, and aligned for the chroma plane.
+            int padding = StructureFinder.BLOCK_SIZE;
+            fine.set(Math.max(0, 2 * (fine.left - padding)),
+                    Math.max(0, 2 * (fine.top - padding)),
+                    Math.min(width, 2 * (fine.right + padding)) & ~1,
+                    Math.min(height, 2 * (fine.bottom + padding)) & ~1);
+            if ((fine.width() < MIN_REGION_OF_INTEREST_SIZE) ||
+                    (fine.height() < MIN_REGION_OF_INTEREST_SIZE)) {
+                return coarse;
+            }
+
+            mFinePasses.incrementAndGet();
+            Detector.Detections<?> detections;
+            if ((fine.width() == width) && (fine.height() == height)) {
+                detections = detect(buildFrame(frame, buffer, width, height), 1.0f, offsetX,
+                        offsetY);
+            } else {
+                scratch.ensureFineCapacity(Nv21Utils.getImageSize(fine.width(), fine.height()));
+                Nv21Utils.crop(data, width, height, fine.left, fine.top, fine.width(),
+                        fine.height(), scratch.mFineData);
+                Rect upright = scratch.mFineUpright;
+                GeometryUtils.sensorToUpright(fine, frame.mRotation, width, height, upright);
+                detections = detect(
+                        buildFrame(frame, scratch.mFineBuffer, fine.width(), fine.height()),
+                        1.0f, offsetX + upright.left, offsetY + upright.top);
+            }
+            scratch.mNearMiss = detections.getDetectedItems().size() == 0;
+            return detections;
+        }
+
+        private FrameScratch obtainScratch() {
+            synchronized (mScratchPool) {
+                FrameScratch scratch = mScratchPool.poll();
+                return (scratch != null) ? scratch : new FrameScratch();
+            }
+        }
+
+        private void recycleScratch(FrameScratch scratch) {
+            synchronized (mScratchPool) {
+                mScratchPool.push(scratch);
+            }
+        }
+
+        /**
+         * Delivers detection results to the processor.  Results are always delivered in frame
+         * order, on one thread at a time.
+         */
+        @SuppressWarnings("unchecked")
+        private void deliverDetections(Detector.Detections<?> detections) {
+            if ((mStartToFirstDecodeMillis < 0) && (detections.getDetectedItems().size() > 0)) {
+                mStartToFirstDecodeMillis = SystemClock.elapsedRealtime() - mStartRequestedMillis;
+            }
+            try {
+                ((Detector.Processor) mProcessor).receiveDetections(detections);
+            } catch (Throwable t) {
+                Log.e(TAG, "Exception thrown from processor.", t);
+            }
+            long nowMillis = SystemClock.elapsedRealtime();
+            if (mAutoZoom != null) {
+                int steps = mAutoZoom.update(nowMillis);
+                if (steps != 0) {
+                    postZoomSteps(steps);
                 }
             }
+            updateFocusArea(nowMillis);
         }
     }
-}
\ No newline at end of file
+}
@@ -4,6 +4,7 @@ package io.upscan.android.ui;
 import android.Manifest;
 import android.content.Context;
 import android.content.res.Configuration;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -13,8 +14,6 @@ import android.view.ViewGroup;
 
 import com.google.android.gms.common.images.Size;
 
-import java.io.IOException;
-
 /*
  * Copyright (C) The Android Open Source Project
  *
@@ -41,6 +40,7 @@ public class CameraSourcePreview extends ViewGroup {
     private CameraSource mCameraSource;
 
     private GraphicOverlay mOverlay;
+    private CameraSource.LifecycleCallback mStartCallback;
 
     public CameraSourcePreview(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -54,7 +54,7 @@ public class CameraSourcePreview extends ViewGroup {
     }
 
     @RequiresPermission(Manifest.permission.CAMERA)
-    public void start(CameraSource cameraSource) throws IOException, SecurityException {
+    public void start(CameraSource cameraSource) throws SecurityException {
         if (cameraSource == null) {
             stop();
         }
@@ -68,41 +68,95 @@ public class CameraSourcePreview extends ViewGroup {
     }
 
     @RequiresPermission(Manifest.permission.CAMERA)
-    public void start(CameraSource cameraSource, GraphicOverlay overlay) throws IOException, SecurityException {
+    public void start(CameraSource cameraSource, GraphicOverlay overlay) throws SecurityException {
+        // Restrict detection to the view finder drawn by the overlay.
+        start(cameraSource, overlay, overlay);
+    }
+
+    /**
+     * Starts the camera source with the given overlay, restricting detection to the given region
+     * of interest, e.g., one which narrows down the view finder of the overlay.
+     */
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public void start(CameraSource cameraSource, GraphicOverlay overlay,
+                      RegionOfInterestSource regionOfInterestSource) throws SecurityException {
         mOverlay = overlay;
+        if (cameraSource != null) {
+            // Focus on the barcode being tracked in the overlay, or else on the view finder.
+            cameraSource.setRegionOfInterestSource(regionOfInterestSource);
+            cameraSource.setFocusAreaSource(overlay);
+        }
         start(cameraSource);
     }
 
+    /**
+     * Sets the callback which is told on the main thread when a camera source has started, or
+     * failed to start.  A camera source which failed to start has been released by then.
+     */
+    public void setStartCallback(@Nullable CameraSource.LifecycleCallback callback) {
+        mStartCallback = callback;
+    }
+
+    /**
+     * Stops the camera source in the background, so that the caller isn't blocked by the camera
+     * or the detector.
+     */
     public void stop() {
         if (mCameraSource != null) {
-            mCameraSource.stop();
+            mCameraSource.stopAsync(null);
         }
     }
 
     public void release() {
         if (mCameraSource != null) {
-            mCameraSource.release();
+            mCameraSource.releaseAsync(null);
             mCameraSource = null;
         }
     }
 
+    /**
+     * Starts the camera source in the background once the surface is available.  The overlay and
+     * the layout are updated for the preview size once the camera source has started.
+     */
     @RequiresPermission(Manifest.permission.CAMERA)
-    private void startIfReady() throws IOException, SecurityException {
+    private void startIfReady() throws SecurityException {
         if (mStartRequested && mSurfaceAvailable) {
-            mCameraSource.start(mSurfaceView.getHolder());
-            if (mOverlay != null) {
-                Size size = mCameraSource.getPreviewSize();
-                int min = Math.min(size.getWidth(), size.getHeight());
-                int max = Math.max(size.getWidth(), size.getHeight());
-                if (isPortraitMode()) {
-                    // Swap width and height sizes when in portrait, since it will be rotated by
-                    // 90 degrees
-                    mOverlay.setCameraInfo(min, max, mCameraSource.getCameraFacing());
-                } else {
-                    mOverlay.setCameraInfo(max, min, mCameraSource.getCameraFacing());
+            final CameraSource cameraSource = mCameraSource;
+            cameraSource.startAsync(mSurfaceView.getHolder(), new CameraSource.LifecycleCallback() {
+                @Override
+                public void onComplete(@Nullable Exception error) {
+                    if (cameraSource != mCameraSource) {
+                        // Released in the meantime.
+                        return;
+                    }
+                    if (error != null) {
+                        Log.e(TAG, "Could not start camera source.", error);
+                        // Don't hold on to a camera which failed to open.
+                        release();
+                        if (mStartCallback != null) {
+                            mStartCallback.onComplete(error);
+                        }
+                        return;
+                    }
+                    if (mOverlay != null) {
+                        Size size = cameraSource.getPreviewSize();
+                        int min = Math.min(size.getWidth(), size.getHeight());
+                        int max = Math.max(size.getWidth(), size.getHeight());
+                        if (isPortraitMode()) {
+                            // Swap width and height sizes when in portrait, since it will be
+                            // rotated by 90 degrees
+                            mOverlay.setCameraInfo(min, max, cameraSource.getCameraFacing());
+                        } else {
+                            mOverlay.setCameraInfo(max, min, cameraSource.getCameraFacing());
+                        }
+                        mOverlay.clear();
+                    }
+                    requestLayout();
+                    if (mStartCallback != null) {
+                        mStartCallback.onComplete(null);
+                    }
                 }
-                mOverlay.clear();
-            }
+            });
             mStartRequested = false;
         }
     }
@@ -115,8 +169,6 @@ public class CameraSourcePreview extends ViewGroup {
                 startIfReady();
             } catch (SecurityException se) {
                 Log.e(TAG, "Do not have permission to start the camera", se);
-            } catch (IOException e) {
-                Log.e(TAG, "Could not start camera source.", e);
             }
         }
 
@@ -200,8 +252,6 @@ public class CameraSourcePreview extends ViewGroup {
             startIfReady();
         } catch (SecurityException se) {
             Log.e(TAG, "Do not have permission to start the camera", se);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not start camera source.", e);
         }
     }
 
@@ -0,0 +1,54 @@
+package io.upscan.android.ui;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Layout of capture files, which hold a sequence of raw NV21 frames.  All values are big endian.
+ * <pre>
+ * file:   magic (int), version (int), frame*
+ * frame:  width (int), height (int), rotation (int), timestamp in millis (long),
+ *         length (int), NV21 data (length bytes)
+ * </pre>
+ */
+final class CaptureFormat {
+
+    static final int MAGIC = 0x55504346;
+    static final int VERSION = 1;
+
+    static final int FILE_HEADER_SIZE = 8;
+    static final int FRAME_HEADER_SIZE = 24;
+
+    private CaptureFormat() {
+        // N/A
+    }
+
+    /**
+     * Unmaps a mapping of a capture file right away, rather than when it is garbage collected,
+     * so that windows of the file don't pile up in the address space while it is recorded or
+     * replayed.  The mapping must not be used afterwards.  Android has no public API for this,
+     * so if the hidden one isn't there, the mapping is left to the garbage collector.
+     */
+    static void unmap(MappedByteBuffer mapping) {
+        if ((mapping == null) || (sFreeDirectBuffer == null)) {
+            return;
+        }
+        try {
+            sFreeDirectBuffer.invoke(null, mapping);
+        } catch (Exception e) {
+            // Left to the garbage collector.
+        }
+    }
+
+    private static final Method sFreeDirectBuffer = findFreeDirectBuffer();
+
+    private static Method findFreeDirectBuffer() {
+        try {
+            return Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer",
+                    ByteBuffer.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
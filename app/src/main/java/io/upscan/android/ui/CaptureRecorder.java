@@ -0,0 +1,236 @@
+package io.upscan.android.ui;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import io.upscan.android.util.Nv21Utils;
+
+/**
+ * Records raw frames, as received from the frame source, into a capture file (see
+ * {@link CaptureFormat}), so that they can be replayed later with {@link ReplayFrameSource}.  See
+ * {@link CameraSource#setCaptureRecorder(CaptureRecorder)}.
+ * <p/>
+ * The thread delivering the frames only copies each frame into one of a few recorder buffers; the
+ * frames are written to the file by a thread of the recorder.  The file is written through a
+ * memory mapping that is extended as needed, which leaves flushing to the kernel.  Frames arriving
+ * while all buffers are waiting to be written are dropped from the recording.
+ */
+public class CaptureRecorder {
+
+    private static final String TAG = "CaptureRecorder";
+    private static final String THREAD_NAME = "CaptureRecorder";
+
+    // Size by which the mapping of the file is extended.
+    private static final int MAPPING_SIZE = 32 * 1024 * 1024;
+
+    private final File mFile;
+    private final ArrayBlockingQueue<RecordedFrame> mFreeFrames;
+    private final ArrayBlockingQueue<RecordedFrame> mPendingFrames;
+    private final RecordedFrame mEndOfRecording = new RecordedFrame();
+
+    private RandomAccessFile mOutput;
+    private Thread mThread;
+
+    // Frames are only queued while recording, so that none is queued after the end of the
+    // recording, where it would neither be written nor returned to the free frames.
+    private final Object mRecordingLock = new Object();
+    // Written while holding mRecordingLock.
+    private volatile boolean mRecording;
+
+    private volatile long mRecordedFrames;
+    private volatile long mDroppedFrames;
+
+    // Only accessed on the recorder thread while recording.
+    private MappedByteBuffer mMapping;
+    private long mLength;
+
+    /**
+     * A frame waiting to be written.
+     */
+    private static class RecordedFrame {
+        byte[] mData = new byte[0];
+        int mLength;
+        int mWidth;
+        int mHeight;
+        int mRotation;
+        long mTimestampMillis;
+    }
+
+    /**
+     * @param file        the capture file, which is overwritten
+     * @param bufferCount the number of frames which can wait to be written
+     */
+    public CaptureRecorder(File file, int bufferCount) {
+        mFile = file;
+        mFreeFrames = new ArrayBlockingQueue<>(bufferCount);
+        mPendingFrames = new ArrayBlockingQueue<>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; ++i) {
+            mFreeFrames.add(new RecordedFrame());
+        }
+    }
+
+    /**
+     * Creates the capture file and starts recording.
+     *
+     * @throws IOException if the file could not be created
+     */
+    public synchronized void start() throws IOException {
+        if (mThread != null) {
+            return;
+        }
+        mOutput = new RandomAccessFile(mFile, "rw");
+        mOutput.setLength(0);
+        mMapping = null;
+        mLength = 0;
+        ensureMapped(CaptureFormat.FILE_HEADER_SIZE);
+        mMapping.putInt(CaptureFormat.MAGIC);
+        mMapping.putInt(CaptureFormat.VERSION);
+        mLength = CaptureFormat.FILE_HEADER_SIZE;
+
+        // Frames left over from a recording that failed go back, along with its end.
+        RecordedFrame frame;
+        while ((frame = mPendingFrames.poll()) != null) {
+            if (frame != mEndOfRecording) {
+                mFreeFrames.add(frame);
+            }
+        }
+        mRecordedFrames = 0;
+        mDroppedFrames = 0;
+        synchronized (mRecordingLock) {
+            mRecording = true;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeFrames();
+            }
+        }, THREAD_NAME);
+        mThread.start();
+    }
+
+    /**
+     * Queues a frame to be written.  Only copies the frame, so that it may be called from the
+     * thread delivering the frames.
+     *
+     * @return false if the frame was dropped from the recording
+     */
+    boolean record(byte[] data, int width, int height, int rotation, long timestampMillis) {
+        if (!mRecording) {
+            return false;
+        }
+        RecordedFrame frame = mFreeFrames.poll();
+        if (frame == null) {
+            mDroppedFrames++;
+            return false;
+        }
+
+        int length = Nv21Utils.getImageSize(width, height);
+        if (frame.mData.length < length) {
+            frame.mData = new byte[length];
+        }
+        System.arraycopy(data, 0, frame.mData, 0, length);
+        frame.mLength = length;
+        frame.mWidth = width;
+        frame.mHeight = height;
+        frame.mRotation = rotation;
+        frame.mTimestampMillis = timestampMillis;
+        synchronized (mRecordingLock) {
+            if (mRecording) {
+                mPendingFrames.add(frame);
+                return true;
+            }
+        }
+        mFreeFrames.add(frame);
+        return false;
+    }
+
+    /**
+     * Stops recording, after the frames that are waiting have been written, and closes the file.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        synchronized (mRecordingLock) {
+            mRecording = false;
+            mPendingFrames.add(mEndOfRecording);
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted while stopping the recording.");
+        }
+        mThread = null;
+
+        try {
+            // The mapping extends beyond the frames, so the file is cut back to their end.
+            if (mMapping != null) {
+                mMapping.force();
+                CaptureFormat.unmap(mMapping);
+                mMapping = null;
+            }
+            mOutput.setLength(mLength);
+            mOutput.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not finish " + mFile, e);
+        }
+        mOutput = null;
+    }
+
+    public long getRecordedFrames() {
+        return mRecordedFrames;
+    }
+
+    /**
+     * Returns the number of frames which were dropped from the recording because the recorder
+     * couldn't keep up.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private void writeFrames() {
+        try {
+            while (true) {
+                RecordedFrame frame = mPendingFrames.take();
+                if (frame == mEndOfRecording) {
+                    return;
+                }
+                ensureMapped(CaptureFormat.FRAME_HEADER_SIZE + frame.mLength);
+                mMapping.putInt(frame.mWidth);
+                mMapping.putInt(frame.mHeight);
+                mMapping.putInt(frame.mRotation);
+                mMapping.putLong(frame.mTimestampMillis);
+                mMapping.putInt(frame.mLength);
+                mMapping.put(frame.mData, 0, frame.mLength);
+                mLength += CaptureFormat.FRAME_HEADER_SIZE + frame.mLength;
+                mRecordedFrames++;
+                mFreeFrames.add(frame);
+            }
+        } catch (InterruptedException | IOException e) {
+            Log.e(TAG, "Recording into " + mFile + " failed.", e);
+            synchronized (mRecordingLock) {
+                mRecording = false;
+            }
+        }
+    }
+
+    /**
+     * Makes sure that the next {@code size} bytes after the end of the file are mapped.
+     */
+    private void ensureMapped(int size) throws IOException {
+        if ((mMapping != null) && (mMapping.remaining() >= size)) {
+            return;
+        }
+        // The frames in the old mapping have been written to it, the kernel flushes them.
+        CaptureFormat.unmap(mMapping);
+        mMapping = mOutput.getChannel().map(FileChannel.MapMode.READ_WRITE, mLength,
+                Math.max(MAPPING_SIZE, size));
+    }
+}
@@ -0,0 +1,105 @@
+package io.upscan.android.ui;
+
+/**
+ * Puts results which complete out of order (e.g., from several detection workers) back into
+ * sequence order before delivering them.  Results are delivered one at a time, on whichever
+ * worker thread completes the next result in sequence.
+ * <p/>
+ * At most {@code window} results may be outstanding beyond the next one to deliver.  A worker
+ * which completes a result further ahead waits until the results before it have been delivered,
+ * which bounds the memory held and keeps fast workers from running away from a slow one.
+ *
+ * @param <R> the result type
+ */
+class DetectionResequencer<R> {
+
+    /**
+     * Receives the results in sequence order.
+     */
+    interface Sink<R> {
+        void deliver(R result);
+    }
+
+    private final Sink<R> mSink;
+    private final Object[] mResults;
+    private final boolean[] mCompleted;
+    private long mNextSequence;
+    private boolean mDelivering;
+    private boolean mActive = true;
+
+    DetectionResequencer(int window, Sink<R> sink) {
+        mSink = sink;
+        mResults = new Object[window];
+        mCompleted = new boolean[window];
+    }
+
+    /**
+     * Completes the given sequence number.  A null result marks the sequence as done without
+     * delivering anything, e.g., when detection failed on that frame.
+     */
+    void complete(long sequence, R result) {
+        synchronized (this) {
+            while (mActive && (sequence - mNextSequence >= mResults.length)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (!mActive || (sequence < mNextSequence)) {
+                return;
+            }
+
+            int index = (int) (sequence % mResults.length);
+            mResults[index] = result;
+            mCompleted[index] = true;
+
+            // Only one thread delivers at a time, so that the sink sees the results in order.  If
+            // another thread is already delivering, it will pick up this result as well.
+            if (mDelivering) {
+                return;
+            }
+            mDelivering = true;
+        }
+
+        while (true) {
+            R next;
+            synchronized (this) {
+                int index = (int) (mNextSequence % mResults.length);
+                if (!mActive || !mCompleted[index]) {
+                    mDelivering = false;
+                    return;
+                }
+
+                @SuppressWarnings("unchecked")
+                R stored = (R) mResults[index];
+                next = stored;
+                mResults[index] = null;
+                mCompleted[index] = false;
+                mNextSequence++;
+                notifyAll();
+            }
+
+            if (next != null) {
+                mSink.deliver(next);
+            }
+        }
+    }
+
+    /**
+     * Marks the resequencer as active/not active.  Deactivating releases any waiting workers and
+     * drops undelivered results; activating restarts the sequence at zero.
+     */
+    synchronized void setActive(boolean active) {
+        mActive = active;
+        if (active) {
+            mNextSequence = 0;
+        }
+        for (int i = 0; i < mResults.length; ++i) {
+            mResults[i] = null;
+            mCompleted[i] = false;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,19 @@
+package io.upscan.android.ui;
+
+import android.graphics.Rect;
+
+/**
+ * Supplies the part of the preview that the camera should focus and meter on, such as the
+ * barcode being tracked or else the view finder drawn by a {@link GraphicOverlay}.
+ */
+public interface FocusAreaSource {
+
+    /**
+     * Gets the current focus area, in upright preview frame coordinates (i.e., the coordinates in
+     * which the detector reports its results).
+     *
+     * @param out receives the focus area
+     * @return false if there is no focus area (yet), in which case the camera picks its own
+     */
+    boolean getFocusArea(Rect out);
+}
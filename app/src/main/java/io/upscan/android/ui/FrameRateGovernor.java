@@ -0,0 +1,211 @@
+package io.upscan.android.ui;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Steers the rate at which preview frames are captured and accepted towards the rate that the
+ * detector can actually sustain, so that the camera doesn't capture frames which are only thrown
+ * away.  The governor watches two signals:
+ * <ul>
+ * <li>the detection latency, which bounds the sustainable rate</li>
+ * <li>the drop rate, measured from gaps in the ids of the frames taken for detection</li>
+ * </ul>
+ * When nothing has been decoded for a while, the rate drops to a low idle rate until the next
+ * decode.
+ * <p/>
+ * The target rate is applied in two ways: the camera source reconfigures the preview fps range
+ * when the target has moved far enough (see {@link #takePreviewFpsChange(long)}), and frames
+ * arriving faster than the target are decimated in software (see {@link #acceptFrame(long)}),
+ * since many cameras only support a few fixed ranges.
+ */
+class FrameRateGovernor {
+
+    // Weight of a new sample in the moving averages.
+    private static final float SMOOTHING = 0.1f;
+
+    // Leave some slack between the sustainable rate and the target, so that the detector isn't
+    // kept at exactly 100% and doesn't fall behind on slower frames.
+    private static final float HEADROOM = 0.9f;
+
+    // Drop rate above which the target is stepped down, and the step factors.
+    private static final float MAX_DROP_RATE = 0.1f;
+    private static final float STEP_DOWN = 0.95f;
+    private static final float STEP_UP = 1.05f;
+
+    // Relative change of the target which justifies reconfiguring the camera, and how often.
+    private static final float PREVIEW_FPS_CHANGE_THRESHOLD = 0.2f;
+    private static final long MIN_PREVIEW_FPS_CHANGE_INTERVAL_MILLIS = 2000;
+
+    // Frames arriving up to this much early relative to the target interval are still accepted,
+    // to allow for jitter in the camera timing.
+    private static final float ACCEPT_TOLERANCE = 0.85f;
+
+    private final float mMaxFps;
+    private final float mIdleFps;
+    private final long mIdleTimeoutMillis;
+    private final int mWorkers;
+
+    // Guarded by this.
+    private float mLatencyMillis;
+    private float mDropRate;
+    private int mLastFrameId;
+    private long mLastDecodeMillis;
+    private float mActiveFps;
+    private float mAppliedPreviewFps;
+    private long mLastPreviewFpsChangeMillis;
+
+    private volatile float mTargetFps;
+    private volatile boolean mIdle;
+
+    // Accessed on the thread delivering the frames, and cleared by reset() on the thread which
+    // starts the camera source.
+    private volatile long mLastAcceptedMillis;
+
+    // Frames skipped by acceptFrame() or onFrameSkipped() since the last frame was taken, which
+    // account for gaps in the frame ids that aren't drops.
+    private final AtomicInteger mSkippedFrames = new AtomicInteger();
+
+    /**
+     * @param maxFps            the requested frame rate, which is never exceeded
+     * @param idleFps           the frame rate when nothing has been decoded for a while
+     * @param idleTimeoutMillis how long without a decode before switching to the idle rate
+     * @param workers           the number of detection workers
+     */
+    FrameRateGovernor(float maxFps, float idleFps, long idleTimeoutMillis, int workers) {
+        mMaxFps = maxFps;
+        mIdleFps = Math.min(idleFps, maxFps);
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        mWorkers = workers;
+        reset(0);
+    }
+
+    /**
+     * Restarts the governor at the maximum rate, e.g., when the camera is (re)started.
+     */
+    synchronized void reset(long nowMillis) {
+        mLatencyMillis = 0;
+        mDropRate = 0;
+        mLastFrameId = 0;
+        mLastDecodeMillis = nowMillis;
+        mActiveFps = mMaxFps;
+        mAppliedPreviewFps = mMaxFps;
+        mLastPreviewFpsChangeMillis = nowMillis;
+        mTargetFps = mMaxFps;
+        mIdle = false;
+        mLastAcceptedMillis = 0;
+        mSkippedFrames.set(0);
+    }
+
+    /**
+     * Called on the processing thread(s) as a frame is taken for detection.  Frames must be
+     * reported in the order in which they are taken, which is the order of their ids, rather than
+     * in the order in which several workers finish them.
+     *
+     * @param frameId the id of the frame, where gaps since the previous frame are drops unless
+     *                the frames were skipped by {@link #acceptFrame(long)} or
+     *                {@link #onFrameSkipped()}
+     */
+    synchronized void onFrameTaken(int frameId) {
+        if ((mLastFrameId != 0) && (frameId > mLastFrameId)) {
+            int dropped = Math.max(0, frameId - mLastFrameId - 1 - mSkippedFrames.getAndSet(0));
+            float dropRate = (float) dropped / (dropped + 1);
+            mDropRate += SMOOTHING * (dropRate - mDropRate);
+        }
+        mLastFrameId = Math.max(mLastFrameId, frameId);
+    }
+
+    /**
+     * Called on the processing thread(s) after detection has run on a frame, in any order.
+     *
+     * @param detectionMillis how long detection took
+     * @param decoded         whether anything was detected in the frame
+     * @param nowMillis       the current time
+     */
+    synchronized void onFrameProcessed(float detectionMillis, boolean decoded, long nowMillis) {
+        mLatencyMillis = (mLatencyMillis == 0) ? detectionMillis :
+                mLatencyMillis + SMOOTHING * (detectionMillis - mLatencyMillis);
+
+        // Step the active rate down while frames are being dropped, and back up towards the
+        // sustainable rate otherwise.
+        float sustainableFps = (mLatencyMillis > 0) ?
+                HEADROOM * mWorkers * 1000.0f / mLatencyMillis : mMaxFps;
+        float ceiling = Math.min(mMaxFps, sustainableFps);
+        if (mDropRate > MAX_DROP_RATE) {
+            mActiveFps *= STEP_DOWN;
+        } else {
+            mActiveFps *= STEP_UP;
+        }
+        mActiveFps = Math.max(mIdleFps, Math.min(ceiling, mActiveFps));
+
+        if (decoded) {
+            mLastDecodeMillis = nowMillis;
+        }
+        mIdle = (nowMillis - mLastDecodeMillis) > mIdleTimeoutMillis;
+        mTargetFps = mIdle ? mIdleFps : mActiveFps;
+    }
+
+    /**
+     * Called on the thread delivering the frames for a frame that is skipped on purpose before it
+     * is handed to detection, rather than for lack of time, e.g., since the backpressure policy
+     * decimated it.  Such frames mustn't count as drops.  Frames which were taken for detection
+     * but didn't go through it, e.g., since the scene was unchanged, leave no gap in the ids of
+     * the frames taken, and are only left out of {@link #onFrameProcessed}.
+     */
+    void onFrameSkipped() {
+        mSkippedFrames.incrementAndGet();
+    }
+
+    /**
+     * Called on the thread delivering the frames for every frame, before it is handed to
+     * detection.  Rejects frames which arrive faster than the target rate.
+     *
+     * @return true if the frame should be processed, false if it should go straight back to the
+     * camera
+     */
+    boolean acceptFrame(long nowMillis) {
+        float intervalMillis = 1000.0f / mTargetFps;
+        if ((mLastAcceptedMillis != 0) &&
+                (nowMillis - mLastAcceptedMillis < ACCEPT_TOLERANCE * intervalMillis)) {
+            mSkippedFrames.incrementAndGet();
+            return false;
+        }
+        mLastAcceptedMillis = nowMillis;
+        return true;
+    }
+
+    /**
+     * Checks whether the target rate has moved far enough from the rate the camera was last
+     * configured with to justify reconfiguring the preview fps range, which is rate limited since
+     * it is costly and may briefly disturb the preview.
+     *
+     * @return the rate to configure the camera with, or 0 if no change is needed
+     */
+    synchronized float takePreviewFpsChange(long nowMillis) {
+        float target = mTargetFps;
+        if (Math.abs(target - mAppliedPreviewFps) < PREVIEW_FPS_CHANGE_THRESHOLD * mAppliedPreviewFps) {
+            return 0;
+        }
+        if (nowMillis - mLastPreviewFpsChangeMillis < MIN_PREVIEW_FPS_CHANGE_INTERVAL_MILLIS) {
+            return 0;
+        }
+        mAppliedPreviewFps = target;
+        mLastPreviewFpsChangeMillis = nowMillis;
+        return target;
+    }
+
+    float getTargetFps() {
+        return mTargetFps;
+    }
+
+    boolean isIdle() {
+        return mIdle;
+    }
+
+    synchronized float getDropRate() {
+        return mDropRate;
+    }
+
+    synchronized float getAverageLatencyMillis() {
+        return mLatencyMillis;
+    }
+}
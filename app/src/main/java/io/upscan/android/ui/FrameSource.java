@@ -0,0 +1,55 @@
+package io.upscan.android.ui;
+
+import java.io.IOException;
+
+/**
+ * Produces the NV21 frames that the camera source runs detection on.  The camera is the usual
+ * source, but the frame processing pipeline only depends on this interface, so that it can also
+ * be fed with generated frames ({@link SyntheticFrameSource}) or recorded ones
+ * ({@link ReplayFrameSource}), e.g., to measure detection throughput without a camera.  See
+ * {@link CameraSource.Builder#setFrameSource(FrameSource)}.
+ * <p/>
+ * Like camera callback buffers, the buffers of the frames are owned by the receiver from the
+ * moment they are delivered until they are handed back with {@link #recycle(byte[])}.  Sources
+ * should reuse a small set of buffers, and drop frames while none is available.
+ */
+public interface FrameSource {
+
+    /**
+     * Receives the frames of a frame source.
+     */
+    interface Callback {
+        /**
+         * Called for every frame, on the thread of the frame source.  Must not block.
+         *
+         * @param data            the NV21 image, which must be handed back with
+         *                        {@link FrameSource#recycle(byte[])} once it is no longer used
+         * @param id              the id of the frame, increasing by one for every delivered frame
+         * @param timestampMillis the time at which the frame was captured
+         * @param width           width of the image
+         * @param height          height of the image
+         * @param rotation        clockwise rotation from the image to upright, in multiples of 90
+         *                        degrees (as in {@link com.google.android.gms.vision.Frame#ROTATION_90}
+         *                        etc.)
+         */
+        void onFrame(byte[] data, int id, long timestampMillis, int width, int height, int rotation);
+    }
+
+    /**
+     * Starts delivering frames to the callback.
+     *
+     * @throws IOException if the source could not be started
+     */
+    void start(Callback callback) throws IOException;
+
+    /**
+     * Stops delivering frames.  No more frames are delivered once this returns.
+     */
+    void stop();
+
+    /**
+     * Hands the buffer of a delivered frame back to the source for reuse.  May be called from any
+     * thread, also after the source was stopped.
+     */
+    void recycle(byte[] data);
+}
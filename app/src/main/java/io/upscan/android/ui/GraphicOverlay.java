@@ -23,6 +23,7 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.View;
@@ -53,7 +54,8 @@ import io.upscan.android.util.GeometryUtils;
  * from the preview's coordinate system to the view coordinate system.</li>
  * </ol>
  */
-public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
+public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View
+        implements RegionOfInterestSource, FocusAreaSource {
 
     private static final String TAG = "UpScan";
 
@@ -71,6 +73,7 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
     private PointF mViewFinderBottomLeft;
     private PointF mViewFinderBottomRight;
     private Paint mViewFinderPaint;
+    private final Rect mGraphicBounds = new Rect();
 
 
     public PointF[] getActiveArea() {
@@ -108,6 +111,17 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
          */
         public abstract void draw(Canvas canvas);
 
+        /**
+         * Gets the bounds of the item shown by this graphic, in preview coordinates, so that the
+         * camera can focus on it.  See {@link GraphicOverlay#getFocusArea(Rect)}.
+         *
+         * @param out receives the bounds
+         * @return false if the graphic doesn't show an item with bounds, which is the default
+         */
+        public boolean getBounds(Rect out) {
+            return false;
+        }
+
         /**
          * Adjusts a horizontal value of the supplied value from the preview scale to the view
          * scale.
@@ -242,6 +256,65 @@ public class GraphicOverlay<T extends GraphicOverlay.Graphic> extends View {
     }
 
 
+    /**
+     * Gets the view finder area in preview coordinates, i.e., the inverse of
+     * {@link Graphic#translateX(float)} and {@link Graphic#translateY(float)}.  This is safe to
+     * call from any thread.
+     *
+     * @return false if the view finder hasn't been laid out yet
+     */
+    @Override
+    public boolean getRegionOfInterest(Rect out) {
+        synchronized (mLock) {
+            PointF topLeft = mViewFinderTopLeft;
+            PointF bottomRight = mViewFinderBottomRight;
+            if ((topLeft == null) || (bottomRight == null) ||
+                    (mPreviewWidth == 0) || (mPreviewHeight == 0)) {
+                return false;
+            }
+
+            float left = topLeft.x / mWidthScaleFactor;
+            float right = bottomRight.x / mWidthScaleFactor;
+            if (mFacing == CameraSource.CAMERA_FACING_FRONT) {
+                // The preview is mirrored horizontally for the front facing camera.
+                float viewWidth = getWidth();
+                left = (viewWidth - bottomRight.x) / mWidthScaleFactor;
+                right = (viewWidth - topLeft.x) / mWidthScaleFactor;
+            }
+            out.set((int) Math.floor(left),
+                    (int) Math.floor(topLeft.y / mHeightScaleFactor),
+                    (int) Math.ceil(right),
+                    (int) Math.ceil(bottomRight.y / mHeightScaleFactor));
+            return true;
+        }
+    }
+
+    /**
+     * Gets the bounds of the largest item shown in the overlay, or else the view finder, in
+     * preview coordinates.  This is safe to call from any thread.
+     *
+     * @return false if nothing is shown and the view finder hasn't been laid out yet
+     */
+    @Override
+    public boolean getFocusArea(Rect out) {
+        synchronized (mLock) {
+            int largestArea = 0;
+            for (Graphic graphic : mGraphics) {
+                if (graphic.getBounds(mGraphicBounds)) {
+                    int area = mGraphicBounds.width() * mGraphicBounds.height();
+                    if (area > largestArea) {
+                        largestArea = area;
+                        out.set(mGraphicBounds);
+                    }
+                }
+            }
+            if (largestArea > 0) {
+                return true;
+            }
+        }
+        return getRegionOfInterest(out);
+    }
+
     public boolean isInsideViewFinder(Point[] cornerPoints, Graphic graphic) {
 
         PointF[] rectangle = new PointF[]{
@@ -0,0 +1,86 @@
+package io.upscan.android.ui;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free, single slot handoff of frames from a producer (the camera) to a single consumer (the
+ * frame processing thread).  The latest frame always wins: offering a new frame displaces a
+ * pending frame that hasn't been taken yet, and hands the displaced frame back to the producer so
+ * that it can be recycled.
+ * <p/>
+ * Instead of a monitor and {@code wait()/notifyAll()}, the consumer parks when the slot is empty
+ * and the producer unparks it after publishing a frame.  Neither side ever blocks on the other.
+ */
+class LatestFrameSlot<T> {
+
+    private final AtomicReference<T> mSlot = new AtomicReference<>();
+
+    private volatile boolean mActive = true;
+
+    // The consumer thread, while it is parked (or about to park) waiting on a frame.
+    private volatile Thread mWaiter;
+
+    /**
+     * Publishes the next frame, waking up the consumer if it is waiting.
+     *
+     * @return the previously pending frame that was never taken, or null
+     */
+    T offer(T frame) {
+        T displaced = mSlot.getAndSet(frame);
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return displaced;
+    }
+
+    /**
+     * Takes the pending frame, waiting for one if the slot is empty.  Must only be called from a
+     * single consumer thread.
+     *
+     * @return the pending frame, or null once this slot is inactive or the thread was interrupted
+     */
+    T take() {
+        Thread current = Thread.currentThread();
+        while (true) {
+            if (!mActive || current.isInterrupted()) {
+                return null;
+            }
+
+            T frame = mSlot.getAndSet(null);
+            if (frame != null) {
+                return frame;
+            }
+
+            // Publish ourselves as the waiter before re-checking the slot.  A producer which
+            // offers a frame after the re-check is then guaranteed to see us and unpark us.
+            mWaiter = current;
+            if (mActive && mSlot.get() == null) {
+                LockSupport.park(this);
+            }
+            mWaiter = null;
+        }
+    }
+
+    /**
+     * Removes the pending frame, if any, without waiting.
+     *
+     * @return the pending frame, or null
+     */
+    T poll() {
+        return mSlot.getAndSet(null);
+    }
+
+    /**
+     * Marks the slot as active/not active.  Wakes up the consumer, so that it can exit once the
+     * slot is made inactive.
+     */
+    void setActive(boolean active) {
+        mActive = active;
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package io.upscan.android.ui;
+
+import android.graphics.ImageFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pool of the NV21 preview buffers which are handed to the camera as callback buffers.  The
+ * buffers are kept across camera restarts, and only reallocated when the preview size or the
+ * number of buffers changes.
+ * <p/>
+ * Buffers returned by the camera are matched to their {@link PreviewFrame} by identity, using a
+ * scan over a small array rather than hashing.  Since the camera hands the buffers back in the
+ * order in which they were added, the scan starts right after the last match and normally hits
+ * on the first comparison.
+ * <p/>
+ * Buffers of frame sources other than the camera are adopted into the pool as they are first
+ * seen, see {@link #adopt(byte[])}.  A buffer which the source replaced, e.g., by a larger one for
+ * larger frames, makes room for its replacement, so the pool doesn't grow beyond the buffers
+ * that the source actually uses.
+ * <p/>
+ * Allocation and lookup must happen on the thread that delivers the frames, normally the camera
+ * thread; the footprint may be read from any thread.
+ */
+class PreviewBufferPool {
+
+    // Most buffers adopted from a frame source, beyond which the one adopted least recently makes
+    // room, in case the source doesn't reuse its buffers.
+    static final int MAX_ADOPTED_BUFFERS = 16;
+
+    private PreviewFrame[] mFrames = new PreviewFrame[0];
+    private int mWidth;
+    private int mHeight;
+    private int mLastIndex;
+
+    // When each adopted frame was last adopted, in adoptions, for finding stale ones.
+    private long[] mAdoptedAt = new long[0];
+    private long mAdoptions;
+
+    private volatile long mFootprintBytes;
+
+    /**
+     * Makes sure that the pool holds {@code count} buffers of the right size for the given preview
+     * size.  Existing buffers are reused if they already match.
+     *
+     * @return true if the existing buffers were reused, false if they had to be reallocated
+     */
+    boolean ensure(int width, int height, int count) {
+        if ((mFrames.length == count) && (mWidth == width) && (mHeight == height)) {
+            return true;
+        }
+
+        // Drop the old buffers before allocating the new ones, so that both sets don't have to
+        // fit in the heap at the same time.
+        clear();
+
+        int bufferSize = getBufferSize(width, height);
+        PreviewFrame[] frames = new PreviewFrame[count];
+        for (int i = 0; i < count; ++i) {
+            frames[i] = createPreviewFrame(bufferSize);
+        }
+
+        mFrames = frames;
+        mAdoptedAt = new long[count];
+        mWidth = width;
+        mHeight = height;
+        mFootprintBytes = (long) bufferSize * count;
+        return false;
+    }
+
+    /**
+     * Returns the number of buffers in the pool.
+     */
+    int size() {
+        return mFrames.length;
+    }
+
+    /**
+     * Returns the frame at the given index of the pool.
+     */
+    PreviewFrame get(int index) {
+        return mFrames[index];
+    }
+
+    /**
+     * Returns the frame which wraps the given buffer, or null if the buffer doesn't belong to this
+     * pool (e.g., it was allocated for a previous preview size).
+     */
+    PreviewFrame find(byte[] data) {
+        PreviewFrame[] frames = mFrames;
+        int count = frames.length;
+        for (int i = 1; i <= count; ++i) {
+            int index = (mLastIndex + i) % count;
+            if (frames[index].mData == data) {
+                mLastIndex = index;
+                return frames[index];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the frame which wraps the given buffer, adding a frame for it if the buffer hasn't
+     * been seen before.  This is for frame sources which allocate their own buffers, which should
+     * reuse a small set of buffers just like the camera does.
+     * <p/>
+     * A new buffer takes the place of a smaller one, if there is any, since sources only allocate
+     * a buffer when the one they have is too small for the frame; of several, the one adopted
+     * least recently goes.  Otherwise it is added, unless the pool already holds
+     * {@link #MAX_ADOPTED_BUFFERS}, in which case it takes the place of the one adopted least
+     * recently.  A frame that is replaced while it is still in use is simply forgotten.
+     */
+    PreviewFrame adopt(byte[] data) {
+        PreviewFrame frame = find(data);
+        if (frame != null) {
+            mAdoptedAt[mLastIndex] = ++mAdoptions;
+            return frame;
+        }
+
+        int count = mFrames.length;
+        int index = -1;
+        for (int i = 0; i < count; ++i) {
+            if ((mFrames[i].mData.length < data.length) &&
+                    ((index < 0) || (mAdoptedAt[i] < mAdoptedAt[index]))) {
+                index = i;
+            }
+        }
+        if ((index < 0) && (count >= MAX_ADOPTED_BUFFERS)) {
+            index = 0;
+            for (int i = 1; i < count; ++i) {
+                if (mAdoptedAt[i] < mAdoptedAt[index]) {
+                    index = i;
+                }
+            }
+        }
+        if (index < 0) {
+            mFrames = Arrays.copyOf(mFrames, count + 1);
+            mAdoptedAt = Arrays.copyOf(mAdoptedAt, count + 1);
+            index = count;
+        } else {
+            mFootprintBytes -= mFrames[index].mData.length;
+        }
+
+        frame = new PreviewFrame(data, ByteBuffer.wrap(data));
+        mFrames[index] = frame;
+        mAdoptedAt[index] = ++mAdoptions;
+        mLastIndex = index;
+        mFootprintBytes += data.length;
+        return frame;
+    }
+
+    /**
+     * Returns the total size of the buffers in the pool, in bytes.
+     */
+    long getFootprintBytes() {
+        return mFootprintBytes;
+    }
+
+    /**
+     * Drops all buffers.
+     */
+    void clear() {
+        mFrames = new PreviewFrame[0];
+        mAdoptedAt = new long[0];
+        mWidth = 0;
+        mHeight = 0;
+        mLastIndex = 0;
+        mFootprintBytes = 0;
+    }
+
+    /**
+     * Returns the size of one buffer for the camera preview callback.  The size of the buffer is
+     * based off of the camera preview size and the format of the camera image.
+     */
+    private static int getBufferSize(int width, int height) {
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
+        long sizeInBits = (long) height * width * bitsPerPixel;
+        return (int) Math.ceil(sizeInBits / 8.0d) + 1;
+    }
+
+    /**
+     * Creates one buffer for the camera preview callback, along with its associated frame.
+     */
+    private static PreviewFrame createPreviewFrame(int bufferSize) {
+        //
+        // NOTICE: This code only works when using play services v. 8.1 or higher.
+        //
+
+        // Creating the byte array this way and wrapping it, as opposed to using .allocate(),
+        // should guarantee that there will be an array to work with.
+        byte[] byteArray = new byte[bufferSize];
+        ByteBuffer buffer = ByteBuffer.wrap(byteArray);
+        if (!buffer.hasArray() || (buffer.array() != byteArray)) {
+            // I don't think that this will ever happen.  But if it does, then we wouldn't be
+            // passing the preview content to the underlying detector later.
+            throw new IllegalStateException("Failed to create valid buffer for camera source.");
+        }
+
+        return new PreviewFrame(byteArray, buffer);
+    }
+}
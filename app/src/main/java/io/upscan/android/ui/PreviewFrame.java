@@ -0,0 +1,44 @@
+package io.upscan.android.ui;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A preview buffer together with the metadata of the frame it currently holds.  There is one
+ * instance per preview buffer, which is handed along with the buffer between the frame source
+ * (usually the camera) and the frame processing thread.  Whoever currently owns the buffer may update the metadata; the
+ * metadata is published to the next owner along with the buffer itself.
+ */
+class PreviewFrame {
+    /**
+     * The byte array which is handed to the camera as a callback buffer, or which was produced by
+     * another {@link FrameSource}.
+     */
+    final byte[] mData;
+
+    /**
+     * Wraps {@link #mData}.  We use byte buffers internally because this is a more efficient way
+     * to call into native code later (avoids a potential copy).
+     */
+    final ByteBuffer mBuffer;
+
+    int mId;
+    long mTimestampMillis;
+
+    /**
+     * Size and rotation of the NV21 image in {@link #mData}, as reported by the frame source.
+     */
+    int mWidth;
+    int mHeight;
+    int mRotation;
+
+    /**
+     * Position of this frame in the order of frames taken for detection.  Only used when
+     * detection runs on several workers; see {@link PreviewFrameRing}.
+     */
+    long mSequence;
+
+    PreviewFrame(byte[] data, ByteBuffer buffer) {
+        mData = data;
+        mBuffer = buffer;
+    }
+}
@@ -0,0 +1,106 @@
+package io.upscan.android.ui;
+
+/**
+ * Bounded ring of preview frames awaiting detection, shared by several detection workers.  Like
+ * {@link LatestFrameSlot}, the newest frames win: offering a frame to a full ring displaces the
+ * oldest pending frame, which is handed back to the producer so that it can be recycled.  As a
+ * bounded queue, the ring rejects the offered frame instead (see {@link BackpressurePolicy}).
+ * <p/>
+ * Frames are taken in the order in which they were offered, i.e., in increasing frame id order.
+ * Each taken frame is stamped with a consecutive sequence number, which the
+ * {@link DetectionResequencer} uses to put the detection results back into that order.
+ */
+class PreviewFrameRing {
+
+    private final PreviewFrame[] mRing;
+    private final boolean mDropNewest;
+    private int mHead;
+    private int mCount;
+    private boolean mActive = true;
+    private long mNextSequence;
+
+    PreviewFrameRing(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param dropNewest true to reject frames offered to a full ring, rather than displacing the
+     *                   oldest pending frame
+     */
+    PreviewFrameRing(int capacity, boolean dropNewest) {
+        mRing = new PreviewFrame[capacity];
+        mDropNewest = dropNewest;
+    }
+
+    /**
+     * Adds a frame to the ring, waking up a waiting worker.
+     *
+     * @return the oldest pending frame if the ring was full, or the offered frame itself if the
+     * ring was full and drops the newest frames, or null
+     */
+    synchronized PreviewFrame offer(PreviewFrame frame) {
+        PreviewFrame displaced = null;
+        if (mCount == mRing.length) {
+            if (mDropNewest) {
+                return frame;
+            }
+            displaced = removeHead();
+        }
+        mRing[(mHead + mCount) % mRing.length] = frame;
+        mCount++;
+        notify();
+        return displaced;
+    }
+
+    /**
+     * Takes the oldest pending frame, waiting for one if the ring is empty, and assigns it the
+     * next sequence number.
+     *
+     * @return the frame, or null once this ring is inactive or the thread was interrupted
+     */
+    synchronized PreviewFrame take() {
+        while (mActive && (mCount == 0)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        if (!mActive) {
+            return null;
+        }
+
+        PreviewFrame frame = removeHead();
+        frame.mSequence = mNextSequence++;
+        return frame;
+    }
+
+    /**
+     * Removes the oldest pending frame, if any, without waiting.
+     *
+     * @return the frame, or null if the ring is empty
+     */
+    synchronized PreviewFrame poll() {
+        return (mCount == 0) ? null : removeHead();
+    }
+
+    /**
+     * Marks the ring as active/not active, waking up all waiting workers.  Activating the ring
+     * restarts the sequence numbers at zero.
+     */
+    synchronized void setActive(boolean active) {
+        mActive = active;
+        if (active) {
+            mNextSequence = 0;
+        }
+        notifyAll();
+    }
+
+    private PreviewFrame removeHead() {
+        PreviewFrame frame = mRing[mHead];
+        mRing[mHead] = null;
+        mHead = (mHead + 1) % mRing.length;
+        mCount--;
+        return frame;
+    }
+}
@@ -0,0 +1,199 @@
+package io.upscan.android.ui;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the preview size for a target decode rate, see
+ * {@link CameraSource.Builder#setAutoPreviewSize(float)}.  A few candidate sizes, up to the
+ * requested preview size, are benchmarked from the largest down by timing the detector on frames
+ * of that size, and the first one whose decode rate meets the target is picked, or the smallest
+ * one if none does.  The pick is remembered per camera in the {@link CameraCapabilityCache}, so
+ * the benchmark only runs once per device.
+ */
+class PreviewSizeTuner {
+
+    private static final String TAG = "PreviewSizeTuner";
+
+    // How many of the supported sizes are benchmarked at most.
+    static final int MAX_CANDIDATES = 4;
+
+    // Sizes whose shorter side is below this are only benchmarked if there are no larger ones,
+    // since barcodes get too small to decode in them.
+    static final int MIN_CANDIDATE_SIDE = 480;
+
+    // The first detection at a size allocates the detector's buffers for it, and isn't timed.
+    private static final int WARMUP_RUNS = 1;
+    private static final int BENCHMARK_RUNS = 3;
+
+    /**
+     * Times the detector on a frame of a given size.
+     */
+    interface Benchmark {
+        /**
+         * Runs the detector once on a frame of the given size.
+         *
+         * @return how long detection took, in nanoseconds
+         */
+        long detectNanos(int width, int height);
+
+        /**
+         * Frees what was allocated for the benchmark, once it is done.
+         */
+        void finish();
+    }
+
+    private final Context mContext;
+    private final float mTargetDecodeRate;
+    private final Benchmark mBenchmark;
+
+    private CameraCapabilityCache mCache;
+
+    /**
+     * @param targetDecodeRate the decodes per second which the picked size must sustain
+     */
+    PreviewSizeTuner(Context context, float targetDecodeRate, Benchmark benchmark) {
+        mContext = context;
+        mTargetDecodeRate = targetDecodeRate;
+        mBenchmark = benchmark;
+    }
+
+    /**
+     * Returns the size picked earlier for the camera, or null if it wasn't benchmarked yet.  Reads
+     * from disk on first use.
+     *
+     * @param cameraKey the camera, unique across the camera APIs
+     */
+    int[] getRememberedPreviewSize(String cameraKey, int maxWidth, int maxHeight) {
+        return getCache().getTunedPreviewSize(cameraKey, maxWidth, maxHeight, mTargetDecodeRate);
+    }
+
+    /**
+     * Benchmarks the given supported preview sizes of the camera, and remembers the pick.  Takes
+     * up to a few seconds, depending on the detector.
+     *
+     * @param sizes the supported preview sizes, as {width, height}
+     * @return the picked size, or null if no size was supported
+     */
+    int[] tunePreviewSize(String cameraKey, List<int[]> sizes, int maxWidth, int maxHeight) {
+        List<int[]> candidates = selectCandidates(sizes, maxWidth, maxHeight);
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        int[] size;
+        try {
+            size = benchmark(candidates);
+        } finally {
+            mBenchmark.finish();
+        }
+        Log.d(TAG, "Picked " + size[0] + "x" + size[1] + " of " + candidates.size() +
+                " candidates for " + mTargetDecodeRate + " decodes per second in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + "ms");
+        getCache().putTunedPreviewSize(cameraKey, maxWidth, maxHeight, mTargetDecodeRate, size);
+        return size;
+    }
+
+    /**
+     * Benchmarks the candidates in order, and returns the first one which meets the target
+     * decode rate, or the last one if none does.
+     *
+     * @param candidates the sizes to benchmark, from the largest down
+     */
+    int[] benchmark(List<int[]> candidates) {
+        long[] runs = new long[BENCHMARK_RUNS];
+        for (int[] size : candidates) {
+            for (int i = 0; i < WARMUP_RUNS; ++i) {
+                mBenchmark.detectNanos(size[0], size[1]);
+            }
+            for (int i = 0; i < BENCHMARK_RUNS; ++i) {
+                runs[i] = mBenchmark.detectNanos(size[0], size[1]);
+            }
+            Arrays.sort(runs);
+            long medianNanos = Math.max(1, runs[BENCHMARK_RUNS / 2]);
+            if (TimeUnit.SECONDS.toNanos(1) / (double) medianNanos >= mTargetDecodeRate) {
+                return size;
+            }
+        }
+        return candidates.get(candidates.size() - 1);
+    }
+
+    /**
+     * Selects up to {@link #MAX_CANDIDATES} distinct sizes which are no larger in area than the
+     * given maximum, spread evenly from the largest to the smallest.  Sizes whose shorter side is
+     * below {@link #MIN_CANDIDATE_SIDE} are only selected if there are no others, and if all
+     * sizes are larger than the maximum, the smallest size is selected.
+     *
+     * @return the candidates, from the largest down
+     */
+    static List<int[]> selectCandidates(List<int[]> sizes, int maxWidth, int maxHeight) {
+        long maxArea = (long) maxWidth * maxHeight;
+        List<int[]> fitting = new ArrayList<>();
+        List<int[]> small = new ArrayList<>();
+        int[] smallest = null;
+        for (int[] size : sizes) {
+            if ((smallest == null) || (getArea(size) < getArea(smallest))) {
+                smallest = size;
+            }
+            if ((getArea(size) > maxArea) || contains(fitting, size) || contains(small, size)) {
+                continue;
+            }
+            if (Math.min(size[0], size[1]) >= MIN_CANDIDATE_SIDE) {
+                fitting.add(size);
+            } else {
+                small.add(size);
+            }
+        }
+        if (fitting.isEmpty()) {
+            fitting = small;
+        }
+        if (fitting.isEmpty()) {
+            return (smallest != null) ?
+                    Collections.singletonList(smallest) : Collections.<int[]>emptyList();
+        }
+
+        Collections.sort(fitting, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                long areaA = getArea(a);
+                long areaB = getArea(b);
+                return (areaA > areaB) ? -1 : ((areaA < areaB) ? 1 : 0);
+            }
+        });
+        if (fitting.size() <= MAX_CANDIDATES) {
+            return fitting;
+        }
+        List<int[]> candidates = new ArrayList<>(MAX_CANDIDATES);
+        for (int i = 0; i < MAX_CANDIDATES; ++i) {
+            candidates.add(fitting.get(i * (fitting.size() - 1) / (MAX_CANDIDATES - 1)));
+        }
+        return candidates;
+    }
+
+    private static long getArea(int[] size) {
+        return (long) size[0] * size[1];
+    }
+
+    private static boolean contains(List<int[]> sizes, int[] size) {
+        for (int[] other : sizes) {
+            if (Arrays.equals(other, size)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CameraCapabilityCache getCache() {
+        if (mCache == null) {
+            mCache = new CameraCapabilityCache(mContext);
+        }
+        return mCache;
+    }
+}
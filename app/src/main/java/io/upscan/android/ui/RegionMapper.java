@@ -0,0 +1,17 @@
+package io.upscan.android.ui;
+
+/**
+ * Maps detected items from the coordinates of a sub-region (and possibly scaled down) frame back
+ * into the coordinates of the full preview frame.  This lets the camera source run the detector on
+ * only part of a frame, while downstream code still sees full frame coordinates.
+ *
+ * @param <T> the type of the detected items
+ */
+public interface RegionMapper<T> {
+
+    /**
+     * Maps the item in place, such that a full frame coordinate equals the coordinate of the item
+     * times {@code scale}, plus the offset.
+     */
+    void mapToFrame(T item, float scale, int offsetX, int offsetY);
+}
@@ -0,0 +1,19 @@
+package io.upscan.android.ui;
+
+import android.graphics.Rect;
+
+/**
+ * Supplies the part of the preview that detection should be restricted to, such as the view
+ * finder drawn by a {@link GraphicOverlay}.
+ */
+public interface RegionOfInterestSource {
+
+    /**
+     * Gets the current region of interest, in upright preview frame coordinates (i.e., the
+     * coordinates in which the detector reports its results).
+     *
+     * @param out receives the region of interest
+     * @return false if there is no region of interest (yet), in which case the whole frame is used
+     */
+    boolean getRegionOfInterest(Rect out);
+}
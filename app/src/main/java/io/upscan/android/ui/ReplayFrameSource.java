@@ -0,0 +1,182 @@
+package io.upscan.android.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import io.upscan.android.util.Nv21Utils;
+
+/**
+ * Replays the frames of a capture file (see {@link CaptureFormat}), e.g., one recorded with
+ * {@link CaptureRecorder}, so that recorded footage can be run through detection without a
+ * camera.  Frames are either delivered at the pacing at which they were captured, or as fast as
+ * they are consumed, for benchmarks.
+ * <p/>
+ * The file is read through a memory mapping of a window of the file, which is moved along as the
+ * frames are read.
+ */
+public class ReplayFrameSource extends ThreadedFrameSource {
+
+    private static final String THREAD_NAME = "ReplayFrameSource";
+    private static final int BUFFER_COUNT = 4;
+
+    // Size of the mapped window of the file.
+    private static final int MAPPING_SIZE = 32 * 1024 * 1024;
+
+    private final File mFile;
+    private final boolean mPaced;
+
+    private RandomAccessFile mInput;
+    private long mFileLength;
+    private MappedByteBuffer mMapping;
+    private long mMappingPosition;
+
+    private long mStartNanos;
+    private long mFirstTimestampMillis;
+
+    private int mWidth;
+    private int mHeight;
+    private int mRotation;
+    private long mTimestampMillis;
+    private int mLength;
+
+    /**
+     * Creates a source which replays the file at the pacing at which it was captured.
+     */
+    public ReplayFrameSource(File file) {
+        this(file, true);
+    }
+
+    /**
+     * @param paced true to replay the file at the pacing at which it was captured, false to
+     *              deliver the frames as fast as they are consumed
+     */
+    public ReplayFrameSource(File file, boolean paced) {
+        super(THREAD_NAME, BUFFER_COUNT);
+        mFile = file;
+        mPaced = paced;
+    }
+
+    @Override
+    protected void onStart() throws IOException {
+        mInput = new RandomAccessFile(mFile, "r");
+        mFileLength = mInput.length();
+        mMapping = null;
+        mMappingPosition = 0;
+        if (!ensureMapped(CaptureFormat.FILE_HEADER_SIZE) ||
+                (mMapping.getInt() != CaptureFormat.MAGIC) ||
+                (mMapping.getInt() != CaptureFormat.VERSION)) {
+            onStop();
+            throw new IOException("Not a capture file: " + mFile);
+        }
+        mStartNanos = System.nanoTime();
+        mFirstTimestampMillis = -1;
+    }
+
+    @Override
+    protected boolean nextFrame() throws IOException, InterruptedException {
+        if (!ensureMapped(CaptureFormat.FRAME_HEADER_SIZE)) {
+            return false;
+        }
+        mWidth = mMapping.getInt();
+        mHeight = mMapping.getInt();
+        mRotation = mMapping.getInt();
+        mTimestampMillis = mMapping.getLong();
+        mLength = mMapping.getInt();
+        if ((mWidth <= 0) || (mHeight <= 0) || (mLength < 0) ||
+                (mLength > Nv21Utils.getImageSize(mWidth, mHeight))) {
+            throw new IOException("Corrupt frame of " + mWidth + "x" + mHeight + " with " +
+                    mLength + " bytes in " + mFile);
+        }
+        if (!ensureMapped(mLength)) {
+            // Truncated, e.g., by a crash while recording.
+            return false;
+        }
+
+        if (mFirstTimestampMillis < 0) {
+            mFirstTimestampMillis = mTimestampMillis;
+        }
+        if (mPaced) {
+            long dueNanos = mStartNanos +
+                    TimeUnit.MILLISECONDS.toNanos(mTimestampMillis - mFirstTimestampMillis);
+            long delayNanos = dueNanos - System.nanoTime();
+            if (delayNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean isPaced() {
+        return mPaced;
+    }
+
+    @Override
+    protected int getFrameWidth() {
+        return mWidth;
+    }
+
+    @Override
+    protected int getFrameHeight() {
+        return mHeight;
+    }
+
+    @Override
+    protected int getFrameRotation() {
+        return mRotation;
+    }
+
+    @Override
+    protected long getFrameTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    @Override
+    protected void readFrame(byte[] buffer) {
+        int length = Math.min(mLength, buffer.length);
+        mMapping.get(buffer, 0, length);
+        mMapping.position(mMapping.position() + mLength - length);
+    }
+
+    @Override
+    protected void skipFrame() {
+        mMapping.position(mMapping.position() + mLength);
+    }
+
+    @Override
+    protected void onStop() {
+        CaptureFormat.unmap(mMapping);
+        mMapping = null;
+        try {
+            mInput.close();
+        } catch (IOException e) {
+            // Only read from.
+        }
+        mInput = null;
+    }
+
+    /**
+     * Makes sure that the next {@code size} bytes of the file are mapped, moving the window along
+     * if needed.
+     *
+     * @return false if the file ends before that
+     */
+    private boolean ensureMapped(int size) throws IOException {
+        long position = mMappingPosition + ((mMapping != null) ? mMapping.position() : 0);
+        if (position + size > mFileLength) {
+            return false;
+        }
+        if ((mMapping != null) && (mMapping.remaining() >= size)) {
+            return true;
+        }
+        mMappingPosition = position;
+        CaptureFormat.unmap(mMapping);
+        mMapping = mInput.getChannel().map(FileChannel.MapMode.READ_ONLY, position,
+                Math.min(mFileLength - position, Math.max(MAPPING_SIZE, size)));
+        return true;
+    }
+}
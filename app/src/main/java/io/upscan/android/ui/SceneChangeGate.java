@@ -0,0 +1,125 @@
+package io.upscan.android.ui;
+
+import java.util.Locale;
+
+/**
+ * Skips detection while a decoded scene sits still in front of the camera.  Detecting the same
+ * barcode over and over yields the same results, so instead the results of the last detected
+ * frame are reused for tracking, until the scene changes.
+ * <p/>
+ * Scenes are compared by a coarse signature of their luma plane (see
+ * {@link io.upscan.android.util.Nv21Utils#getLumaSignature}), against the last frame that went
+ * through detection, so that slow drift adds up until it is noticed.  The scene has changed if the
+ * mean difference over all cells, or the difference of any single cell, is large enough; the
+ * latter catches small objects moving in an otherwise still scene.  A frame cropped at a
+ * different position, e.g., to follow a moving barcode, is a different scene whatever its
+ * signature, since the results of the last frame would be off by the move.  Results are reused
+ * for a bounded number of frames, after which a frame is detected regardless.
+ */
+public class SceneChangeGate {
+
+    /**
+     * Size of the signature grid.
+     */
+    public static final int SIGNATURE_COLUMNS = 24;
+    public static final int SIGNATURE_ROWS = 16;
+
+    // Differences in mean luma, in levels, that count as a change of the scene.
+    private static final int MAX_MEAN_DIFFERENCE = 4;
+    private static final int MAX_CELL_DIFFERENCE = 24;
+
+    private static final int MAX_CONSECUTIVE_REUSES = 30;
+
+    // Guarded by this.
+    private final int[] mSignature = new int[SIGNATURE_COLUMNS * SIGNATURE_ROWS];
+    private int mX;
+    private int mY;
+    private int mWidth;
+    private int mHeight;
+    private boolean mDecoded;
+    private int mConsecutiveReuses;
+    private long mEvaluatedFrames;
+    private long mReusedFrames;
+
+    /**
+     * Checks whether the scene is unchanged since the last detected frame, and that frame had
+     * results, in which case they should be reused for this frame.
+     *
+     * @param signature the signature of the frame
+     * @param x         upright left edge of the frame within the full frame, if it was cropped
+     * @param y         upright top edge of the frame within the full frame
+     * @param width     width of the frame, since signatures of different sizes don't compare
+     * @param height    height of the frame
+     * @return true if detection should be skipped and the last results reused
+     */
+    synchronized boolean isUnchanged(int[] signature, int x, int y, int width, int height) {
+        mEvaluatedFrames++;
+        if (!mDecoded || (x != mX) || (y != mY) || (width != mWidth) || (height != mHeight) ||
+                (mConsecutiveReuses >= MAX_CONSECUTIVE_REUSES)) {
+            return false;
+        }
+
+        int total = 0;
+        for (int i = 0; i < mSignature.length; ++i) {
+            int difference = Math.abs(signature[i] - mSignature[i]);
+            if (difference > MAX_CELL_DIFFERENCE) {
+                return false;
+            }
+            total += difference;
+        }
+        if (total > MAX_MEAN_DIFFERENCE * mSignature.length) {
+            return false;
+        }
+
+        mConsecutiveReuses++;
+        mReusedFrames++;
+        return true;
+    }
+
+    /**
+     * Remembers the frame that just went through detection.
+     *
+     * @param decoded whether anything was detected in the frame
+     */
+    synchronized void update(int[] signature, int x, int y, int width, int height,
+                             boolean decoded) {
+        System.arraycopy(signature, 0, mSignature, 0, mSignature.length);
+        mX = x;
+        mY = y;
+        mWidth = width;
+        mHeight = height;
+        mDecoded = decoded;
+        mConsecutiveReuses = 0;
+    }
+
+    /**
+     * Forgets the last frame and clears the metrics, e.g., when the camera is (re)started.
+     */
+    public synchronized void reset() {
+        mDecoded = false;
+        mConsecutiveReuses = 0;
+        mEvaluatedFrames = 0;
+        mReusedFrames = 0;
+    }
+
+    public synchronized long getEvaluatedFrames() {
+        return mEvaluatedFrames;
+    }
+
+    public synchronized long getReusedFrames() {
+        return mReusedFrames;
+    }
+
+    /**
+     * Returns the fraction of frames whose detection was skipped, between 0 and 1.
+     */
+    public synchronized float getReuseRate() {
+        return (mEvaluatedFrames == 0) ? 0 : (float) mReusedFrames / mEvaluatedFrames;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "SceneChangeGate: reused results for %d of %d frames",
+                mReusedFrames, mEvaluatedFrames);
+    }
+}
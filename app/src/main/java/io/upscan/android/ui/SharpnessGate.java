@@ -0,0 +1,117 @@
+package io.upscan.android.ui;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Keeps blurry frames away from the detector.  Continuous autofocus and hand motion produce runs
+ * of blurred frames, which the detector would process at full cost without a chance of a decode.
+ * <p/>
+ * Each frame is scored by the variance of its Laplacian (see
+ * {@link io.upscan.android.util.Nv21Utils#getLaplacianVariance}).  What counts as sharp depends on
+ * the scene and the camera, so the threshold is relative: a fraction of a slowly decaying peak of
+ * recent scores.  A frame is let through after a run of skipped frames regardless, so that a scene
+ * which is inherently soft isn't starved while the peak decays.
+ * <p/>
+ * Also collects the skip rate and a histogram of the scores, with one bucket per power of two.
+ */
+public class SharpnessGate {
+
+    /**
+     * Number of buckets of the score histogram.  Bucket {@code i} counts scores in
+     * {@code [2^i, 2^(i+1))}, except that the first and last buckets also count the scores below
+     * and above the range.
+     */
+    public static final int HISTOGRAM_BUCKETS = 16;
+
+    // Frames scoring below this fraction of the recent peak are skipped.
+    private static final float RELATIVE_THRESHOLD = 0.35f;
+
+    // Factor by which the peak decays on every frame, so that it follows the scene.  At 15 fps,
+    // the peak halves in about two seconds.
+    private static final float PEAK_DECAY = 0.977f;
+
+    private static final int MAX_CONSECUTIVE_SKIPS = 8;
+
+    // Guarded by this.
+    private float mPeak;
+    private int mConsecutiveSkips;
+    private long mEvaluatedFrames;
+    private long mSkippedFrames;
+    private final long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+
+    /**
+     * Scores a frame and decides whether it is worth running detection on.
+     *
+     * @param score the sharpness score of the frame
+     * @return true if the frame should be detected, false if it should be skipped
+     */
+    synchronized boolean accept(float score) {
+        mEvaluatedFrames++;
+        mHistogram[getBucket(score)]++;
+
+        mPeak = Math.max(score, mPeak * PEAK_DECAY);
+        if ((score < RELATIVE_THRESHOLD * mPeak) && (mConsecutiveSkips < MAX_CONSECUTIVE_SKIPS)) {
+            mConsecutiveSkips++;
+            mSkippedFrames++;
+            return false;
+        }
+        mConsecutiveSkips = 0;
+        return true;
+    }
+
+    /**
+     * Clears the metrics and the recent peak, e.g., when the camera is (re)started.
+     */
+    public synchronized void reset() {
+        mPeak = 0;
+        mConsecutiveSkips = 0;
+        mEvaluatedFrames = 0;
+        mSkippedFrames = 0;
+        Arrays.fill(mHistogram, 0);
+    }
+
+    /**
+     * Returns the current threshold, below which frames are skipped.
+     */
+    public synchronized float getThreshold() {
+        return RELATIVE_THRESHOLD * mPeak;
+    }
+
+    public synchronized long getEvaluatedFrames() {
+        return mEvaluatedFrames;
+    }
+
+    public synchronized long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * Returns the fraction of frames that were skipped, between 0 and 1.
+     */
+    public synchronized float getSkipRate() {
+        return (mEvaluatedFrames == 0) ? 0 : (float) mSkippedFrames / mEvaluatedFrames;
+    }
+
+    /**
+     * Returns a copy of the score histogram, see {@link #HISTOGRAM_BUCKETS}.
+     */
+    public synchronized long[] getHistogram() {
+        return mHistogram.clone();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "SharpnessGate: skipped %d of %d frames, threshold %.0f, " +
+                "histogram %s", mSkippedFrames, mEvaluatedFrames, getThreshold(),
+                Arrays.toString(mHistogram));
+    }
+
+    private static int getBucket(float score) {
+        int bucket = 0;
+        for (int value = (int) score; (value > 1) && (bucket < HISTOGRAM_BUCKETS - 1); value >>= 1) {
+            bucket++;
+        }
+        return bucket;
+    }
+}
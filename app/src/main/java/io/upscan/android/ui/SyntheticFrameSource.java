@@ -0,0 +1,232 @@
+package io.upscan.android.ui;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import io.upscan.android.util.Nv21Utils;
+
+/**
+ * Generates frames at a fixed rate, or as fast as they are consumed, without a camera.  The frames
+ * are either copies of a given NV21 image, such as a rendered barcode, or a pattern of vertical
+ * bars which moves by a few pixels on every frame.  Useful for measuring the throughput of the
+ * frame processing pipeline.
+ */
+public class SyntheticFrameSource extends ThreadedFrameSource {
+
+    private static final String THREAD_NAME = "SyntheticFrameSource";
+    private static final int BUFFER_COUNT = 4;
+
+    // Width of the bars of the generated pattern, and how far they move on every frame.
+    private static final int BAR_WIDTH = 8;
+    private static final int BAR_STEP = 3;
+
+    // Modules of an EAN-13 barcode, and of the quiet zone on either side.
+    static final int EAN13_MODULES = 95;
+    private static final int EAN13_QUIET_MODULES = 11;
+
+    // The L codes of the digits, 7 modules each with the first module in the highest bit.  The R
+    // codes are their complements, and the G codes the R codes reversed.
+    private static final int[] EAN13_L_CODES =
+            {0x0d, 0x19, 0x13, 0x3d, 0x23, 0x31, 0x2f, 0x3b, 0x37, 0x0b};
+
+    // Which of the digits of the left half use G codes, by the first digit, the first of the six
+    // digits in the highest bit.
+    private static final int[] EAN13_G_PARITIES =
+            {0x00, 0x0b, 0x0d, 0x0e, 0x13, 0x19, 0x1c, 0x15, 0x16, 0x1a};
+
+    private final byte[] mImage;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final long mFrameIntervalNanos;
+    private final int mFrameCount;
+
+    private long mStartNanos;
+    private long mFrameNanos;
+    private int mFrames;
+
+    /**
+     * Creates a source of the moving bar pattern.
+     *
+     * @param fps        the frame rate, or 0 to produce frames as fast as they are consumed
+     * @param frameCount the number of frames to produce, or 0 for no limit
+     */
+    public SyntheticFrameSource(int width, int height, float fps, int frameCount) {
+        this(null, width, height, 0, fps, frameCount);
+    }
+
+    /**
+     * Creates a source of copies of the given image.
+     *
+     * @param image      the NV21 image
+     * @param rotation   the rotation of the image, see {@link FrameSource.Callback#onFrame}
+     * @param fps        the frame rate, or 0 to produce frames as fast as they are consumed
+     * @param frameCount the number of frames to produce, or 0 for no limit
+     */
+    public SyntheticFrameSource(byte[] image, int width, int height, int rotation, float fps,
+                                int frameCount) {
+        super(THREAD_NAME, BUFFER_COUNT);
+        if ((image != null) && (image.length < Nv21Utils.getImageSize(width, height))) {
+            throw new IllegalArgumentException("Image is too small for " + width + "x" + height);
+        }
+        mImage = image;
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mFrameIntervalNanos = (fps > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / fps) : 0;
+        mFrameCount = frameCount;
+    }
+
+    @Override
+    protected void onStart() {
+        mStartNanos = System.nanoTime();
+        mFrameNanos = mStartNanos;
+        mFrames = 0;
+    }
+
+    @Override
+    protected boolean nextFrame() throws InterruptedException {
+        if ((mFrameCount > 0) && (mFrames >= mFrameCount)) {
+            return false;
+        }
+        if (mFrames > 0) {
+            mFrameNanos += mFrameIntervalNanos;
+        }
+        long delayNanos = mFrameNanos - System.nanoTime();
+        if (delayNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(delayNanos);
+        }
+        if (mFrameIntervalNanos == 0) {
+            mFrameNanos = System.nanoTime();
+        }
+        mFrames++;
+        return true;
+    }
+
+    @Override
+    protected boolean isPaced() {
+        return mFrameIntervalNanos > 0;
+    }
+
+    @Override
+    protected int getFrameWidth() {
+        return mWidth;
+    }
+
+    @Override
+    protected int getFrameHeight() {
+        return mHeight;
+    }
+
+    @Override
+    protected int getFrameRotation() {
+        return mRotation;
+    }
+
+    @Override
+    protected long getFrameTimestampMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mFrameNanos - mStartNanos);
+    }
+
+    @Override
+    protected void readFrame(byte[] buffer) {
+        if (mImage != null) {
+            System.arraycopy(mImage, 0, buffer, 0, Nv21Utils.getImageSize(mWidth, mHeight));
+            return;
+        }
+
+        renderBars(buffer, mWidth, mHeight, mFrames * BAR_STEP);
+    }
+
+    /**
+     * Renders the pattern of vertical bars into an NV21 buffer, shifted by the given number of
+     * pixels.
+     */
+    static void renderBars(byte[] buffer, int width, int height, int shift) {
+        // The first row is rendered and copied into the others, with neutral chroma.
+        for (int x = 0; x < width; ++x) {
+            buffer[x] = (byte) ((((x + shift) / BAR_WIDTH) % 2 == 0) ? 32 : 224);
+        }
+        for (int y = 1; y < height; ++y) {
+            System.arraycopy(buffer, 0, buffer, y * width, width);
+        }
+        Arrays.fill(buffer, width * height, Nv21Utils.getImageSize(width, height), (byte) 128);
+    }
+
+    /**
+     * Renders a decodable EAN-13 barcode into an NV21 buffer: dark bars on a light background,
+     * across about three quarters of the width and a third of the height, centered.
+     *
+     * @param digits the 13 digits, including a valid check digit
+     * @throws IllegalArgumentException if the digits are not a valid EAN-13 code, or the image is
+     *                                  narrower than {@link #EAN13_MODULES} pixels
+     */
+    static void renderEan13(byte[] buffer, int width, int height, String digits) {
+        boolean[] modules = encodeEan13(digits);
+        if (width < EAN13_MODULES) {
+            throw new IllegalArgumentException("Image is too narrow for a barcode: " + width);
+        }
+        int moduleWidth = Math.max(1, 3 * width / 4 / (EAN13_MODULES + 2 * EAN13_QUIET_MODULES));
+        Arrays.fill(buffer, 0, width * height, (byte) 224);
+        int left = (width - EAN13_MODULES * moduleWidth) / 2;
+        int top = height / 3;
+        for (int i = 0; i < EAN13_MODULES; ++i) {
+            if (modules[i]) {
+                int x = left + i * moduleWidth;
+                Arrays.fill(buffer, top * width + x, top * width + x + moduleWidth, (byte) 32);
+            }
+        }
+        for (int y = top + 1; y < 2 * height / 3; ++y) {
+            System.arraycopy(buffer, top * width, buffer, y * width, width);
+        }
+        Arrays.fill(buffer, width * height, Nv21Utils.getImageSize(width, height), (byte) 128);
+    }
+
+    /**
+     * Encodes an EAN-13 code into its {@link #EAN13_MODULES} modules, true for the bars.
+     *
+     * @throws IllegalArgumentException if the digits are not a valid EAN-13 code
+     */
+    static boolean[] encodeEan13(String digits) {
+        if ((digits.length() != 13) || !digits.matches("[0-9]+")) {
+            throw new IllegalArgumentException("Not an EAN-13 code: " + digits);
+        }
+        int sum = 0;
+        for (int i = 0; i < 12; ++i) {
+            sum += (digits.charAt(i) - '0') * ((i % 2 == 0) ? 1 : 3);
+        }
+        if ((10 - sum % 10) % 10 != digits.charAt(12) - '0') {
+            throw new IllegalArgumentException("Invalid check digit: " + digits);
+        }
+
+        boolean[] modules = new boolean[EAN13_MODULES];
+        int index = setModules(modules, 0, 0x5, 3);
+        int parities = EAN13_G_PARITIES[digits.charAt(0) - '0'];
+        for (int i = 1; i <= 6; ++i) {
+            int code = EAN13_L_CODES[digits.charAt(i) - '0'];
+            if ((parities & (1 << (6 - i))) != 0) {
+                code = Integer.reverse(~code & 0x7f) >>> (Integer.SIZE - 7);
+            }
+            index = setModules(modules, index, code, 7);
+        }
+        index = setModules(modules, index, 0x0a, 5);
+        for (int i = 7; i <= 12; ++i) {
+            index = setModules(modules, index, ~EAN13_L_CODES[digits.charAt(i) - '0'] & 0x7f, 7);
+        }
+        setModules(modules, index, 0x5, 3);
+        return modules;
+    }
+
+    /**
+     * Sets {@code count} modules from the bits of the pattern, the first module in the highest
+     * bit.
+     *
+     * @return the index after the last module set
+     */
+    private static int setModules(boolean[] modules, int index, int pattern, int count) {
+        for (int i = count - 1; i >= 0; --i) {
+            modules[index++] = (pattern & (1 << i)) != 0;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,154 @@
+package io.upscan.android.ui;
+
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects timing of repeated work (such as handling a camera preview frame), broken down by the
+ * thread that did the work.  Entries are keyed by thread name, so a thread that is recreated under
+ * the same name (e.g., the frame processing thread on every camera start) accumulates into the
+ * same entry.
+ * <p/>
+ * Recording is allocation free once a thread has recorded its first sample.  Each entry is only
+ * written by its own thread, so readers may observe slightly stale values.
+ */
+public class ThreadTimings {
+
+    private final List<Entry> mEntries = new CopyOnWriteArrayList<>();
+
+    private final ThreadLocal<Entry> mCurrentEntry = new ThreadLocal<Entry>() {
+        @Override
+        protected Entry initialValue() {
+            return findOrCreateEntry(Thread.currentThread());
+        }
+    };
+
+    /**
+     * Timing totals of a single thread.
+     */
+    public static class Entry {
+        private final String mThreadName;
+        private volatile boolean mMainThread;
+        private volatile long mCount;
+        private volatile long mTotalNanos;
+        private volatile long mMaxNanos;
+
+        Entry(String threadName) {
+            mThreadName = threadName;
+        }
+
+        public String getThreadName() {
+            return mThreadName;
+        }
+
+        /**
+         * Returns true if any of the samples of this entry were recorded on the main thread.
+         */
+        public boolean isMainThread() {
+            return mMainThread;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        public long getAverageNanos() {
+            long count = mCount;
+            return count == 0 ? 0 : mTotalNanos / count;
+        }
+
+        void add(long nanos) {
+            mCount++;
+            mTotalNanos += nanos;
+            if (nanos > mMaxNanos) {
+                mMaxNanos = nanos;
+            }
+        }
+
+        void reset() {
+            mCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+        }
+
+        @Override
+        public String toString() {
+            return mThreadName + (mMainThread ? " (main)" : "") +
+                    ": count=" + mCount +
+                    ", avg=" + getAverageNanos() / 1000 + "us" +
+                    ", max=" + mMaxNanos / 1000 + "us";
+        }
+    }
+
+    /**
+     * Records a sample for the calling thread, lasting from {@code startNanos} (as returned by
+     * {@link System#nanoTime()}) until now.
+     */
+    public void record(long startNanos) {
+        mCurrentEntry.get().add(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns a snapshot of the entries of all threads that have recorded samples so far.
+     */
+    public List<Entry> getEntries() {
+        return new ArrayList<>(mEntries);
+    }
+
+    /**
+     * Returns true if any sample has been recorded on the main thread.
+     */
+    public boolean hasMainThreadSamples() {
+        for (Entry entry : mEntries) {
+            if (entry.isMainThread() && entry.getCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Clears the totals of all entries.
+     */
+    public void reset() {
+        for (Entry entry : mEntries) {
+            entry.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ThreadTimings" + mEntries;
+    }
+
+    private synchronized Entry findOrCreateEntry(Thread thread) {
+        Entry result = null;
+        for (Entry entry : mEntries) {
+            if (entry.getThreadName().equals(thread.getName())) {
+                result = entry;
+                break;
+            }
+        }
+        if (result == null) {
+            result = new Entry(thread.getName());
+            mEntries.add(result);
+        }
+
+        Looper mainLooper = Looper.getMainLooper();
+        if (mainLooper != null && mainLooper.getThread() == thread) {
+            result.mMainThread = true;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,159 @@
+package io.upscan.android.ui;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import io.upscan.android.util.Nv21Utils;
+
+/**
+ * Base of frame sources which produce frames on a thread of their own.  Takes care of the thread
+ * and of a fixed set of buffers, which behaves like the camera's callback buffers: a frame is
+ * dropped when all buffers are in use.  Sources which aren't paced wait for a buffer instead, so
+ * that they produce frames exactly as fast as they are consumed.
+ */
+abstract class ThreadedFrameSource implements FrameSource {
+
+    private static final String TAG = "ThreadedFrameSource";
+
+    private final String mThreadName;
+    private final int mBufferCount;
+    private final ArrayBlockingQueue<byte[]> mFreeBuffers;
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    // Only accessed on the source thread, which is never running twice at the same time.
+    private int mAllocatedBuffers;
+
+    private volatile long mDroppedFrames;
+
+    ThreadedFrameSource(String threadName, int bufferCount) {
+        mThreadName = threadName;
+        mBufferCount = bufferCount;
+        mFreeBuffers = new ArrayBlockingQueue<>(bufferCount);
+    }
+
+    /**
+     * Prepares the source for the first frame.  Called on the caller of {@link #start}.
+     */
+    protected void onStart() throws IOException {
+    }
+
+    /**
+     * Advances to the next frame, waiting until it is due.
+     *
+     * @return false if there are no more frames
+     */
+    protected abstract boolean nextFrame() throws IOException, InterruptedException;
+
+    protected abstract int getFrameWidth();
+
+    protected abstract int getFrameHeight();
+
+    protected abstract int getFrameRotation();
+
+    protected abstract long getFrameTimestampMillis();
+
+    /**
+     * Writes the current frame into the buffer, which holds at least the NV21 image size of the
+     * frame.
+     */
+    protected abstract void readFrame(byte[] buffer) throws IOException;
+
+    /**
+     * Returns whether frames are due at given times, like those of a camera, rather than as fast
+     * as they are consumed.
+     */
+    protected abstract boolean isPaced();
+
+    /**
+     * Skips the current frame, which is dropped since all buffers are in use.
+     */
+    protected void skipFrame() throws IOException {
+    }
+
+    /**
+     * Releases what was acquired by {@link #onStart()}.  Called on the caller of {@link #stop()}.
+     */
+    protected void onStop() {
+    }
+
+    @Override
+    public synchronized void start(final Callback callback) throws IOException {
+        if (mThread != null) {
+            return;
+        }
+        onStart();
+        mRunning = true;
+        mDroppedFrames = 0;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                produceFrames(callback);
+            }
+        }, mThreadName);
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted while stopping " + mThreadName);
+        }
+        mThread = null;
+        onStop();
+    }
+
+    @Override
+    public void recycle(byte[] data) {
+        mFreeBuffers.offer(data);
+    }
+
+    /**
+     * Returns the number of frames that were dropped because all buffers were in use, since the
+     * source was last started.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private void produceFrames(Callback callback) {
+        int id = 0;
+        try {
+            while (mRunning && nextFrame()) {
+                int size = Nv21Utils.getImageSize(getFrameWidth(), getFrameHeight());
+                byte[] buffer = mFreeBuffers.poll();
+                if ((buffer == null) && (mAllocatedBuffers < mBufferCount)) {
+                    buffer = new byte[size];
+                    mAllocatedBuffers++;
+                } else if ((buffer == null) && !isPaced()) {
+                    buffer = mFreeBuffers.take();
+                } else if (buffer == null) {
+                    skipFrame();
+                    mDroppedFrames++;
+                    continue;
+                }
+                if (buffer.length < size) {
+                    buffer = new byte[size];
+                }
+
+                readFrame(buffer);
+                callback.onFrame(buffer, ++id, getFrameTimestampMillis(), getFrameWidth(),
+                        getFrameHeight(), getFrameRotation());
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } catch (IOException e) {
+            Log.e(TAG, "Could not produce frame " + (id + 1) + " of " + mThreadName, e);
+        }
+    }
+}
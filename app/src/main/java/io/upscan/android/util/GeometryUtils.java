@@ -2,6 +2,7 @@ package io.upscan.android.util;
 
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.graphics.Rect;
 
 import io.upscan.android.BuildConfig;
 
@@ -10,6 +11,9 @@ import io.upscan.android.BuildConfig;
  */
 public class GeometryUtils {
 
+    // Bound of the camera focus and metering area coordinates.
+    private static final int CAMERA_AREA_MAX = 1000;
+
     private GeometryUtils() {
         // N/A
     }
@@ -37,4 +41,99 @@ public class GeometryUtils {
         return true;
 
     }
+
+    /**
+     * Maps a rectangle of an upright image into the coordinates of the sensor image that it was
+     * rotated from.  This is the inverse of {@link #sensorToUpright}.
+     *
+     * @param upright  rectangle in upright image coordinates
+     * @param rotation clockwise rotation from sensor to upright image, in multiples of 90 degrees
+     *                 (as in {@link com.google.android.gms.vision.Frame#ROTATION_90} etc.)
+     * @param width    width of the sensor image
+     * @param height   height of the sensor image
+     * @param out      receives the rectangle in sensor image coordinates
+     */
+    public static void uprightToSensor(Rect upright, int rotation, int width, int height,
+                                       Rect out) {
+        int left = upright.left;
+        int top = upright.top;
+        int right = upright.right;
+        int bottom = upright.bottom;
+        switch (rotation) {
+            case 1:
+                out.set(top, height - right, bottom, height - left);
+                break;
+            case 2:
+                out.set(width - right, height - bottom, width - left, height - top);
+                break;
+            case 3:
+                out.set(width - bottom, left, width - top, right);
+                break;
+            default:
+                out.set(left, top, right, bottom);
+        }
+    }
+
+    /**
+     * Maps a rectangle of a sensor image into the coordinates of the upright image, i.e., after
+     * rotating it clockwise by {@code rotation} times 90 degrees.
+     *
+     * @param sensor   rectangle in sensor image coordinates
+     * @param rotation clockwise rotation from sensor to upright image, in multiples of 90 degrees
+     * @param width    width of the sensor image
+     * @param height   height of the sensor image
+     * @param out      receives the rectangle in upright image coordinates
+     */
+    public static void sensorToUpright(Rect sensor, int rotation, int width, int height,
+                                       Rect out) {
+        int left = sensor.left;
+        int top = sensor.top;
+        int right = sensor.right;
+        int bottom = sensor.bottom;
+        switch (rotation) {
+            case 1:
+                out.set(height - bottom, left, height - top, right);
+                break;
+            case 2:
+                out.set(width - right, height - bottom, width - left, height - top);
+                break;
+            case 3:
+                out.set(top, width - right, bottom, width - left);
+                break;
+            default:
+                out.set(left, top, right, bottom);
+        }
+    }
+
+    /**
+     * Maps a rectangle of a sensor image into the coordinates of the camera focus and metering
+     * areas, in which the field of view spans from -1000 to 1000 in both directions (as in
+     * {@link android.hardware.Camera.Area}).  The rectangle is clipped to the field of view, and
+     * is at least one unit wide and high.
+     *
+     * @param sensor rectangle in sensor image coordinates
+     * @param width  width of the sensor image
+     * @param height height of the sensor image
+     * @param out    receives the rectangle in camera area coordinates
+     */
+    public static void sensorToCameraArea(Rect sensor, int width, int height, Rect out) {
+        int left = toCameraArea(sensor.left, width);
+        int top = toCameraArea(sensor.top, height);
+        int right = toCameraArea(sensor.right, width);
+        int bottom = toCameraArea(sensor.bottom, height);
+        if (right <= left) {
+            right = Math.min(CAMERA_AREA_MAX, left + 1);
+            left = right - 1;
+        }
+        if (bottom <= top) {
+            bottom = Math.min(CAMERA_AREA_MAX, top + 1);
+            top = bottom - 1;
+        }
+        out.set(left, top, right, bottom);
+    }
+
+    private static int toCameraArea(int coordinate, int size) {
+        int area = (int) ((long) coordinate * (2 * CAMERA_AREA_MAX) / size) - CAMERA_AREA_MAX;
+        return Math.max(-CAMERA_AREA_MAX, Math.min(CAMERA_AREA_MAX, area));
+    }
 }
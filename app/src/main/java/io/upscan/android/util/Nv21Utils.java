@@ -0,0 +1,308 @@
+package io.upscan.android.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Operations on NV21 images: a full resolution luma (Y) plane, followed by a half resolution
+ * plane of interleaved V/U samples.
+ */
+public class Nv21Utils {
+
+    private Nv21Utils() {
+        // N/A
+    }
+
+    /**
+     * Returns the number of bytes of an NV21 image of the given size.
+     */
+    public static int getImageSize(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Copies a rectangle of an NV21 image into {@code dst}, as a tightly packed NV21 image of
+     * {@code cropWidth} x {@code cropHeight}.  The rectangle must lie within the source image, and
+     * its position and size must be even, so that the chroma samples line up.
+     *
+     * @param src    the source image
+     * @param width  width of the source image
+     * @param height height of the source image
+     * @param dst    the destination, of at least {@link #getImageSize(int, int)} bytes for the crop
+     */
+    public static void crop(byte[] src, int width, int height,
+                            int left, int top, int cropWidth, int cropHeight, byte[] dst) {
+        if (((left | top | cropWidth | cropHeight) & 1) != 0) {
+            throw new IllegalArgumentException("Crop must be even: " + left + "," + top + " " +
+                    cropWidth + "x" + cropHeight);
+        }
+        if ((left < 0) || (top < 0) || (left + cropWidth > width) || (top + cropHeight > height)) {
+            throw new IllegalArgumentException("Crop outside of image");
+        }
+
+        // Luma plane.
+        int srcOffset = top * width + left;
+        int dstOffset = 0;
+        for (int row = 0; row < cropHeight; ++row) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, cropWidth);
+            srcOffset += width;
+            dstOffset += cropWidth;
+        }
+
+        // Interleaved chroma plane, one row for every two luma rows.  Every V/U pair covers two
+        // luma columns, so the same byte range applies.
+        srcOffset = width * height + (top / 2) * width + left;
+        for (int row = 0; row < cropHeight / 2; ++row) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, cropWidth);
+            srcOffset += width;
+            dstOffset += cropWidth;
+        }
+    }
+
+    /**
+     * Returns the width or height of an image that is downsampled by {@link #downsample}, which is
+     * rounded down to an even size.
+     */
+    public static int getDownsampledSize(int size) {
+        return (size / 4) * 2;
+    }
+
+    /**
+     * Downsamples an NV21 image by a factor of two into {@code dst}, as a tightly packed NV21
+     * image of {@link #getDownsampledSize(int)} of the width and height.  Luma samples are the
+     * average of each 2x2 block, while chroma samples are only subsampled, since detection only
+     * looks at the luma plane.
+     *
+     * @param src    the source image
+     * @param width  width of the source image
+     * @param height height of the source image
+     * @param dst    the destination, of at least {@link #getImageSize(int, int)} bytes for the
+     *               downsampled size
+     */
+    public static void downsample(byte[] src, int width, int height, byte[] dst) {
+        int dstWidth = getDownsampledSize(width);
+        int dstHeight = getDownsampledSize(height);
+
+        // Luma plane.
+        int dstOffset = 0;
+        for (int row = 0; row < dstHeight; ++row) {
+            int srcOffset = 2 * row * width;
+            for (int column = 0; column < dstWidth; ++column) {
+                int sum = (src[srcOffset] & 0xff) + (src[srcOffset + 1] & 0xff) +
+                        (src[srcOffset + width] & 0xff) + (src[srcOffset + width + 1] & 0xff);
+                dst[dstOffset++] = (byte) (sum >> 2);
+                srcOffset += 2;
+            }
+        }
+
+        // Interleaved chroma plane: every other V/U pair of every other chroma row.
+        for (int row = 0; row < dstHeight / 2; ++row) {
+            int srcOffset = width * height + 2 * row * width;
+            for (int pair = 0; pair < dstWidth / 2; ++pair) {
+                dst[dstOffset++] = src[srcOffset];
+                dst[dstOffset++] = src[srcOffset + 1];
+                srcOffset += 4;
+            }
+        }
+    }
+
+    /**
+     * Layouts of the chroma planes of a YUV 4:2:0 image, see {@link #getChromaLayout}.
+     */
+    public static final int CHROMA_LAYOUT_UNKNOWN = 0;
+    public static final int CHROMA_LAYOUT_INTERLEAVED_VU = 1;
+    public static final int CHROMA_LAYOUT_SEPARATE = 2;
+
+    /**
+     * Packs the planes of a YUV 4:2:0 image with arbitrary row and pixel strides, as delivered by
+     * the camera2 API, into {@code dst} as a tightly packed NV21 image.  Rows are copied in bulk.
+     * If the chroma planes are views of one interleaved V/U plane, which is how most cameras lay
+     * them out, the chroma rows are copied in bulk as well rather than sample by sample.  The
+     * width and height must be even.  The positions of the plane buffers are changed.
+     *
+     * @param y             the luma plane
+     * @param yRowStride    the distance between luma rows
+     * @param u             the U plane
+     * @param v             the V plane
+     * @param uvRowStride   the distance between chroma rows, the same for both chroma planes
+     * @param uvPixelStride the distance between chroma samples, the same for both chroma planes
+     * @param interleavedVu whether the chroma planes are known to be interleaved, see
+     *                      {@link #getChromaLayout}
+     * @param dst           the destination, of at least {@link #getImageSize(int, int)} bytes
+     */
+    public static void fromYuv420(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                                  int uvRowStride, int uvPixelStride, boolean interleavedVu,
+                                  int width, int height, byte[] dst) {
+        // Luma plane.
+        if (yRowStride == width) {
+            y.position(0);
+            y.get(dst, 0, width * height);
+        } else {
+            for (int row = 0; row < height; ++row) {
+                y.position(row * yRowStride);
+                y.get(dst, row * width, width);
+            }
+        }
+
+        // Chroma plane.  The V plane of an interleaved layout ends one sample short of the last
+        // U sample, which is taken from the U plane.
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int dstOffset = width * height;
+        if (interleavedVu && (uvPixelStride == 2)) {
+            int rowLength = 2 * chromaWidth - 1;
+            if (uvRowStride == width) {
+                v.position(0);
+                v.get(dst, dstOffset, (chromaHeight - 1) * width + rowLength);
+            } else {
+                for (int row = 0; row < chromaHeight; ++row) {
+                    v.position(row * uvRowStride);
+                    v.get(dst, dstOffset + row * width, rowLength);
+                }
+            }
+            for (int row = 0; row < chromaHeight; ++row) {
+                dst[dstOffset + row * width + rowLength] =
+                        u.get(row * uvRowStride + rowLength - 1);
+            }
+        } else {
+            for (int row = 0; row < chromaHeight; ++row) {
+                int offset = row * uvRowStride;
+                for (int column = 0; column < chromaWidth; ++column) {
+                    dst[dstOffset++] = v.get(offset);
+                    dst[dstOffset++] = u.get(offset);
+                    offset += uvPixelStride;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds out, without writing to the planes, whether the U plane starts one byte into the V
+     * plane, i.e., whether the two planes are views of one V/U interleaved plane as in NV21.  The
+     * U samples of the first and the middle chroma row are compared with the bytes in between the
+     * V samples.  A single mismatch rules the layout out, but matching samples only prove it if
+     * they vary along the row, since a flat scene (e.g., a dark frame) matches any interleaved
+     * layout.  The layout doesn't change while the camera is streaming, so once it is known it
+     * needs to be found out again only for a new stream.
+     *
+     * @param width  width of the image
+     * @param height height of the image
+     * @return {@link #CHROMA_LAYOUT_INTERLEAVED_VU}, {@link #CHROMA_LAYOUT_SEPARATE}, or
+     * {@link #CHROMA_LAYOUT_UNKNOWN} if the samples couldn't tell, in which case another image
+     * should be tried
+     */
+    public static int getChromaLayout(ByteBuffer u, ByteBuffer v, int uvRowStride,
+                                      int uvPixelStride, int width, int height) {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int planeLength = (chromaHeight - 1) * uvRowStride + 2 * chromaWidth - 1;
+        if ((uvPixelStride != 2) || (chromaWidth < 1) || (chromaHeight < 1) ||
+                (uvRowStride < width) || (v.limit() < planeLength) || (u.limit() < planeLength)) {
+            return CHROMA_LAYOUT_SEPARATE;
+        }
+
+        boolean varies = false;
+        for (int row = 0; row < chromaHeight; row += Math.max(1, chromaHeight / 2)) {
+            int offset = row * uvRowStride;
+            byte first = u.get(offset);
+            for (int column = 0; column < chromaWidth; ++column) {
+                // The last U sample of the row is past the end of the V plane in the last row.
+                byte sample = u.get(offset + 2 * column);
+                if ((column < chromaWidth - 1) && (sample != v.get(offset + 2 * column + 1))) {
+                    return CHROMA_LAYOUT_SEPARATE;
+                }
+                varies |= sample != first;
+            }
+        }
+        return varies ? CHROMA_LAYOUT_INTERLEAVED_VU : CHROMA_LAYOUT_UNKNOWN;
+    }
+
+    /**
+     * Estimates the sharpness of an image as the variance of the Laplacian of its luma plane.
+     * Blurred images lack the strong second derivatives of sharp edges, so their variance is
+     * low.  Only every {@code step}-th pixel of every {@code step}-th row is sampled, which is
+     * usually enough for an estimate at a fraction of the cost.  The sampled columns are shifted
+     * from row to row, so that regular structure such as barcode bars can't fall in between.
+     *
+     * @param luma   the image, of which only the luma plane is used
+     * @param width  width of the image
+     * @param height height of the image
+     * @param step   the sampling step, at least 1
+     * @return the variance of the Laplacian, or 0 if the image is too small
+     */
+    public static float getLaplacianVariance(byte[] luma, int width, int height, int step) {
+        long sum = 0;
+        long sumOfSquares = 0;
+        int count = 0;
+        for (int y = 1, row = 0; y < height - 1; y += step, ++row) {
+            int offset = y * width;
+            for (int x = 1 + row % step; x < width - 1; x += step) {
+                int index = offset + x;
+                int laplacian = 4 * (luma[index] & 0xff) -
+                        (luma[index - 1] & 0xff) - (luma[index + 1] & 0xff) -
+                        (luma[index - width] & 0xff) - (luma[index + width] & 0xff);
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        float mean = (float) sum / count;
+        return (float) sumOfSquares / count - mean * mean;
+    }
+
+    /**
+     * Estimates the brightness of an image as the mean of its luma plane, from every
+     * {@code step}-th pixel of every {@code step}-th row.
+     *
+     * @param luma   the image, of which only the luma plane is used
+     * @param width  width of the image
+     * @param height height of the image
+     * @param step   the sampling step, at least 1
+     * @return the mean luma from 0 to 255, or 0 if the image is empty
+     */
+    public static float getMeanLuma(byte[] luma, int width, int height, int step) {
+        long sum = 0;
+        int count = 0;
+        for (int y = step / 2; y < height; y += step) {
+            int offset = y * width;
+            for (int x = step / 2; x < width; x += step) {
+                sum += luma[offset + x] & 0xff;
+                count++;
+            }
+        }
+        return (count == 0) ? 0 : (float) sum / count;
+    }
+
+    /**
+     * Computes a coarse signature of the luma plane of an image: the mean luma of each cell of a
+     * {@code columns} x {@code rows} grid, estimated from every {@code step}-th pixel of every
+     * {@code step}-th row of the cell.  Comparing signatures is a cheap way of telling whether a
+     * scene has changed.
+     *
+     * @param luma      the image, of which only the luma plane is used
+     * @param width     width of the image, at least {@code columns}
+     * @param height    height of the image, at least {@code rows}
+     * @param signature receives the signature, of at least {@code columns * rows} values
+     */
+    public static void getLumaSignature(byte[] luma, int width, int height, int columns, int rows,
+                                        int step, int[] signature) {
+        int cellWidth = width / columns;
+        int cellHeight = height / rows;
+        for (int row = 0; row < rows; ++row) {
+            for (int column = 0; column < columns; ++column) {
+                int sum = 0;
+                int count = 0;
+                for (int y = row * cellHeight; y < (row + 1) * cellHeight; y += step) {
+                    int offset = y * width;
+                    for (int x = column * cellWidth; x < (column + 1) * cellWidth; x += step) {
+                        sum += luma[offset + x] & 0xff;
+                        count++;
+                    }
+                }
+                signature[row * columns + column] = sum / count;
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package io.upscan.android.util;
+
+import android.graphics.Rect;
+
+/**
+ * Finds the part of a luma image that contains barcode-like structure, i.e., dense, high contrast
+ * edges.  The image is divided into blocks and the average gradient of each block is estimated
+ * from a subset of its pixels.  Blocks whose average gradient is strong enough, and which have at
+ * least one such neighbour, make up the structure; isolated blocks are usually noise or a stray
+ * edge.
+ * <p/>
+ * Instances keep their block grid between calls, so they don't allocate once the image size is
+ * stable, but they aren't thread safe.
+ */
+public class StructureFinder {
+
+    /**
+     * Size of the blocks, in pixels.
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    // Pixels are sampled at this step in both directions within a block.
+    private static final int SAMPLE_STEP = 2;
+
+    // Minimum average absolute gradient (horizontal plus vertical) of a block with structure.
+    // Printed barcodes are far above this, while flat surfaces and blur are well below it.
+    private static final int MIN_EDGE_STRENGTH = 24;
+
+    private boolean[] mActive = new boolean[0];
+
+    /**
+     * Finds the bounding box of the barcode-like structure in the luma plane of an image, such as
+     * the first {@code width * height} bytes of an NV21 image.
+     *
+     * @param out receives the bounding box, aligned to blocks and clipped to the image
+     * @return false if the image contains no such structure
+     */
+    public boolean find(byte[] luma, int width, int height, Rect out) {
+        int columns = width / BLOCK_SIZE;
+        int rows = height / BLOCK_SIZE;
+        if (mActive.length < columns * rows) {
+            mActive = new boolean[columns * rows];
+        }
+
+        int samplesPerBlock = (BLOCK_SIZE / SAMPLE_STEP) * (BLOCK_SIZE / SAMPLE_STEP);
+        for (int row = 0; row < rows; ++row) {
+            for (int column = 0; column < columns; ++column) {
+                int sum = 0;
+                // The last row and column of a block are skipped, so that the neighbours that
+                // make up the gradient are always within the image.
+                for (int y = row * BLOCK_SIZE; y < (row + 1) * BLOCK_SIZE - 1; y += SAMPLE_STEP) {
+                    int offset = y * width + column * BLOCK_SIZE;
+                    for (int x = 0; x < BLOCK_SIZE - 1; x += SAMPLE_STEP) {
+                        int value = luma[offset + x] & 0xff;
+                        sum += Math.abs((luma[offset + x + 1] & 0xff) - value) +
+                                Math.abs((luma[offset + x + width] & 0xff) - value);
+                    }
+                }
+                mActive[row * columns + column] = sum >= MIN_EDGE_STRENGTH * samplesPerBlock;
+            }
+        }
+
+        int left = columns;
+        int top = rows;
+        int right = -1;
+        int bottom = -1;
+        for (int row = 0; row < rows; ++row) {
+            for (int column = 0; column < columns; ++column) {
+                if (mActive[row * columns + column] && hasActiveNeighbour(row, column, rows, columns)) {
+                    left = Math.min(left, column);
+                    top = Math.min(top, row);
+                    right = Math.max(right, column);
+                    bottom = Math.max(bottom, row);
+                }
+            }
+        }
+        if (right < 0) {
+            return false;
+        }
+        out.set(left * BLOCK_SIZE, top * BLOCK_SIZE,
+                (right + 1) * BLOCK_SIZE, (bottom + 1) * BLOCK_SIZE);
+        return true;
+    }
+
+    private boolean hasActiveNeighbour(int row, int column, int rows, int columns) {
+        int index = row * columns + column;
+        return ((column > 0) && mActive[index - 1]) ||
+                ((column < columns - 1) && mActive[index + 1]) ||
+                ((row > 0) && mActive[index - columns]) ||
+                ((row < rows - 1) && mActive[index + columns]);
+    }
+}
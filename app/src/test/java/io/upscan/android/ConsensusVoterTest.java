@@ -0,0 +1,59 @@
+package io.upscan.android;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests when the {@link ConsensusVoter} lets reads through.
+ */
+public class ConsensusVoterTest {
+
+    private static final int EAN_13 = 32;
+
+    @Test
+    public void testRequiresAgreeingReads() {
+        ConsensusVoter voter = new ConsensusVoter(3, 1000);
+        assertFalse(voter.vote(1, EAN_13, "4006381333931", 0));
+        // A misread in between doesn't count.
+        assertFalse(voter.vote(1, EAN_13, "4006381333937", 66));
+        assertFalse(voter.vote(1, EAN_13, "4006381333931", 133));
+        assertTrue(voter.vote(1, EAN_13, "4006381333931", 200));
+        assertTrue(voter.vote(1, EAN_13, "4006381333931", 266));
+
+        // The misread doesn't get through on its own.
+        assertFalse(voter.vote(1, EAN_13, "4006381333937", 333));
+        assertEquals(2, voter.getAccepted());
+        assertEquals(4, voter.getHeldBack());
+    }
+
+    @Test
+    public void testVotesArePerTrackerAndWindow() {
+        ConsensusVoter voter = new ConsensusVoter(2, 1000);
+        assertFalse(voter.vote(1, EAN_13, "123", 0));
+        assertFalse(voter.vote(2, EAN_13, "123", 0));
+        assertTrue(voter.vote(1, EAN_13, "123", 1000));
+
+        // The first read of tracker 2 is out of the window by now.
+        assertFalse(voter.vote(2, EAN_13, "123", 1001));
+        assertTrue(voter.vote(2, EAN_13, "123", 1002));
+
+        // A forgotten tracker starts over.
+        voter.forget(1);
+        assertFalse(voter.vote(1, EAN_13, "123", 1003));
+    }
+
+    @Test
+    public void testEvictsLeastRecentTracker() {
+        ConsensusVoter voter = new ConsensusVoter(2, 100000);
+        for (int id = 0; id < ConsensusVoter.MAX_TRACKERS; ++id) {
+            voter.vote(id, EAN_13, "123", id);
+        }
+        // Tracker 0 voted least recently, and loses its votes to a new tracker.
+        assertFalse(voter.vote(ConsensusVoter.MAX_TRACKERS, EAN_13, "123", 100));
+        assertTrue(voter.vote(1, EAN_13, "123", 101));
+        assertFalse(voter.vote(0, EAN_13, "123", 102));
+    }
+}
@@ -0,0 +1,59 @@
+package io.upscan.android;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests which reads the {@link DecodeDeduplicator} lets through.
+ */
+public class DecodeDeduplicatorTest {
+
+    private static final int EAN_13 = 32;
+    private static final int QR_CODE = 256;
+
+    @Test
+    public void testSuppressesRepeatedReads() {
+        DecodeDeduplicator deduplicator = new DecodeDeduplicator(null, 4, 1000, 10000);
+        assertEquals(DecodeDeduplicator.NEW, deduplicator.onRead(EAN_13, "123", 0));
+        for (int i = 1; i <= 20; ++i) {
+            assertEquals(DecodeDeduplicator.SUPPRESSED, deduplicator.onRead(EAN_13, "123", 66 * i));
+        }
+
+        // The same value in another format is another code.
+        assertEquals(DecodeDeduplicator.NEW, deduplicator.onRead(QR_CODE, "123", 2000));
+        assertEquals(2, deduplicator.getNewCodes());
+        assertEquals(20, deduplicator.getSuppressedCount());
+    }
+
+    @Test
+    public void testReseenAndExpired() {
+        DecodeDeduplicator deduplicator = new DecodeDeduplicator(null, 4, 1000, 10000);
+        assertEquals(DecodeDeduplicator.NEW, deduplicator.onRead(EAN_13, "123", 0));
+
+        // Away for less than the reseen time, e.g. flickering.
+        assertEquals(DecodeDeduplicator.SUPPRESSED, deduplicator.onRead(EAN_13, "123", 999));
+        assertEquals(DecodeDeduplicator.RESEEN, deduplicator.onRead(EAN_13, "123", 2500));
+        assertEquals(1501, deduplicator.getAbsentMillis());
+
+        // Away for longer than the time to live.
+        assertEquals(DecodeDeduplicator.NEW, deduplicator.onRead(EAN_13, "123", 12501));
+        assertEquals(1, deduplicator.getReseenCodes());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyRead() {
+        DecodeDeduplicator deduplicator = new DecodeDeduplicator(null, 2, 1000, 10000);
+        deduplicator.onRead(EAN_13, "1", 0);
+        deduplicator.onRead(EAN_13, "2", 10);
+        deduplicator.onRead(EAN_13, "1", 20);
+
+        // "2" was read least recently, and makes room for "3".
+        assertEquals(DecodeDeduplicator.NEW, deduplicator.onRead(EAN_13, "3", 30));
+        assertEquals(DecodeDeduplicator.SUPPRESSED, deduplicator.onRead(EAN_13, "1", 40));
+        assertEquals(DecodeDeduplicator.NEW, deduplicator.onRead(EAN_13, "2", 50));
+
+        deduplicator.clear();
+        assertEquals(DecodeDeduplicator.NEW, deduplicator.onRead(EAN_13, "3", 60));
+    }
+}
@@ -0,0 +1,114 @@
+package io.upscan.android;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests how the {@link DetectionBatcher} batches the reads of a frame and drops stale batches.
+ */
+public class DetectionBatcherTest {
+
+    /**
+     * Runs the delivery when told to, like a display frame would.
+     */
+    private static class ManualScheduler implements DetectionBatcher.Scheduler {
+        Runnable mDelivery;
+        int mScheduled;
+
+        @Override
+        public void schedule(Runnable delivery) {
+            mDelivery = delivery;
+            mScheduled++;
+        }
+
+        void runFrame() {
+            Runnable delivery = mDelivery;
+            mDelivery = null;
+            if (delivery != null) {
+                delivery.run();
+            }
+        }
+    }
+
+    /**
+     * Records the frame ids and barcodes of the delivered batches.
+     */
+    private static class RecordingListener implements DetectionBatcher.Listener {
+        final List<Integer> mFrameIds = new ArrayList<>();
+        final List<List<Barcode>> mItems = new ArrayList<>();
+
+        @Override
+        public void onDetectionBatch(DetectionBatch batch) {
+            mFrameIds.add(batch.getFrameId());
+            List<Barcode> items = new ArrayList<>();
+            for (int i = 0; i < batch.size(); ++i) {
+                items.add(batch.get(i));
+            }
+            mItems.add(items);
+        }
+    }
+
+    @Test
+    public void testBatchesReadsOfAFrame() {
+        ManualScheduler scheduler = new ManualScheduler();
+        RecordingListener listener = new RecordingListener();
+        DetectionBatcher batcher = new DetectionBatcher(listener, scheduler);
+
+        Barcode[] items = new Barcode[5];
+        batcher.beginBatch(1, 100);
+        for (int i = 0; i < items.length; ++i) {
+            items[i] = new Barcode();
+            batcher.onBarcodeDetected(null, items[i]);
+        }
+        batcher.endBatch();
+        assertEquals(1, scheduler.mScheduled);
+        assertNotNull(scheduler.mDelivery);
+
+        scheduler.runFrame();
+        assertEquals(1, listener.mFrameIds.size());
+        assertEquals(1, (int) listener.mFrameIds.get(0));
+        assertEquals(items.length, listener.mItems.get(0).size());
+        for (int i = 0; i < items.length; ++i) {
+            assertSame(items[i], listener.mItems.get(0).get(i));
+        }
+    }
+
+    @Test
+    public void testDropsStaleBatches() {
+        ManualScheduler scheduler = new ManualScheduler();
+        RecordingListener listener = new RecordingListener();
+        DetectionBatcher batcher = new DetectionBatcher(listener, scheduler);
+
+        // Three frames are processed before the next display frame, and only the last is shown.
+        for (int frameId = 1; frameId <= 3; ++frameId) {
+            batcher.beginBatch(frameId, 100 * frameId);
+            batcher.onBarcodeDetected(null, new Barcode());
+            batcher.endBatch();
+        }
+        assertEquals(1, scheduler.mScheduled);
+        scheduler.runFrame();
+        assertEquals(1, listener.mFrameIds.size());
+        assertEquals(3, (int) listener.mFrameIds.get(0));
+        assertEquals(2, batcher.getDroppedBatches());
+
+        // A display frame without a new batch delivers nothing.
+        scheduler.runFrame();
+        assertEquals(1, batcher.getDeliveredBatches());
+
+        // Recycled batches don't carry the reads of earlier frames.
+        batcher.beginBatch(4, 400);
+        batcher.endBatch();
+        assertEquals(2, scheduler.mScheduled);
+        scheduler.runFrame();
+        assertEquals(4, (int) listener.mFrameIds.get(1));
+        assertEquals(0, listener.mItems.get(1).size());
+    }
+}
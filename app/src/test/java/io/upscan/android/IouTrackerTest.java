@@ -0,0 +1,135 @@
+package io.upscan.android;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.MultiProcessor;
+import com.google.android.gms.vision.Tracker;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests how the {@link IouTracker} matches barcodes to tracks and reuses the trackers.
+ */
+public class IouTrackerTest {
+
+    private static final int EAN_13 = 32;
+
+    /**
+     * Records the calls it receives.
+     */
+    private static class RecordingTracker extends Tracker<Barcode> {
+        final List<String> mCalls = new ArrayList<>();
+        Barcode mItem;
+
+        @Override
+        public void onNewItem(int id, Barcode item) {
+            mCalls.add("new " + id);
+        }
+
+        @Override
+        public void onUpdate(Detector.Detections<Barcode> detections, Barcode item) {
+            mCalls.add("update " + item.rawValue);
+            mItem = item;
+        }
+
+        @Override
+        public void onMissing(Detector.Detections<Barcode> detections) {
+            mCalls.add("missing");
+        }
+
+        @Override
+        public void onDone() {
+            mCalls.add("done");
+        }
+    }
+
+    private static class RecordingFactory implements MultiProcessor.Factory<Barcode> {
+        final List<RecordingTracker> mTrackers = new ArrayList<>();
+
+        @Override
+        public Tracker<Barcode> create(Barcode item) {
+            RecordingTracker tracker = new RecordingTracker();
+            mTrackers.add(tracker);
+            return tracker;
+        }
+    }
+
+    @Test
+    public void testGetIou() {
+        assertEquals(1.0f, IouTracker.getIou(new Rect(0, 0, 10, 10), new Rect(0, 0, 10, 10)), 0);
+        assertEquals(0.0f, IouTracker.getIou(new Rect(0, 0, 10, 10), new Rect(10, 0, 20, 10)), 0);
+        // 50 in common of 150.
+        assertEquals(1 / 3.0f, IouTracker.getIou(new Rect(0, 0, 10, 10), new Rect(5, 0, 15, 10)),
+                1e-6f);
+    }
+
+    @Test
+    public void testFollowsMovingBarcodes() {
+        RecordingFactory factory = new RecordingFactory();
+        IouTracker tracker = new IouTracker(factory, 0.3f, 1);
+
+        track(tracker, barcode("1", 0, 0), barcode("2", 100, 0));
+        assertEquals(2, tracker.getTrackCount());
+
+        // Barcode 1 moves a little and is misread, barcode 2 jumps but keeps its value.
+        Barcode misread = barcode("7", 2, 0);
+        Barcode jumped = barcode("2", 300, 0);
+        track(tracker, jumped, misread);
+        assertEquals(2, tracker.getTrackCount());
+        assertEquals(2, factory.mTrackers.size());
+        assertSame(misread, factory.mTrackers.get(0).mItem);
+        assertSame(jumped, factory.mTrackers.get(1).mItem);
+    }
+
+    @Test
+    public void testMissGraceAndReuse() {
+        RecordingFactory factory = new RecordingFactory();
+        IouTracker tracker = new IouTracker(factory, 0.3f, 1);
+
+        track(tracker, barcode("1", 0, 0));
+        track(tracker);
+        assertEquals(1, tracker.getTrackCount());
+        track(tracker, barcode("1", 0, 0));
+        track(tracker);
+        track(tracker);
+        assertEquals(0, tracker.getTrackCount());
+
+        // The tracker of the gone barcode is reused for the next one.
+        track(tracker, barcode("2", 50, 50));
+        assertEquals(1, factory.mTrackers.size());
+        assertEquals(1, tracker.getTrackId(0));
+        assertEquals(1, tracker.getReusedTrackers());
+        String[] calls = {"new 0", "update 1", "missing", "update 1", "missing", "done",
+                "new 1", "update 2"};
+        assertEquals(calls.length, factory.mTrackers.get(0).mCalls.size());
+        for (int i = 0; i < calls.length; ++i) {
+            assertEquals(calls[i], factory.mTrackers.get(0).mCalls.get(i));
+        }
+
+        tracker.release();
+        assertEquals(0, tracker.getTrackCount());
+        assertEquals("done", factory.mTrackers.get(0).mCalls.get(calls.length));
+    }
+
+    private static void track(IouTracker tracker, Barcode... items) {
+        tracker.track(null, items, items.length, 0);
+    }
+
+    private static Barcode barcode(String value, int left, int top) {
+        Barcode barcode = new Barcode();
+        barcode.format = EAN_13;
+        barcode.rawValue = value;
+        barcode.cornerPoints = new Point[]{new Point(left, top), new Point(left + 40, top),
+                new Point(left + 40, top + 20), new Point(left, top + 20)};
+        return barcode;
+    }
+}
@@ -0,0 +1,94 @@
+package io.upscan.android;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import com.google.android.gms.vision.MultiProcessor;
+import com.google.android.gms.vision.Tracker;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import org.junit.Test;
+
+import io.upscan.android.ui.RegionOfInterestSource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the prediction of the {@link IouTracker} and the window of the
+ * {@link PredictedSearchWindow}.
+ */
+public class PredictedSearchWindowTest {
+
+    private static final Rect VIEW_FINDER = new Rect(0, 0, 1000, 1000);
+
+    private static final MultiProcessor.Factory<Barcode> FACTORY =
+            new MultiProcessor.Factory<Barcode>() {
+                @Override
+                public Tracker<Barcode> create(Barcode item) {
+                    return new Tracker<>();
+                }
+            };
+
+    private static final RegionOfInterestSource VIEW_FINDER_SOURCE = new RegionOfInterestSource() {
+        @Override
+        public boolean getRegionOfInterest(Rect out) {
+            out.set(VIEW_FINDER);
+            return true;
+        }
+    };
+
+    @Test
+    public void testPredictsConstantVelocity() {
+        IouTracker tracker = new IouTracker(FACTORY, 0.3f, 1);
+        // Moves right by 10 pixels every 100ms.
+        track(tracker, 0, 100, 100);
+        track(tracker, 100, 110, 100);
+        track(tracker, 200, 120, 100);
+
+        Rect predicted = new Rect();
+        tracker.predictBounds(0, 300, predicted);
+        assertEquals(new Rect(130, 100, 230, 150), predicted);
+        assertEquals(3, tracker.getTrackHits(0));
+    }
+
+    @Test
+    public void testWindowAndFullSearches() {
+        IouTracker tracker = new IouTracker(FACTORY, 0.3f, 1);
+        PredictedSearchWindow window = new PredictedSearchWindow(VIEW_FINDER_SOURCE, 3);
+        tracker.setSearchWindow(window);
+        Rect region = new Rect();
+
+        // Not steady yet.
+        track(tracker, 0, 100, 100);
+        track(tracker, 100, 110, 100);
+        assertTrue(window.getRegionOfInterest(region));
+        assertEquals(VIEW_FINDER, region);
+
+        // Predicted at (130, 100) to (230, 150), padded by 50 and 32 pixels.
+        track(tracker, 200, 120, 100);
+        Rect expected = new Rect(80, 68, 280, 182);
+        assertTrue(window.getRegionOfInterest(region));
+        assertEquals(expected, region);
+        assertTrue(window.getRegionOfInterest(region));
+        assertEquals(expected, region);
+        // Every third frame is searched in full.
+        assertTrue(window.getRegionOfInterest(region));
+        assertEquals(VIEW_FINDER, region);
+        assertTrue(window.getRegionOfInterest(region));
+        assertEquals(expected, region);
+
+        // A missed barcode may be anywhere.
+        tracker.track(null, new Barcode[0], 0, 300);
+        assertTrue(window.getRegionOfInterest(region));
+        assertEquals(VIEW_FINDER, region);
+    }
+
+    private static void track(IouTracker tracker, long timestampMillis, int left, int top) {
+        Barcode barcode = new Barcode();
+        barcode.rawValue = "123";
+        barcode.cornerPoints = new Point[]{new Point(left, top), new Point(left + 100, top),
+                new Point(left + 100, top + 50), new Point(left, top + 50)};
+        tracker.track(null, new Barcode[]{barcode}, 1, timestampMillis);
+    }
+}
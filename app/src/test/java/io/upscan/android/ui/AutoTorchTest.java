@@ -0,0 +1,94 @@
+package io.upscan.android.ui;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests when the {@link AutoTorch} switches the torch.
+ */
+public class AutoTorchTest {
+
+    @Test
+    public void testSampleInterval() {
+        AutoTorch autoTorch = new AutoTorch();
+        for (int i = 0; i < 3 * AutoTorch.SAMPLE_INTERVAL_FRAMES; ++i) {
+            assertEquals(i % AutoTorch.SAMPLE_INTERVAL_FRAMES == 0, autoTorch.shouldSample());
+        }
+    }
+
+    @Test
+    public void testHysteresis() {
+        AutoTorch autoTorch = new AutoTorch();
+        long now = 1000;
+
+        // A dim scene, between the thresholds, leaves the torch off.
+        assertEquals(0, autoTorch.onLuma(100, 0, now));
+        assertEquals(0, autoTorch.onLuma(60, 0, now));
+
+        // The running mean has to fall below the threshold, so a single dark frame doesn't switch.
+        assertEquals(0, autoTorch.onLuma(0, 0, now));
+        assertEquals(0, autoTorch.onLuma(0, 0, now));
+        assertEquals(1, autoTorch.onLuma(0, 0, now));
+        assertTrue(autoTorch.isTorchOn());
+        assertEquals(-1, autoTorch.getMeanLuma(), 0);
+
+        // The auto exposure pulls the scene lit by the torch to a medium luma, which is taken as
+        // the level of the torch, and keeps it there as the light gets brighter.
+        now += AutoTorch.MIN_SWITCH_INTERVAL_MILLIS;
+        assertEquals(0, autoTorch.onLuma(120, 0, now));
+        assertEquals(120, autoTorch.getTorchBrightness(), 0);
+        assertEquals(0, autoTorch.onLuma(130, 0, now));
+        assertEquals(0, autoTorch.onLuma(110, 0, now));
+
+        // Light too bright for the exposure to make up for turns it back off.
+        assertEquals(0, autoTorch.onLuma(255, 0, now));
+        assertEquals(0, autoTorch.onLuma(255, 0, now));
+        assertEquals(-1, autoTorch.onLuma(255, 0, now));
+        assertFalse(autoTorch.isTorchOn());
+        assertEquals(2, autoTorch.getSwitches());
+        assertEquals(11, autoTorch.getSamples());
+    }
+
+    @Test
+    public void testSwitchesOffByExposure() {
+        AutoTorch autoTorch = new AutoTorch();
+        long now = 1000;
+        assertEquals(1, autoTorch.onLuma(0, 100, now));
+
+        // The luma stays the same as the light gets brighter, but the exposure drops.
+        now += AutoTorch.MIN_SWITCH_INTERVAL_MILLIS;
+        assertEquals(0, autoTorch.onLuma(120, 50, now));
+        assertEquals(0, autoTorch.onLuma(120, 40, now));
+        assertEquals(0, autoTorch.onLuma(120, 5, now));
+        assertEquals(-1, autoTorch.onLuma(120, 5, now));
+        assertFalse(autoTorch.isTorchOn());
+    }
+
+    @Test
+    public void testMinSwitchInterval() {
+        AutoTorch autoTorch = new AutoTorch();
+        long now = 1000;
+        assertEquals(1, autoTorch.onLuma(0, 0, now));
+
+        // Too soon after switching on, then the level of the torch is taken first.
+        assertEquals(0, autoTorch.onLuma(100, 0, now + AutoTorch.MIN_SWITCH_INTERVAL_MILLIS - 1));
+        now += AutoTorch.MIN_SWITCH_INTERVAL_MILLIS;
+        assertEquals(0, autoTorch.onLuma(100, 0, now));
+        assertEquals(0, autoTorch.onLuma(255, 0, now));
+        assertEquals(-1, autoTorch.onLuma(255, 0, now));
+    }
+
+    @Test
+    public void testReset() {
+        AutoTorch autoTorch = new AutoTorch();
+        autoTorch.reset(true);
+        assertTrue(autoTorch.isTorchOn());
+        assertEquals(0, autoTorch.onLuma(100, 0, 1000));
+        assertEquals(0, autoTorch.onLuma(255, 0, 1000));
+        assertEquals(-1, autoTorch.onLuma(255, 0, 1000));
+        assertEquals(1, autoTorch.getSwitches());
+    }
+}
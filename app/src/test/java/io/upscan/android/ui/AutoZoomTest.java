@@ -0,0 +1,87 @@
+package io.upscan.android.ui;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests when the {@link AutoZoom} steps in and back out.
+ */
+public class AutoZoomTest {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    @Test
+    public void testZoomInOnSmallItem() {
+        AutoZoom autoZoom = new AutoZoom();
+        long now = 1000;
+
+        // A barcode of 100x50 covers about 0.5% of the frame, and is zoomed in on at a limited
+        // rate.
+        assertEquals(1, trackedFrame(autoZoom, now, 100, 50));
+        assertEquals(0, trackedFrame(autoZoom, now + 100, 110, 55));
+        assertEquals(1, trackedFrame(autoZoom, now + AutoZoom.STEP_INTERVAL_MILLIS, 120, 60));
+        assertEquals(2, autoZoom.getSteps());
+
+        // Once it's read at a good size, the zoom is held and then goes back out all the way.
+        now += 2 * AutoZoom.STEP_INTERVAL_MILLIS;
+        assertEquals(0, trackedFrame(autoZoom, now, 400, 200));
+        assertEquals(0, trackedFrame(autoZoom, now + AutoZoom.READ_HOLD_MILLIS - 1, 400, 200));
+        assertEquals(-2, trackedFrame(autoZoom, now + AutoZoom.READ_HOLD_MILLIS, 400, 200));
+        assertEquals(0, autoZoom.getSteps());
+
+        // The next small barcode isn't zoomed in on until the cooldown has passed.
+        now += AutoZoom.READ_HOLD_MILLIS;
+        assertEquals(0, trackedFrame(autoZoom, now + 1, 100, 50));
+        assertEquals(1, trackedFrame(autoZoom, now + AutoZoom.COOLDOWN_MILLIS, 100, 50));
+        assertEquals(3, autoZoom.getZoomInSteps());
+        assertEquals(1, autoZoom.getZoomOuts());
+    }
+
+    @Test
+    public void testZoomInOnNearMisses() {
+        AutoZoom autoZoom = new AutoZoom();
+        long now = 1000;
+        for (int i = 1; i < AutoZoom.NEAR_MISS_RUN; ++i) {
+            autoZoom.onFrameDetected(WIDTH, HEIGHT, true);
+            assertEquals(0, autoZoom.update(now++));
+        }
+        autoZoom.onFrameDetected(WIDTH, HEIGHT, true);
+        assertEquals(1, autoZoom.update(now));
+
+        // A frame without structure breaks the run.
+        autoZoom.onFrameDetected(WIDTH, HEIGHT, false);
+        assertEquals(0, autoZoom.update(now + AutoZoom.STEP_INTERVAL_MILLIS));
+
+        // Nothing seen for a while, so the zoom goes back out.
+        autoZoom.onFrameDetected(WIDTH, HEIGHT, false);
+        assertEquals(-1, autoZoom.update(now + AutoZoom.IDLE_MILLIS));
+    }
+
+    @Test
+    public void testMaxSteps() {
+        AutoZoom autoZoom = new AutoZoom();
+        long now = 1000;
+        for (int i = 0; i < 2 * AutoZoom.MAX_STEPS; ++i) {
+            trackedFrame(autoZoom, now, 20, 10);
+            now += AutoZoom.STEP_INTERVAL_MILLIS;
+        }
+        assertEquals(AutoZoom.MAX_STEPS, autoZoom.getSteps());
+    }
+
+    @Test
+    public void testSteppedZoom() {
+        assertEquals(5, CameraSource.getSteppedZoom(0, 99, 1));
+        assertEquals(99, CameraSource.getSteppedZoom(95, 99, 1));
+        assertEquals(0, CameraSource.getSteppedZoom(10, 99, -8));
+        // Cameras with few zoom values still zoom by a value per step.
+        assertEquals(3, CameraSource.getSteppedZoom(0, 10, 3));
+    }
+
+    private static int trackedFrame(AutoZoom autoZoom, long now, int width, int height) {
+        autoZoom.onFrameDetected(WIDTH, HEIGHT, false);
+        autoZoom.onItemTracked(width, height);
+        return autoZoom.update(now);
+    }
+}
@@ -0,0 +1,75 @@
+package io.upscan.android.ui;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the frame selection and counters of the {@link BackpressurePolicy} modes.
+ */
+public class BackpressurePolicyTest {
+
+    @Test
+    public void testDecimation() {
+        BackpressurePolicy policy = BackpressurePolicy.decimation(3);
+        int accepted = 0;
+        for (int i = 0; i < 9; ++i) {
+            if (policy.accept()) {
+                assertEquals(0, i % 3);
+                accepted++;
+            }
+        }
+        assertEquals(3, accepted);
+        assertEquals(6, policy.getRecycledFrames());
+
+        policy.reset();
+        assertTrue(policy.accept());
+        assertEquals(0, policy.getRecycledFrames());
+    }
+
+    @Test
+    public void testBoundedQueueDropsNewest() {
+        BackpressurePolicy policy = BackpressurePolicy.boundedQueue(2);
+        assertFalse(policy.isLatestOnly(1));
+        assertEquals(2, policy.getPendingCapacity(1));
+
+        PreviewFrameRing queue = new PreviewFrameRing(policy.getPendingCapacity(1),
+                policy.dropsNewest());
+        PreviewFrame first = createFrame();
+        PreviewFrame second = createFrame();
+        PreviewFrame third = createFrame();
+        assertNull(queue.offer(first));
+        assertNull(queue.offer(second));
+        assertSame(third, queue.offer(third));
+        assertSame(first, queue.take());
+        assertSame(second, queue.take());
+    }
+
+    @Test
+    public void testLatestWinsDisplacesOldest() {
+        BackpressurePolicy policy = BackpressurePolicy.latestWins();
+        assertTrue(policy.isLatestOnly(1));
+        assertFalse(policy.isLatestOnly(2));
+
+        PreviewFrameRing ring = new PreviewFrameRing(policy.getPendingCapacity(2),
+                policy.dropsNewest());
+        PreviewFrame first = createFrame();
+        PreviewFrame second = createFrame();
+        PreviewFrame third = createFrame();
+        ring.offer(first);
+        ring.offer(second);
+        assertSame(first, ring.offer(third));
+        assertSame(second, ring.take());
+    }
+
+    private static PreviewFrame createFrame() {
+        byte[] data = new byte[16];
+        return new PreviewFrame(data, ByteBuffer.wrap(data));
+    }
+}
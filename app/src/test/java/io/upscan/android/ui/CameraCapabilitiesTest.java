@@ -0,0 +1,60 @@
+package io.upscan.android.ui;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the encoding of the cached {@link CameraCapabilities}.
+ */
+public class CameraCapabilitiesTest {
+
+    @Test
+    public void testEncodeDecode() {
+        CameraCapabilities capabilities = new CameraCapabilities(1024, 768, 30000, 1280, 720,
+                4160, 2340, new int[]{15000, 30000},
+                Arrays.asList(new int[]{7500, 30000}, new int[]{15000, 30000}),
+                Arrays.asList("auto", "continuous-picture"), null);
+        CameraCapabilities decoded = CameraCapabilities.decode(capabilities.encode());
+
+        assertTrue(decoded.matches(1024, 768, 30000));
+        assertFalse(decoded.matches(1024, 768, 15000));
+        assertEquals(1280, decoded.mPreviewWidth);
+        assertEquals(720, decoded.mPreviewHeight);
+        assertEquals(4160, decoded.mPictureWidth);
+        assertEquals(2340, decoded.mPictureHeight);
+        assertArrayEquals(new int[]{15000, 30000}, decoded.mPreviewFpsRange);
+        assertEquals(2, decoded.mSupportedFpsRanges.size());
+        assertArrayEquals(new int[]{7500, 30000}, decoded.mSupportedFpsRanges.get(0));
+        assertEquals(Arrays.asList("auto", "continuous-picture"), decoded.mSupportedFocusModes);
+        assertEquals(Collections.<String>emptyList(), decoded.mSupportedFlashModes);
+        assertEquals(capabilities.encode(), decoded.encode());
+    }
+
+    @Test
+    public void testWithoutPictureSize() {
+        CameraCapabilities capabilities = new CameraCapabilities(640, 480, 15000, 640, 480, 0, 0,
+                new int[]{15000, 15000}, Collections.singletonList(new int[]{15000, 15000}),
+                Collections.singletonList("fixed"), Arrays.asList("off", "torch"));
+        CameraCapabilities decoded = CameraCapabilities.decode(capabilities.encode());
+
+        assertEquals(0, decoded.mPictureWidth);
+        assertEquals(Arrays.asList("off", "torch"), decoded.mSupportedFlashModes);
+    }
+
+    @Test
+    public void testDecodeMalformed() {
+        assertNull(CameraCapabilities.decode(null));
+        assertNull(CameraCapabilities.decode(""));
+        assertNull(CameraCapabilities.decode("2;1024x768@30000;1280x720;;15000-30000;;;"));
+        assertNull(CameraCapabilities.decode("1;1024x768;1280x720;;15000-30000;;;"));
+        assertNull(CameraCapabilities.decode("1;1024x768@30000;1280xabc;;15000-30000;;;"));
+    }
+}
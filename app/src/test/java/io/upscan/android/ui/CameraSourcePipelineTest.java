@@ -0,0 +1,121 @@
+package io.upscan.android.ui;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.upscan.android.BuildConfig;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the frame processing pipeline of {@link CameraSource} on synthetic frames, without a
+ * camera.  The throughput benchmark is ignored in the unit tests; run by hand, it prints the
+ * frames per second delivered by one and two workers.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class CameraSourcePipelineTest {
+
+    private static final int FRAME_COUNT = 200;
+    private static final long DETECTION_NANOS = 2 * 1000000L;
+
+    @Ignore("Benchmark, which takes seconds; run it by hand.")
+    @Test
+    public void testPipelineThroughput() throws Exception {
+        for (int parallelism = 1; parallelism <= 2; ++parallelism) {
+            final CountDownLatch done = new CountDownLatch(FRAME_COUNT / 2);
+            final AtomicInteger delivered = new AtomicInteger();
+            Detector.Processor<Integer> processor = new Detector.Processor<Integer>() {
+                @Override
+                public void release() {
+                }
+
+                @Override
+                public void receiveDetections(Detector.Detections<Integer> detections) {
+                    delivered.incrementAndGet();
+                    done.countDown();
+                }
+            };
+
+            CameraSource cameraSource = new CameraSource.Builder(RuntimeEnvironment.application,
+                    new BusyDetector())
+                    .setFrameSource(new SyntheticFrameSource(640, 480, 0, FRAME_COUNT))
+                    .setProcessor(processor)
+                    .setDetectionParallelism(parallelism)
+                    .build();
+
+            long startNanos = System.nanoTime();
+            cameraSource.start();
+            boolean completed = done.await(10, TimeUnit.SECONDS);
+            long elapsedNanos = System.nanoTime() - startNanos;
+            cameraSource.release();
+
+            System.out.println(parallelism + " worker(s): " + delivered.get() + " frames, " +
+                    delivered.get() * TimeUnit.SECONDS.toNanos(1) / elapsedNanos + " fps");
+            assertTrue(parallelism + " worker(s) delivered " + delivered.get() + " frames",
+                    completed);
+        }
+    }
+
+    @Test
+    public void testAsyncStartStop() throws Exception {
+        final CountDownLatch detected = new CountDownLatch(1);
+        Detector.Processor<Integer> processor = new Detector.Processor<Integer>() {
+            @Override
+            public void release() {
+            }
+
+            @Override
+            public void receiveDetections(Detector.Detections<Integer> detections) {
+                detected.countDown();
+            }
+        };
+
+        CameraSource cameraSource = new CameraSource.Builder(RuntimeEnvironment.application,
+                new BusyDetector())
+                .setFrameSource(new SyntheticFrameSource(640, 480, 30, 0))
+                .setProcessor(processor)
+                .setWarmRestart(true)
+                .build();
+
+        // Restarts reuse the workers, and the asynchronous calls complete in order.
+        for (int i = 0; i < 2; ++i) {
+            cameraSource.startAsync(null);
+            cameraSource.stopAsync(null).get(5, TimeUnit.SECONDS);
+        }
+        assertSame(cameraSource, cameraSource.startAsync(null).get(5, TimeUnit.SECONDS));
+        assertTrue(detected.await(5, TimeUnit.SECONDS));
+        assertTrue(cameraSource.getStartToFirstDecodeMillis() >= 0);
+        cameraSource.releaseAsync(null).get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Detects a single item in every frame, taking a fixed time per frame.
+     */
+    private static class BusyDetector extends Detector<Integer> {
+        @Override
+        public SparseArray<Integer> detect(Frame frame) {
+            long busyUntil = System.nanoTime() + DETECTION_NANOS;
+            while (System.nanoTime() < busyUntil) {
+                // Simulated detection.
+            }
+            SparseArray<Integer> items = new SparseArray<>();
+            items.append(0, frame.getMetadata().getId());
+            return items;
+        }
+    }
+}
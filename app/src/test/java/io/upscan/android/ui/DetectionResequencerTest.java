@@ -0,0 +1,127 @@
+package io.upscan.android.ui;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that results from parallel detection workers are delivered in frame order.  The benchmark
+ * of how the detection throughput scales with the number of workers is ignored in the unit tests;
+ * run by hand, it prints the decoded frames per second for one to four workers.
+ */
+public class DetectionResequencerTest {
+
+    private static final long CAMERA_FRAME_NANOS = 1000000000L / 30;
+    private static final long DETECTION_NANOS = 60 * 1000000L;
+    private static final long BENCHMARK_NANOS = 1000 * 1000000L;
+
+    @Test
+    public void testOutOfOrderResultsAreDeliveredInOrder() throws Exception {
+        final List<Integer> delivered = new ArrayList<>();
+        DetectionResequencer<Integer> resequencer = new DetectionResequencer<>(4,
+                new DetectionResequencer.Sink<Integer>() {
+                    @Override
+                    public void deliver(Integer result) {
+                        delivered.add(result);
+                    }
+                });
+
+        resequencer.complete(2, 12);
+        resequencer.complete(1, null);
+        assertTrue(delivered.isEmpty());
+
+        resequencer.complete(0, 10);
+        resequencer.complete(3, 13);
+
+        assertEquals(3, delivered.size());
+        assertEquals(10, (int) delivered.get(0));
+        assertEquals(12, (int) delivered.get(1));
+        assertEquals(13, (int) delivered.get(2));
+    }
+
+    @Ignore("Benchmark, which takes seconds; run it by hand.")
+    @Test
+    public void testDetectionScaling() throws Exception {
+        float singleFps = 0;
+        for (int workers = 1; workers <= 4; ++workers) {
+            float fps = runWorkers(workers);
+            System.out.println(String.format(Locale.US,
+                    "%d worker(s): %.1f decoded frames per second", workers, fps));
+            if (workers == 1) {
+                singleFps = fps;
+            } else {
+                // A single worker keeps up with half of the camera rate at most, while two are
+                // enough for nearly all of it.
+                assertTrue(workers + " worker(s) at " + fps + " fps, 1 worker at " + singleFps,
+                        fps > 1.5f * singleFps);
+            }
+        }
+    }
+
+    /**
+     * Feeds a ring at camera rate to the given number of workers, whose detection takes
+     * {@link #DETECTION_NANOS} give or take a random 50%, and checks that the results arrive in
+     * increasing frame id order.
+     *
+     * @return the number of frames delivered per second
+     */
+    private static float runWorkers(int workers) throws Exception {
+        final PreviewFrameRing ring = new PreviewFrameRing(workers);
+        final List<Integer> delivered = new ArrayList<>();
+        final DetectionResequencer<Integer> resequencer = new DetectionResequencer<>(2 * workers,
+                new DetectionResequencer.Sink<Integer>() {
+                    @Override
+                    public void deliver(Integer frameId) {
+                        delivered.add(frameId);
+                    }
+                });
+
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; ++i) {
+            final Random random = new Random(i);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PreviewFrame frame;
+                    while ((frame = ring.take()) != null) {
+                        long work = DETECTION_NANOS / 2 + (long) (random.nextFloat() * DETECTION_NANOS);
+                        LockSupport.parkNanos(work);
+                        resequencer.complete(frame.mSequence, frame.mId);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        long start = System.nanoTime();
+        int frameId = 0;
+        while (System.nanoTime() - start < BENCHMARK_NANOS) {
+            byte[] data = new byte[1];
+            PreviewFrame frame = new PreviewFrame(data, ByteBuffer.wrap(data));
+            frame.mId = ++frameId;
+            ring.offer(frame);
+            LockSupport.parkNanos(CAMERA_FRAME_NANOS);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        ring.setActive(false);
+        resequencer.setActive(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 1; i < delivered.size(); ++i) {
+            assertTrue(delivered.get(i) > delivered.get(i - 1));
+        }
+        return delivered.size() * 1e9f / elapsed;
+    }
+}
@@ -0,0 +1,148 @@
+package io.upscan.android.ui;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link FrameRateGovernor} follows the detector, and idles when nothing is decoded.
+ */
+public class FrameRateGovernorTest {
+
+    private static final float MAX_FPS = 30.0f;
+    private static final float IDLE_FPS = 5.0f;
+    private static final long IDLE_TIMEOUT_MILLIS = 10000;
+
+    @Test
+    public void testSlowDetectorLowersTargetFps() {
+        FrameRateGovernor governor = new FrameRateGovernor(MAX_FPS, IDLE_FPS, IDLE_TIMEOUT_MILLIS, 1);
+
+        // A 30 fps camera in front of a 100ms detector, which would see every third frame if
+        // the frame rate weren't adapted.
+        int nextId = 0;
+        int pendingId = 0;
+        int processingId = 0;
+        long busyUntil = 0;
+        for (long now = 1; now < 20000; ++now) {
+            if ((now % 33 == 0) && governor.acceptFrame(now)) {
+                pendingId = ++nextId;
+            } else if (now % 33 == 0) {
+                ++nextId;
+            }
+            if ((processingId != 0) && (now >= busyUntil)) {
+                governor.onFrameProcessed(100.0f, true, now);
+                processingId = 0;
+            }
+            if ((processingId == 0) && (pendingId != 0)) {
+                governor.onFrameTaken(pendingId);
+                processingId = pendingId;
+                pendingId = 0;
+                busyUntil = now + 100;
+            }
+        }
+
+        float targetFps = governor.getTargetFps();
+        assertTrue("target " + targetFps, (targetFps >= IDLE_FPS) && (targetFps <= 10.0f));
+        assertTrue("drop rate " + governor.getDropRate(), governor.getDropRate() < 0.2f);
+        assertFalse(governor.isIdle());
+        assertEquals(targetFps, governor.takePreviewFpsChange(20000), 0.0f);
+        assertEquals(0.0f, governor.takePreviewFpsChange(20100), 0.0f);
+    }
+
+    @Test
+    public void testIdlesWithoutDecodesAndWakesOnDecode() {
+        FrameRateGovernor governor = new FrameRateGovernor(MAX_FPS, IDLE_FPS, IDLE_TIMEOUT_MILLIS, 1);
+
+        long now = 0;
+        int id = 0;
+        while (now <= IDLE_TIMEOUT_MILLIS) {
+            now += 40;
+            governor.onFrameTaken(++id);
+            governor.onFrameProcessed(10.0f, false, now);
+        }
+        assertTrue(governor.isIdle());
+        assertEquals(IDLE_FPS, governor.getTargetFps(), 0.0f);
+
+        governor.onFrameTaken(++id);
+        governor.onFrameProcessed(10.0f, true, now + 40);
+        assertFalse(governor.isIdle());
+        assertEquals(MAX_FPS, governor.getTargetFps(), 0.0f);
+    }
+
+    @Test
+    public void testSkippedFramesAreNotDrops() {
+        FrameRateGovernor governor = new FrameRateGovernor(MAX_FPS, IDLE_FPS, IDLE_TIMEOUT_MILLIS, 1);
+
+        // Every other frame is too blurry to detect.
+        long now = 0;
+        for (int id = 1; id <= 100; ++id) {
+            now += 33;
+            governor.onFrameTaken(id);
+            if (id % 2 != 0) {
+                governor.onFrameProcessed(10.0f, true, now);
+            }
+        }
+        assertEquals(0.0f, governor.getDropRate(), 0.0f);
+        assertEquals(MAX_FPS, governor.getTargetFps(), 0.0f);
+    }
+
+    @Test
+    public void testOutOfOrderCompletionIsNotDrops() {
+        FrameRateGovernor governor = new FrameRateGovernor(MAX_FPS, IDLE_FPS, IDLE_TIMEOUT_MILLIS, 2);
+
+        // Two workers take the frames in turn, and the second one always finishes first.
+        long now = 0;
+        for (int id = 1; id <= 100; id += 2) {
+            now += 66;
+            governor.onFrameTaken(id);
+            governor.onFrameTaken(id + 1);
+            governor.onFrameProcessed(20.0f, true, now);
+            governor.onFrameProcessed(40.0f, true, now);
+        }
+        assertEquals(0.0f, governor.getDropRate(), 0.0f);
+        assertEquals(MAX_FPS, governor.getTargetFps(), 0.0f);
+    }
+
+    @Test
+    public void testDecimatedFramesAreNotDrops() {
+        FrameRateGovernor governor = new FrameRateGovernor(MAX_FPS, IDLE_FPS, IDLE_TIMEOUT_MILLIS, 1);
+        BackpressurePolicy policy = BackpressurePolicy.decimation(2);
+
+        // A 30 fps camera and a fast detector, which sees every other frame by design.
+        long now = 0;
+        for (int id = 1; id <= 300; ++id) {
+            now += 33;
+            if (!governor.acceptFrame(now)) {
+                continue;
+            }
+            if (!policy.accept()) {
+                governor.onFrameSkipped();
+                continue;
+            }
+            governor.onFrameTaken(id);
+            governor.onFrameProcessed(10.0f, true, now);
+        }
+        assertEquals(150, policy.getRecycledFrames());
+        assertEquals(0.0f, governor.getDropRate(), 0.0f);
+        assertEquals(MAX_FPS, governor.getTargetFps(), 0.0f);
+    }
+
+    @Test
+    public void testAcceptFrameDecimatesToTargetFps() {
+        FrameRateGovernor governor = new FrameRateGovernor(MAX_FPS, IDLE_FPS, 0, 1);
+        governor.onFrameTaken(1);
+        governor.onFrameProcessed(10.0f, false, 1);
+        assertEquals(IDLE_FPS, governor.getTargetFps(), 0.0f);
+
+        // One second of frames from a 30 fps camera.
+        int accepted = 0;
+        for (long now = 1000; now < 2000; now += 33) {
+            if (governor.acceptFrame(now)) {
+                accepted++;
+            }
+        }
+        assertEquals(5, accepted, 1);
+    }
+}
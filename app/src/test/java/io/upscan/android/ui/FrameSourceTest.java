@@ -0,0 +1,150 @@
+package io.upscan.android.ui;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.upscan.android.util.Nv21Utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the frame sources which don't need a camera.
+ */
+public class FrameSourceTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testSyntheticFramesAreRecycled() throws Exception {
+        final SyntheticFrameSource source = new SyntheticFrameSource(64, 48, 0, 100);
+        final CountDownLatch done = new CountDownLatch(100);
+        final List<Integer> ids = new ArrayList<>();
+
+        source.start(new FrameSource.Callback() {
+            @Override
+            public void onFrame(byte[] data, int id, long timestampMillis, int width, int height,
+                                int rotation) {
+                assertEquals(64, width);
+                assertEquals(48, height);
+                ids.add(id);
+                source.recycle(data);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        source.stop();
+
+        // Every buffer was handed back right away, so no frame was dropped.
+        assertEquals(100, ids.size());
+        assertEquals(100, (int) ids.get(99));
+        assertEquals(0, source.getDroppedFrames());
+    }
+
+    @Test
+    public void testReplayDeliversRecordedFrames() throws Exception {
+        File file = mFolder.newFile("capture.bin");
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(file));
+        output.writeInt(CaptureFormat.MAGIC);
+        output.writeInt(CaptureFormat.VERSION);
+        for (int i = 0; i < 3; ++i) {
+            byte[] data = new byte[Nv21Utils.getImageSize(8, 6)];
+            data[0] = (byte) i;
+            output.writeInt(8);
+            output.writeInt(6);
+            output.writeInt(1);
+            output.writeLong(1000 + 10 * i);
+            output.writeInt(data.length);
+            output.write(data);
+        }
+        output.close();
+
+        final ReplayFrameSource source = new ReplayFrameSource(file);
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<String> frames = new ArrayList<>();
+        source.start(new FrameSource.Callback() {
+            @Override
+            public void onFrame(byte[] data, int id, long timestampMillis, int width, int height,
+                                int rotation) {
+                frames.add(id + ":" + timestampMillis + ":" + width + "x" + height + ":" +
+                        rotation + ":" + data[0]);
+                source.recycle(data);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        source.stop();
+
+        assertEquals("[1:1000:8x6:1:0, 2:1010:8x6:1:1, 3:1020:8x6:1:2]", frames.toString());
+    }
+
+    @Test
+    public void testEan13Encoding() throws Exception {
+        // Guards, the left half in LGLLGG parity for the leading 4, and the right half.
+        String expected = "101" + "0001101" + "0100111" + "0101111" + "0111101" + "0001001" +
+                "0110011" + "01010" + "1000010" + "1000010" + "1000010" + "1110100" +
+                "1000010" + "1100110" + "101";
+        StringBuilder modules = new StringBuilder();
+        for (boolean bar : SyntheticFrameSource.encodeEan13("4006381333931")) {
+            modules.append(bar ? '1' : '0');
+        }
+        assertEquals(expected, modules.toString());
+
+        try {
+            SyntheticFrameSource.encodeEan13("4006381333932");
+            fail("Invalid check digit accepted.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testRecordAndReplayAsFastAsPossible() throws Exception {
+        File file = mFolder.newFile("recording.bin");
+        CaptureRecorder recorder = new CaptureRecorder(file, 2);
+        recorder.start();
+        for (int i = 0; i < 50; ++i) {
+            byte[] data = new byte[Nv21Utils.getImageSize(320, 240)];
+            data[data.length - 1] = (byte) i;
+            // Frames delivered faster than they are written may be dropped from the recording.
+            while (!recorder.record(data, 320, 240, 3, 1000L * i)) {
+                Thread.sleep(1);
+            }
+        }
+        recorder.stop();
+        assertEquals(50, recorder.getRecordedFrames());
+        assertEquals(CaptureFormat.FILE_HEADER_SIZE +
+                50 * (CaptureFormat.FRAME_HEADER_SIZE + Nv21Utils.getImageSize(320, 240)),
+                file.length());
+
+        // The recording spans 49 seconds, but is replayed without pacing.
+        final ReplayFrameSource source = new ReplayFrameSource(file, false);
+        final CountDownLatch done = new CountDownLatch(50);
+        final List<Integer> lastBytes = new ArrayList<>();
+        source.start(new FrameSource.Callback() {
+            @Override
+            public void onFrame(byte[] data, int id, long timestampMillis, int width, int height,
+                                int rotation) {
+                lastBytes.add((int) data[Nv21Utils.getImageSize(width, height) - 1]);
+                source.recycle(data);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        source.stop();
+
+        assertEquals(50, lastBytes.size());
+        assertEquals(49, (int) lastBytes.get(49));
+    }
+}
@@ -0,0 +1,238 @@
+package io.upscan.android.ui;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the frame handoff semantics of {@link LatestFrameSlot}.  The benchmark against the monitor
+ * based handoff that it replaced is ignored in the unit tests; run by hand, it prints the results
+ * of both handoffs at 30 and 60 fps.
+ */
+public class LatestFrameSlotTest {
+
+    private static final long FRAME_WORK_NANOS = 20 * 1000000L;
+    private static final long BENCHMARK_NANOS = 1000 * 1000000L;
+    private static final long WARMUP_NANOS = 300 * 1000000L;
+
+    @Test
+    public void testLatestFrameWins() throws Exception {
+        LatestFrameSlot<String> slot = new LatestFrameSlot<>();
+
+        assertNull(slot.offer("first"));
+        assertSame("first", slot.offer("second"));
+        assertSame("second", slot.take());
+        assertNull(slot.poll());
+    }
+
+    @Test
+    public void testInactiveSlotReleasesConsumer() throws Exception {
+        final LatestFrameSlot<String> slot = new LatestFrameSlot<>();
+        final AtomicReference<String> taken = new AtomicReference<>("not taken");
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken.set(slot.take());
+            }
+        });
+        consumer.start();
+
+        // Give the consumer time to park on the empty slot.
+        Thread.sleep(50);
+        slot.setActive(false);
+        consumer.join(1000);
+
+        assertEquals(Thread.State.TERMINATED, consumer.getState());
+        assertNull(taken.get());
+    }
+
+    @Ignore("Benchmark, which takes seconds; run it by hand.")
+    @Test
+    public void testHandoffBenchmark() throws Exception {
+        // Warm up both implementations so that the measured runs aren't dominated by the JIT.
+        runBenchmark(new MonitorHandoff(), 60, WARMUP_NANOS);
+        runBenchmark(new LockFreeHandoff(), 60, WARMUP_NANOS);
+
+        for (int fps : new int[]{30, 60}) {
+            Result monitor = runBenchmark(new MonitorHandoff(), fps, BENCHMARK_NANOS);
+            Result lockFree = runBenchmark(new LockFreeHandoff(), fps, BENCHMARK_NANOS);
+            System.out.println(fps + " fps, monitor:   " + monitor);
+            System.out.println(fps + " fps, lock-free: " + lockFree);
+
+            // Every frame is either processed or recycled by the producer, never lost.
+            assertEquals(monitor.toString(), monitor.mProduced,
+                    monitor.mProcessed + monitor.mRecycled);
+            assertEquals(lockFree.toString(), lockFree.mProduced,
+                    lockFree.mProcessed + lockFree.mRecycled);
+        }
+    }
+
+    /**
+     * Simulates a camera producing frames at the given rate and a detector which takes
+     * {@link #FRAME_WORK_NANOS} per frame, for the given duration.
+     */
+    private static Result runBenchmark(final Handoff handoff, int fps, long durationNanos)
+            throws Exception {
+        final Result result = new Result();
+        final long frameIntervalNanos = 1000000000L / fps;
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    long[] frame = handoff.take();
+                    if (frame == null) {
+                        return;
+                    }
+                    result.mLatencyNanos += System.nanoTime() - frame[0];
+                    result.mProcessed++;
+
+                    long busyUntil = System.nanoTime() + FRAME_WORK_NANOS;
+                    while (System.nanoTime() < busyUntil) {
+                        // Simulated detection.
+                    }
+                }
+            }
+        });
+        consumer.start();
+
+        long start = System.nanoTime();
+        long nextFrame = start;
+        while (nextFrame - start < durationNanos) {
+            LockSupport.parkNanos(nextFrame - System.nanoTime());
+
+            long offerStart = System.nanoTime();
+            long[] displaced = handoff.offer(new long[]{offerStart});
+            result.mOfferNanos += System.nanoTime() - offerStart;
+            result.mProduced++;
+            if (displaced != null) {
+                result.mRecycled++;
+            }
+            nextFrame += frameIntervalNanos;
+        }
+
+        // Let the consumer finish the frame it is working on, then account for the pending one.
+        Thread.sleep(2 * FRAME_WORK_NANOS / 1000000L);
+        handoff.setActive(false);
+        consumer.join();
+        if (handoff.poll() != null) {
+            result.mRecycled++;
+        }
+        return result;
+    }
+
+    private static class Result {
+        int mProduced;
+        int mProcessed;
+        int mRecycled;
+        long mOfferNanos;
+        long mLatencyNanos;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "produced=%d processed=%d recycled=%d offer=%dns handoff latency=%dus",
+                    mProduced, mProcessed, mRecycled,
+                    mOfferNanos / Math.max(1, mProduced),
+                    mLatencyNanos / Math.max(1, mProcessed) / 1000);
+        }
+    }
+
+    private interface Handoff {
+        long[] offer(long[] frame);
+
+        long[] take();
+
+        long[] poll();
+
+        void setActive(boolean active);
+    }
+
+    private static class LockFreeHandoff implements Handoff {
+        private final LatestFrameSlot<long[]> mSlot = new LatestFrameSlot<>();
+
+        @Override
+        public long[] offer(long[] frame) {
+            return mSlot.offer(frame);
+        }
+
+        @Override
+        public long[] take() {
+            return mSlot.take();
+        }
+
+        @Override
+        public long[] poll() {
+            return mSlot.poll();
+        }
+
+        @Override
+        public void setActive(boolean active) {
+            mSlot.setActive(active);
+        }
+    }
+
+    /**
+     * The handoff previously used by the frame processing runnable: a single pending frame guarded
+     * by a monitor, with {@code wait()/notifyAll()} for wakeups.
+     */
+    private static class MonitorHandoff implements Handoff {
+        private final Object mLock = new Object();
+        private boolean mActive = true;
+        private long[] mPending;
+
+        @Override
+        public long[] offer(long[] frame) {
+            synchronized (mLock) {
+                long[] displaced = mPending;
+                mPending = frame;
+                mLock.notifyAll();
+                return displaced;
+            }
+        }
+
+        @Override
+        public long[] take() {
+            synchronized (mLock) {
+                while (mActive && (mPending == null)) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+                if (!mActive) {
+                    return null;
+                }
+                long[] frame = mPending;
+                mPending = null;
+                return frame;
+            }
+        }
+
+        @Override
+        public long[] poll() {
+            synchronized (mLock) {
+                long[] frame = mPending;
+                mPending = null;
+                return frame;
+            }
+        }
+
+        @Override
+        public void setActive(boolean active) {
+            synchronized (mLock) {
+                mActive = active;
+                mLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.upscan.android.ui;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import io.upscan.android.BuildConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the buffer bookkeeping of {@link PreviewBufferPool}.  Runs with Robolectric, since the
+ * buffer size comes from {@link android.graphics.ImageFormat}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class PreviewBufferPoolTest {
+
+    // Size of an NV21 buffer of 640x480, at 12 bits per pixel, plus one byte.
+    private static final int VGA_BUFFER_SIZE = 640 * 480 * 3 / 2 + 1;
+
+    @Test
+    public void testEnsureReusesBuffers() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        assertFalse(pool.ensure(640, 480, 3));
+        PreviewFrame[] frames = {pool.get(0), pool.get(1), pool.get(2)};
+
+        assertTrue(pool.ensure(640, 480, 3));
+        assertEquals(3, pool.size());
+        for (int i = 0; i < frames.length; ++i) {
+            assertSame(frames[i], pool.get(i));
+            assertEquals(VGA_BUFFER_SIZE, frames[i].mData.length);
+        }
+        assertEquals(3L * VGA_BUFFER_SIZE, pool.getFootprintBytes());
+    }
+
+    @Test
+    public void testEnsureReallocatesOnNewSize() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        pool.ensure(640, 480, 3);
+        PreviewFrame frame = pool.get(0);
+
+        assertFalse(pool.ensure(320, 240, 3));
+        assertEquals(3, pool.size());
+        assertNotSame(frame, pool.get(0));
+        assertEquals(320 * 240 * 3 / 2 + 1, pool.get(0).mData.length);
+        assertEquals(3L * (320 * 240 * 3 / 2 + 1), pool.getFootprintBytes());
+        assertNull(pool.find(frame.mData));
+
+        assertFalse(pool.ensure(320, 240, 2));
+        assertEquals(2, pool.size());
+
+        pool.clear();
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.getFootprintBytes());
+    }
+
+    @Test
+    public void testFindMatchesBuffersByIdentity() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        pool.ensure(640, 480, 3);
+
+        // The camera hands the buffers back in order, and out of order after a drop.
+        for (int i : new int[]{0, 1, 2, 0, 2, 1}) {
+            assertSame(pool.get(i), pool.find(pool.get(i).mData));
+        }
+        assertNull(pool.find(new byte[VGA_BUFFER_SIZE]));
+    }
+
+    @Test
+    public void testAdoptReplacesReallocatedBuffers() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        byte[][] buffers = {new byte[100], new byte[100], new byte[100]};
+        for (int round = 0; round < 3; ++round) {
+            for (byte[] buffer : buffers) {
+                assertSame(buffer, pool.adopt(buffer).mData);
+            }
+        }
+        byte[] stale = buffers[1];
+        assertSame(pool.adopt(stale), pool.adopt(stale));
+        assertEquals(3, pool.size());
+        assertEquals(300, pool.getFootprintBytes());
+
+        // Larger frames, for which the source reallocates its buffers one by one.
+        for (int i = 0; i < buffers.length; ++i) {
+            buffers[i] = new byte[200];
+            pool.adopt(buffers[i]);
+            assertEquals(3, pool.size());
+        }
+        assertEquals(600, pool.getFootprintBytes());
+        assertNull(pool.find(stale));
+    }
+
+    @Test
+    public void testAdoptIsBounded() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        for (int i = 0; i < 2 * PreviewBufferPool.MAX_ADOPTED_BUFFERS; ++i) {
+            pool.adopt(new byte[100]);
+        }
+        assertEquals(PreviewBufferPool.MAX_ADOPTED_BUFFERS, pool.size());
+        assertEquals(100 * PreviewBufferPool.MAX_ADOPTED_BUFFERS, pool.getFootprintBytes());
+    }
+}
@@ -0,0 +1,76 @@
+package io.upscan.android.ui;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the candidate selection and the benchmark of the {@link PreviewSizeTuner}.
+ */
+public class PreviewSizeTunerTest {
+
+    /**
+     * Takes 10ms per 100k pixels, counting the runs.
+     */
+    private static class FakeBenchmark implements PreviewSizeTuner.Benchmark {
+        int mRuns;
+
+        @Override
+        public long detectNanos(int width, int height) {
+            mRuns++;
+            return (long) width * height * 100;
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    @Test
+    public void testSelectCandidates() {
+        List<int[]> sizes = Arrays.asList(new int[]{320, 240}, new int[]{1920, 1080},
+                new int[]{640, 480}, new int[]{1280, 720}, new int[]{800, 600},
+                new int[]{1024, 768}, new int[]{1600, 1200}, new int[]{1280, 720},
+                new int[]{1440, 1080});
+        List<int[]> candidates = PreviewSizeTuner.selectCandidates(sizes, 1600, 1200);
+
+        // 1920x1080 is larger than the maximum, 320x240 too small, and 1280x720 listed twice.
+        assertEquals(PreviewSizeTuner.MAX_CANDIDATES, candidates.size());
+        assertArrayEquals(new int[]{1600, 1200}, candidates.get(0));
+        assertArrayEquals(new int[]{1440, 1080}, candidates.get(1));
+        assertArrayEquals(new int[]{1024, 768}, candidates.get(2));
+        assertArrayEquals(new int[]{640, 480}, candidates.get(3));
+    }
+
+    @Test
+    public void testSelectCandidatesFallback() {
+        List<int[]> small = Arrays.asList(new int[]{320, 240}, new int[]{176, 144});
+        assertArrayEquals(new int[]{320, 240},
+                PreviewSizeTuner.selectCandidates(small, 1600, 1200).get(0));
+
+        List<int[]> large = Arrays.asList(new int[]{3840, 2160}, new int[]{1920, 1080});
+        List<int[]> candidates = PreviewSizeTuner.selectCandidates(large, 1024, 768);
+        assertEquals(1, candidates.size());
+        assertArrayEquals(new int[]{1920, 1080}, candidates.get(0));
+    }
+
+    @Test
+    public void testBenchmark() {
+        List<int[]> candidates = Arrays.asList(new int[]{1600, 1200}, new int[]{1280, 720},
+                new int[]{800, 600}, new int[]{640, 480});
+
+        // 1280x720 takes 92ms, the largest below 100ms.
+        FakeBenchmark benchmark = new FakeBenchmark();
+        assertArrayEquals(new int[]{1280, 720},
+                new PreviewSizeTuner(null, 10.0f, benchmark).benchmark(candidates));
+        assertEquals(8, benchmark.mRuns);
+
+        // None meets the target, so the smallest is picked.
+        assertArrayEquals(new int[]{640, 480},
+                new PreviewSizeTuner(null, 100.0f, new FakeBenchmark()).benchmark(candidates));
+    }
+}
@@ -0,0 +1,84 @@
+package io.upscan.android.ui;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import io.upscan.android.util.Nv21Utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link SceneChangeGate} only reuses results of still, decoded scenes.
+ */
+public class SceneChangeGateTest {
+
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 160;
+
+    @Test
+    public void testReusesResultsUntilSceneChanges() {
+        byte[] image = new byte[Nv21Utils.getImageSize(WIDTH, HEIGHT)];
+        Arrays.fill(image, 0, WIDTH * HEIGHT, (byte) 100);
+        int[] signature = getSignature(image);
+
+        SceneChangeGate gate = new SceneChangeGate();
+        assertFalse(gate.isUnchanged(signature, 0, 0, WIDTH, HEIGHT));
+
+        // Nothing decoded yet, so there is nothing to reuse.
+        gate.update(signature, 0, 0, WIDTH, HEIGHT, false);
+        assertFalse(gate.isUnchanged(signature, 0, 0, WIDTH, HEIGHT));
+
+        gate.update(signature, 0, 0, WIDTH, HEIGHT, true);
+        assertTrue(gate.isUnchanged(signature, 0, 0, WIDTH, HEIGHT));
+
+        // Sensor noise doesn't count as a change.
+        image[WIDTH * 50 + 50] = (byte) 110;
+        assertTrue(gate.isUnchanged(getSignature(image), 0, 0, WIDTH, HEIGHT));
+
+        // An object moving into a small part of the frame does.
+        for (int y = 20; y < 30; ++y) {
+            Arrays.fill(image, y * WIDTH + 20, y * WIDTH + 30, (byte) 0);
+        }
+        assertFalse(gate.isUnchanged(getSignature(image), 0, 0, WIDTH, HEIGHT));
+        assertFalse(gate.isUnchanged(signature, 0, 0, WIDTH, HEIGHT / 2));
+
+        assertEquals(2, gate.getReusedFrames());
+        assertEquals(6, gate.getEvaluatedFrames());
+    }
+
+    @Test
+    public void testMovedCropIsSceneChange() {
+        int[] signature = new int[SceneChangeGate.SIGNATURE_COLUMNS * SceneChangeGate.SIGNATURE_ROWS];
+        SceneChangeGate gate = new SceneChangeGate();
+        gate.update(signature, 40, 20, WIDTH, HEIGHT, true);
+        assertTrue(gate.isUnchanged(signature, 40, 20, WIDTH, HEIGHT));
+
+        // A crop following a barcode looks the same, but the last results are off by the move.
+        assertFalse(gate.isUnchanged(signature, 48, 20, WIDTH, HEIGHT));
+        assertFalse(gate.isUnchanged(signature, 40, 16, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void testDetectsAgainAfterMaximumReuses() {
+        int[] signature = new int[SceneChangeGate.SIGNATURE_COLUMNS * SceneChangeGate.SIGNATURE_ROWS];
+        SceneChangeGate gate = new SceneChangeGate();
+        gate.update(signature, 0, 0, WIDTH, HEIGHT, true);
+
+        int reused = 0;
+        while (gate.isUnchanged(signature, 0, 0, WIDTH, HEIGHT)) {
+            reused++;
+        }
+        assertTrue(reused > 1);
+        assertTrue(reused < 100);
+    }
+
+    private static int[] getSignature(byte[] image) {
+        int[] signature = new int[SceneChangeGate.SIGNATURE_COLUMNS * SceneChangeGate.SIGNATURE_ROWS];
+        Nv21Utils.getLumaSignature(image, WIDTH, HEIGHT, SceneChangeGate.SIGNATURE_COLUMNS,
+                SceneChangeGate.SIGNATURE_ROWS, 2, signature);
+        return signature;
+    }
+}
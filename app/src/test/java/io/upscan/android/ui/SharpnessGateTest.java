@@ -0,0 +1,77 @@
+package io.upscan.android.ui;
+
+import org.junit.Test;
+
+import io.upscan.android.util.Nv21Utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link SharpnessGate} skips blurred frames relative to recent sharp ones.
+ */
+public class SharpnessGateTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    @Test
+    public void testSkipsBlurredFrames() {
+        float sharp = Nv21Utils.getLaplacianVariance(createBars(0), WIDTH, HEIGHT, 4);
+        float blurred = Nv21Utils.getLaplacianVariance(createBars(4), WIDTH, HEIGHT, 4);
+        assertTrue(sharp > 10 * blurred);
+
+        SharpnessGate gate = new SharpnessGate();
+        assertTrue(gate.accept(sharp));
+        assertFalse(gate.accept(blurred));
+        assertTrue(gate.accept(sharp));
+        assertEquals(1, gate.getSkippedFrames());
+        assertEquals(3, gate.getEvaluatedFrames());
+
+        long total = 0;
+        for (long count : gate.getHistogram()) {
+            total += count;
+        }
+        assertEquals(3, total);
+    }
+
+    @Test
+    public void testDoesNotStarveSoftScenes() {
+        SharpnessGate gate = new SharpnessGate();
+        gate.accept(10000.0f);
+
+        // A soft scene following a sharp one is let through now and then, and all of it once the
+        // peak has decayed.
+        int accepted = 0;
+        for (int i = 0; i < 100; ++i) {
+            if (gate.accept(100.0f)) {
+                accepted++;
+            }
+        }
+        assertTrue(accepted >= 10);
+        for (int i = 0; i < 100; ++i) {
+            gate.accept(100.0f);
+        }
+        assertTrue(gate.accept(100.0f));
+        assertTrue(gate.getSkipRate() < 0.8f);
+    }
+
+    /**
+     * Creates an image of vertical bars, horizontally box blurred over the given radius.
+     */
+    private static byte[] createBars(int blurRadius) {
+        byte[] data = new byte[Nv21Utils.getImageSize(WIDTH, HEIGHT)];
+        for (int x = 0; x < WIDTH; ++x) {
+            int sum = 0;
+            for (int i = x - blurRadius; i <= x + blurRadius; ++i) {
+                sum += ((i + 64) / 8 % 2 == 0) ? 0 : 200;
+            }
+            byte value = (byte) (sum / (2 * blurRadius + 1));
+            for (int y = 0; y < HEIGHT; ++y) {
+                data[y * WIDTH + x] = value;
+            }
+        }
+        return data;
+    }
+}
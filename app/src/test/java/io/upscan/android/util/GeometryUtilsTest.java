@@ -2,6 +2,7 @@ package io.upscan.android.util;
 
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.graphics.Rect;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -10,6 +11,7 @@ import org.robolectric.annotation.Config;
 
 import io.upscan.android.BuildConfig;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -42,4 +44,39 @@ public class GeometryUtilsTest {
                 new Point(250, 250)));
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRotateRect() throws Exception {
+        // A 40x30 sensor image, rotated 90 degrees clockwise into a 30x40 upright image.
+        Rect sensor = new Rect(4, 2, 10, 8);
+        Rect upright = new Rect();
+
+        GeometryUtils.sensorToUpright(sensor, 1, 40, 30, upright);
+        assertEquals(new Rect(22, 4, 28, 10), upright);
+
+        for (int rotation = 0; rotation < 4; ++rotation) {
+            Rect roundTrip = new Rect();
+            GeometryUtils.sensorToUpright(sensor, rotation, 40, 30, upright);
+            GeometryUtils.uprightToSensor(upright, rotation, 40, 30, roundTrip);
+            assertEquals(sensor, roundTrip);
+        }
+    }
+
+    @Test
+    public void testSensorToCameraArea() throws Exception {
+        Rect area = new Rect();
+
+        GeometryUtils.sensorToCameraArea(new Rect(0, 0, 1280, 720), 1280, 720, area);
+        assertEquals(new Rect(-1000, -1000, 1000, 1000), area);
+
+        // The center quarter of the frame.
+        GeometryUtils.sensorToCameraArea(new Rect(320, 180, 960, 540), 1280, 720, area);
+        assertEquals(new Rect(-500, -500, 500, 500), area);
+
+        // Clipped to the field of view, and never empty.
+        GeometryUtils.sensorToCameraArea(new Rect(-100, 700, 1400, 700), 1280, 720, area);
+        assertEquals(new Rect(-1000, 944, 1000, 945), area);
+        GeometryUtils.sensorToCameraArea(new Rect(1300, 0, 1400, 10), 1280, 720, area);
+        assertEquals(new Rect(999, -1000, 1000, -973), area);
+    }
+}
@@ -0,0 +1,183 @@
+package io.upscan.android.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+public class Nv21UtilsTest {
+
+    @Test
+    public void testGetImageSize() throws Exception {
+        assertEquals(1600 * 1200 * 3 / 2, Nv21Utils.getImageSize(1600, 1200));
+        assertEquals(9 + 2 * 2 * 2, Nv21Utils.getImageSize(3, 3));
+    }
+
+    @Test
+    public void testCrop() throws Exception {
+        final int width = 8;
+        final int height = 6;
+        byte[] src = new byte[Nv21Utils.getImageSize(width, height)];
+        for (int i = 0; i < src.length; ++i) {
+            src[i] = (byte) i;
+        }
+
+        byte[] dst = new byte[Nv21Utils.getImageSize(4, 2)];
+        Nv21Utils.crop(src, width, height, 2, 2, 4, 2, dst);
+
+        // Luma rows 2 and 3, columns 2 to 5.
+        assertEquals(18, dst[0]);
+        assertEquals(21, dst[3]);
+        assertEquals(26, dst[4]);
+        assertEquals(29, dst[7]);
+
+        // Chroma row 1 (covering luma rows 2 and 3), bytes 2 to 5.
+        assertEquals(width * height + width + 2, dst[8]);
+        assertEquals(width * height + width + 5, dst[11]);
+    }
+
+    @Test
+    public void testDownsample() throws Exception {
+        final int width = 8;
+        final int height = 4;
+        byte[] src = new byte[Nv21Utils.getImageSize(width, height)];
+        for (int i = 0; i < width * height; ++i) {
+            src[i] = (byte) (10 * (i % width) + 40 * (i / width));
+        }
+        for (int i = width * height; i < src.length; ++i) {
+            src[i] = (byte) i;
+        }
+
+        assertEquals(4, Nv21Utils.getDownsampledSize(width));
+        assertEquals(2, Nv21Utils.getDownsampledSize(height));
+        byte[] dst = new byte[Nv21Utils.getImageSize(4, 2)];
+        Nv21Utils.downsample(src, width, height, dst);
+
+        // Luma is the average of each 2x2 block.
+        assertEquals(25, dst[0]);
+        assertEquals(45, dst[1]);
+        assertEquals(85, dst[3]);
+        assertEquals(105, dst[4]);
+
+        // Every other V/U pair of the first chroma row.
+        assertEquals(width * height, dst[8]);
+        assertEquals(width * height + 1, dst[9]);
+        assertEquals(width * height + 4, dst[10]);
+        assertEquals(width * height + 5, dst[11]);
+    }
+
+    @Test
+    public void testFromYuv420() throws Exception {
+        final int width = 4;
+        final int height = 4;
+        byte[] expected = new byte[Nv21Utils.getImageSize(width, height)];
+        for (int i = 0; i < width * height; ++i) {
+            expected[i] = (byte) i;
+        }
+        for (int row = 0; row < height / 2; ++row) {
+            for (int column = 0; column < width / 2; ++column) {
+                int offset = width * height + row * width + 2 * column;
+                expected[offset] = (byte) (100 + 10 * row + column);
+                expected[offset + 1] = (byte) (200 + 10 * row + column);
+            }
+        }
+
+        // Planar chroma with padded rows.
+        byte[] y = new byte[(height - 1) * 6 + width];
+        for (int i = 0; i < width * height; ++i) {
+            y[(i / width) * 6 + i % width] = (byte) i;
+        }
+        byte[] u = new byte[3 + 2];
+        byte[] v = new byte[3 + 2];
+        for (int row = 0; row < height / 2; ++row) {
+            for (int column = 0; column < width / 2; ++column) {
+                v[row * 3 + column] = (byte) (100 + 10 * row + column);
+                u[row * 3 + column] = (byte) (200 + 10 * row + column);
+            }
+        }
+        byte[] dst = new byte[expected.length];
+        Nv21Utils.fromYuv420(ByteBuffer.wrap(y), 6, ByteBuffer.wrap(u), ByteBuffer.wrap(v), 3, 1,
+                false, width, height, dst);
+        assertArrayEquals(expected, dst);
+
+        // Interleaved V/U chroma, with padded and with tightly packed rows.
+        for (int rowStride = 6; rowStride >= width; rowStride -= 2) {
+            byte[] vu = new byte[rowStride + width];
+            for (int row = 0; row < height / 2; ++row) {
+                for (int column = 0; column < width / 2; ++column) {
+                    vu[row * rowStride + 2 * column] = (byte) (100 + 10 * row + column);
+                    vu[row * rowStride + 2 * column + 1] = (byte) (200 + 10 * row + column);
+                }
+            }
+            // Read only, since the planes of a camera image mustn't be written to.
+            ByteBuffer vPlane = ByteBuffer.wrap(vu, 0, vu.length - 1).slice().asReadOnlyBuffer();
+            ByteBuffer uPlane = ByteBuffer.wrap(vu, 1, vu.length - 1).slice().asReadOnlyBuffer();
+            assertEquals(Nv21Utils.CHROMA_LAYOUT_INTERLEAVED_VU,
+                    Nv21Utils.getChromaLayout(uPlane, vPlane, rowStride, 2, width, height));
+            for (boolean interleaved : new boolean[] {true, false}) {
+                dst = new byte[expected.length];
+                Nv21Utils.fromYuv420(ByteBuffer.wrap(expected, 0, width * height).slice(), width,
+                        uPlane, vPlane, rowStride, 2, interleaved, width, height, dst);
+                assertArrayEquals(expected, dst);
+            }
+        }
+    }
+
+    @Test
+    public void testGetChromaLayout() throws Exception {
+        final int width = 8;
+        final int height = 4;
+        byte[] vu = new byte[width * height / 2];
+        for (int i = 0; i < vu.length; ++i) {
+            vu[i] = (byte) i;
+        }
+
+        // V/U interleaved as in NV21, and U/V as in NV12.
+        ByteBuffer first = ByteBuffer.wrap(vu, 0, vu.length - 1).slice();
+        ByteBuffer second = ByteBuffer.wrap(vu, 1, vu.length - 1).slice();
+        assertEquals(Nv21Utils.CHROMA_LAYOUT_INTERLEAVED_VU,
+                Nv21Utils.getChromaLayout(second, first, width, 2, width, height));
+        assertEquals(Nv21Utils.CHROMA_LAYOUT_SEPARATE,
+                Nv21Utils.getChromaLayout(first, second, width, 2, width, height));
+
+        // Planar chroma.
+        assertEquals(Nv21Utils.CHROMA_LAYOUT_SEPARATE,
+                Nv21Utils.getChromaLayout(ByteBuffer.wrap(vu), ByteBuffer.wrap(vu), width / 2, 1,
+                        width, height));
+
+        // A flat image can't tell.
+        Arrays.fill(vu, (byte) 128);
+        assertEquals(Nv21Utils.CHROMA_LAYOUT_UNKNOWN,
+                Nv21Utils.getChromaLayout(second, first, width, 2, width, height));
+    }
+
+    @Test
+    public void testGetMeanLuma() throws Exception {
+        final int width = 8;
+        final int height = 4;
+        byte[] image = new byte[Nv21Utils.getImageSize(width, height)];
+        for (int i = 0; i < width * height; ++i) {
+            image[i] = (byte) (10 * (i % width) + 60 * (i / width));
+        }
+        // The chroma planes don't count.
+        for (int i = width * height; i < image.length; ++i) {
+            image[i] = (byte) 255;
+        }
+
+        assertEquals(125.0f, Nv21Utils.getMeanLuma(image, width, height, 1), 1e-3f);
+        // Pixels 1, 3, 5 and 7 of rows 1 and 3.
+        assertEquals(160.0f, Nv21Utils.getMeanLuma(image, width, height, 2), 1e-3f);
+        assertEquals(0.0f, Nv21Utils.getMeanLuma(image, 0, 0, 2), 0.0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCropRejectsOddCoordinates() throws Exception {
+        Nv21Utils.crop(new byte[72], 8, 6, 1, 2, 4, 2, new byte[12]);
+    }
+}
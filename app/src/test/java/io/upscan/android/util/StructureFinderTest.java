@@ -0,0 +1,53 @@
+package io.upscan.android.util;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import io.upscan.android.BuildConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link StructureFinder} finds a patch of bars, and nothing in a flat image.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class StructureFinderTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    @Test
+    public void testFindsBars() {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        Arrays.fill(luma, (byte) 128);
+        // Bars three pixels wide, so that the sampled pixels see their edges.
+        Rect patch = new Rect(96, 64, 224, 128);
+        for (int y = patch.top; y < patch.bottom; ++y) {
+            for (int x = patch.left; x < patch.right; ++x) {
+                luma[y * WIDTH + x] = (byte) ((((x - patch.left) / 3) % 2 == 0) ? 0 : 255);
+            }
+        }
+
+        Rect found = new Rect();
+        assertTrue(new StructureFinder().find(luma, WIDTH, HEIGHT, found));
+        assertEquals(patch, found);
+    }
+
+    @Test
+    public void testFindsNothingInFlatImage() {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        Arrays.fill(luma, (byte) 128);
+        Rect found = new Rect(1, 2, 3, 4);
+        assertFalse(new StructureFinder().find(luma, WIDTH, HEIGHT, found));
+        assertEquals(new Rect(1, 2, 3, 4), found);
+    }
+}